@@ -0,0 +1,71 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole scripted session against a local GeminiStubServer without latency: read the test, write the
+ * implementation, run the tests in-process. Measures the agent's own overhead per task.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AgentLoopBenchmark {
+
+    private GeminiStubServer stub;
+    private Path workspaces;
+    private WorkspaceManager workspaceManager;
+    private AgentConfig config;
+    private PrintStream stdout;
+    private Path workspace;
+
+    @Setup(Level.Trial)
+    public void startStub() throws IOException {
+        stub = new GeminiStubServer().setPort(0).loadScript(BenchmarkFixtures.stubScript());
+        stub.start();
+        config = new AgentConfig().setApiBaseUrl("http://localhost:" + stub.getPort() + "/v1beta");
+        workspaces = Files.createTempDirectory("bench-workspaces");
+        workspaceManager = new WorkspaceManager(BenchmarkFixtures.baseSandbox(), workspaces);
+        // The agent narrates every step; keep that out of the benchmark output
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void stopStub() throws IOException {
+        System.setOut(stdout);
+        stub.stop();
+        WorkspaceManager.deleteTree(workspaces);
+    }
+
+    @Setup(Level.Invocation)
+    public void freshWorkspace() throws IOException {
+        workspace = workspaceManager.createWorkspace("session");
+    }
+
+    @Benchmark
+    public boolean session() throws Exception {
+        return new TDDAgentOrchestrator("bench", workspace.toString(), BenchmarkFixtures.TEST_FILE, config)
+                .runTDDWorkflow();
+    }
+}
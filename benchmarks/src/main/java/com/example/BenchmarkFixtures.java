@@ -0,0 +1,115 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Realistic inputs shared by the benchmarks: conversation histories, responses and the agent's sandbox.
+ */
+final class BenchmarkFixtures {
+
+    static final String TEST_FILE = "src/test/java/com/example/MathServiceTest.java";
+    static final String SOURCE_FILE = "src/main/java/com/example/MathService.java";
+
+    private BenchmarkFixtures() {
+    }
+
+    // Relative to the benchmarks directory, which is where 'java -jar target/benchmarks.jar' is usually run
+    static Path baseSandbox() {
+        return Paths.get(System.getProperty("bench.sandbox", "../code-sandbox")).toAbsolutePath().normalize();
+    }
+
+    static Path stubScript() {
+        return Paths.get(System.getProperty("bench.stubScript", "../stub-sessions/math-service.json"))
+                .toAbsolutePath().normalize();
+    }
+
+    static TDDAgentOrchestrator orchestrator(Path sandbox) throws IOException {
+        return new TDDAgentOrchestrator("bench", sandbox.toString(), TEST_FILE, new AgentConfig());
+    }
+
+    static JSONArray toolDefinitions(TDDAgentOrchestrator orchestrator) {
+        return new JSONArray()
+                .put(orchestrator.buildWriteFileDefinition())
+                .put(orchestrator.buildReadFileDefinition())
+                .put(orchestrator.buildRunMavenTestDefinition());
+    }
+
+    /**
+     * A history of the given number of model/user turn pairs, alternating between writing the source file
+     * and running the tests. The budget is unlimited so nothing is compacted.
+     */
+    static ConversationHistory history(int turns) {
+        ConversationHistory history = new ConversationHistory(Integer.MAX_VALUE, TEST_FILE);
+        history.addUserMessage("Your goal is to write Java code that passes the tests in '" + TEST_FILE + "'.");
+        for (int turn = 0; turn < turns; turn++) {
+            if (turn % 2 == 0) {
+                JSONObject args = new JSONObject().put("filePath", SOURCE_FILE).put("fileContent", source(turn));
+                history.addModelPart(functionCall("write_file", args));
+                history.addFunctionResult("write_file", args, "File written successfully to " + SOURCE_FILE +
+                        "\nCompile check passed.", false);
+            } else {
+                history.addModelPart(functionCall("run_maven_test", new JSONObject()));
+                history.addFunctionResult("run_maven_test", new JSONObject(), buildReport(turn), false);
+            }
+        }
+        return history;
+    }
+
+    static JSONObject functionCall(String name, JSONObject args) {
+        return new JSONObject().put("functionCall", new JSONObject().put("name", name).put("args", args));
+    }
+
+    /**
+     * A generateContent response carrying the given parts, with the metadata the real API adds.
+     */
+    static String response(JSONArray parts) {
+        JSONObject candidate = new JSONObject()
+                .put("content", new JSONObject().put("role", "model").put("parts", parts))
+                .put("finishReason", "STOP")
+                .put("safetyRatings", new JSONArray()
+                        .put(safetyRating("HARM_CATEGORY_HARASSMENT"))
+                        .put(safetyRating("HARM_CATEGORY_HATE_SPEECH")));
+        return new JSONObject()
+                .put("candidates", new JSONArray().put(candidate))
+                .put("usageMetadata", new JSONObject()
+                        .put("promptTokenCount", 4000).put("candidatesTokenCount", 600).put("totalTokenCount", 4600))
+                .put("modelVersion", "gemini-2.0-flash")
+                .toString();
+    }
+
+    private static JSONObject safetyRating(String category) {
+        return new JSONObject().put("category", category).put("probability", "NEGLIGIBLE");
+    }
+
+    // About 2 KB of Java per version, so histories grow like they do in real sessions
+    static String source(int version) {
+        StringBuilder source = new StringBuilder("package com.example;\n\npublic class MathService {\n");
+        for (int method = 0; method < 12; method++) {
+            source.append("\n    public static int operation").append(method).append("_v").append(version)
+                    .append("(int a, int b) {\n        return a * ").append(method).append(" + b;\n    }\n");
+        }
+        return source.append("}\n").toString();
+    }
+
+    static String buildReport(int run) {
+        return "TESTS FAILED for com.example.MathServiceTest\n" +
+                "Tests found: 4, succeeded: 3, failed: 1, aborted: 0, skipped: 0\n\n" +
+                "FAILED: testMultiplyIntegers()\n" +
+                "  org.opentest4j.AssertionFailedError: expected: <" + (run * 6) + "> but was: <" + (run + 5) + ">\n" +
+                "    at com.example.MathServiceTest.testMultiplyIntegers(MathServiceTest.java:12)\n";
+    }
+
+    static Path createSandbox() throws IOException {
+        Path sandbox = Files.createTempDirectory("bench-sandbox");
+        Files.createDirectories(sandbox.resolve("src/main/java/com/example"));
+        Files.createDirectories(sandbox.resolve("src/test/java/com/example"));
+        Files.writeString(sandbox.resolve(SOURCE_FILE), source(0));
+        return sandbox;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code resolveSecurePath} canonicalizes through the file system on every read and write.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathResolutionBenchmark {
+
+    private Path sandbox;
+    private TDDAgentOrchestrator orchestrator;
+
+    @Setup
+    public void setUp() throws IOException {
+        sandbox = BenchmarkFixtures.createSandbox();
+        orchestrator = BenchmarkFixtures.orchestrator(sandbox);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        WorkspaceManager.deleteTree(sandbox);
+    }
+
+    @Benchmark
+    public Path existingFile() throws IOException {
+        return orchestrator.resolveSecurePath(BenchmarkFixtures.SOURCE_FILE);
+    }
+
+    @Benchmark
+    public Path newFile() throws IOException {
+        return orchestrator.resolveSecurePath("src/main/java/com/example/NotYetWritten.java");
+    }
+
+    @Benchmark
+    public Path dotSegments() throws IOException {
+        return orchestrator.resolveSecurePath("src/main/java/../java/com/example/./MathService.java");
+    }
+}
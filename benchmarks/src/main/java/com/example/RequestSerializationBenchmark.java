@@ -0,0 +1,56 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning the conversation into a request body, as a function of the history length.
+ * {@code buildRequestBody} re-serializes the whole history; {@code encodeRequest} reuses encoded messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestSerializationBenchmark {
+
+    @Param({"1", "10", "50", "200"})
+    private int turns;
+
+    private GeminiApiClient client;
+    private ConversationHistory history;
+    private JSONArray tools;
+    private byte[] encodedTools;
+
+    @Setup
+    public void setUp() throws IOException {
+        client = new GeminiApiClient("bench");
+        history = BenchmarkFixtures.history(turns);
+        tools = BenchmarkFixtures.toolDefinitions(BenchmarkFixtures.orchestrator(BenchmarkFixtures.baseSandbox()));
+        encodedTools = GeminiApiClient.encodeTools(tools);
+    }
+
+    @Benchmark
+    public String buildRequestBody() {
+        return client.buildRequestBody(history.toJsonArray(), tools).toString();
+    }
+
+    @Benchmark
+    public long encodeRequest() {
+        return client.encodeRequest(history.encodedMessages(), encodedTools).getSize();
+    }
+}
@@ -0,0 +1,68 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a generateContent response: from a String as before, and from the body stream as the client
+ * does now, for a small tool call, a full source file and a turn with several calls.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+
+    @Param({"run_maven_test", "write_file", "multi_call"})
+    private String response;
+
+    private GeminiApiClient client;
+    private String body;
+    private byte[] bodyBytes;
+
+    @Setup
+    public void setUp() {
+        client = new GeminiApiClient("bench");
+        JSONObject write = BenchmarkFixtures.functionCall("write_file", new JSONObject()
+                .put("filePath", BenchmarkFixtures.SOURCE_FILE)
+                .put("fileContent", BenchmarkFixtures.source(1)));
+        JSONObject test = BenchmarkFixtures.functionCall("run_maven_test", new JSONObject());
+        JSONArray parts;
+        switch (response) {
+            case "write_file":  parts = new JSONArray().put(write); break;
+            case "multi_call":  parts = new JSONArray().put(write).put(write).put(test); break;
+            default:            parts = new JSONArray().put(test); break;
+        }
+        body = BenchmarkFixtures.response(parts);
+        bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public JSONObject parseResponse() {
+        return client.parseResponse(body);
+    }
+
+    @Benchmark
+    public List<JSONObject> parseTrimmedStream() throws IOException {
+        return client.parseParts(GeminiApiClient.parseTrimmed(new ByteArrayInputStream(bodyBytes)));
+    }
+}
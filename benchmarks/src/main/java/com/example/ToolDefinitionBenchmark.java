@@ -0,0 +1,42 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ToolDefinitionBenchmark {
+
+    private TDDAgentOrchestrator orchestrator;
+
+    @Setup
+    public void setUp() throws IOException {
+        orchestrator = BenchmarkFixtures.orchestrator(BenchmarkFixtures.baseSandbox());
+    }
+
+    @Benchmark
+    public JSONArray buildDefinitions() {
+        return BenchmarkFixtures.toolDefinitions(orchestrator);
+    }
+
+    @Benchmark
+    public byte[] buildAndEncodeDefinitions() {
+        return GeminiApiClient.encodeTools(BenchmarkFixtures.toolDefinitions(orchestrator));
+    }
+}
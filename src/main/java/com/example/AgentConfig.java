@@ -0,0 +1,592 @@
+package com.example;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Tunable agent settings. Values are read from system properties so they can be passed through
+ * Maven, e.g. {@code mvn exec:java -Dexec.args="..." -Dtdd.testRunner=maven}.
+ */
+public class AgentConfig {
+
+    public static final String DEFAULT_API_BASE_URL = "https://generativelanguage.googleapis.com/v1beta";
+    public static final String DEFAULT_MODEL = "gemini-2.0-flash";
+
+    public static final String TEST_RUNNER_IN_PROCESS = "inprocess";
+    public static final String TEST_RUNNER_MAVEN = "maven";
+    public static final String MAVEN_MODE_FULL = "full";
+    public static final String MAVEN_MODE_TARGETED = "targeted";
+    public static final String CACHE_MODE_OFF = "off";
+    public static final String CACHE_MODE_READ_WRITE = "read-write";
+    public static final String CACHE_MODE_READ_ONLY = "read-only";
+
+    private String testRunner = TEST_RUNNER_IN_PROCESS;
+    private boolean compileCheck = true;
+    private String mavenMode = MAVEN_MODE_FULL;
+    private boolean mavenRegression = false;
+    private int batchConcurrency = Runtime.getRuntime().availableProcessors() * 2;
+    private int apiConcurrency = 4;
+    private int testConcurrency = Runtime.getRuntime().availableProcessors();
+    private Path batchWorkDir = Paths.get("batch-workspaces");
+    private Path sandbox = Paths.get("code-sandbox");
+    private boolean isolateSession = false;
+    private boolean snapshots = true;
+    private boolean sandboxIndex = true;
+    private boolean gzipRequests = false;
+    private boolean streaming = false;
+    private boolean promptCache = false;
+    private int promptCacheTtlSeconds = 600;
+    private String cacheMode = CACHE_MODE_OFF;
+    private Path cacheDir = Paths.get(".gemini-cache");
+    private long cacheMaxBytes = 256L * 1024 * 1024;
+    private String apiBaseUrl = DEFAULT_API_BASE_URL;
+    private String model = DEFAULT_MODEL;
+    private Path recordFile;
+    private int historyTokenBudget = 32_000;
+    private int candidates = 1;
+    private Path metricsReport;
+    private Path metricsPrometheus;
+    private int testTimeoutSeconds = 300;
+    private int testMethodTimeoutSeconds = 10;
+    private int testOutputLimitKb = 64;
+    private String testJvmMaxHeap = "512m";
+    private int testJvmCpus = 0;
+    private boolean journal = true;
+    private String journalFsync = SessionJournal.FSYNC_TURN;
+    private int apiRequestsPerMinute = 0;
+    private int apiTokensPerMinute = 0;
+    private int apiReadTimeoutSeconds = 60;
+    private int breakerErrorPercent = 50;
+    private long breakerCooldownMs = 30_000;
+    private int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private boolean spawnWorkers = true;
+    private int coordinatorPort = 0;
+    private int leaseSeconds = 60;
+    private int maxTaskAttempts = 3;
+    private boolean resumeQueue = false;
+
+    public static AgentConfig fromSystemProperties() {
+        AgentConfig config = new AgentConfig();
+        config.setTestRunner(System.getProperty("tdd.testRunner", config.testRunner));
+        config.setCompileCheck(booleanProperty("tdd.compileCheck", config.compileCheck));
+        config.setMavenMode(System.getProperty("tdd.mavenMode", config.mavenMode));
+        config.setMavenRegression(booleanProperty("tdd.mavenRegression", config.mavenRegression));
+        config.setBatchConcurrency(intProperty("tdd.batchConcurrency", config.batchConcurrency));
+        config.setApiConcurrency(intProperty("tdd.apiConcurrency", config.apiConcurrency));
+        config.setTestConcurrency(intProperty("tdd.testConcurrency", config.testConcurrency));
+        config.setBatchWorkDir(Paths.get(System.getProperty("tdd.batchWorkDir", config.batchWorkDir.toString())));
+        config.setSandbox(Paths.get(System.getProperty("tdd.sandbox", config.sandbox.toString())));
+        config.setIsolateSession(booleanProperty("tdd.isolateSession", config.isolateSession));
+        config.setSnapshots(booleanProperty("tdd.snapshots", config.snapshots));
+        config.setSandboxIndex(booleanProperty("tdd.sandboxIndex", config.sandboxIndex));
+        config.setGzipRequests(booleanProperty("tdd.gzipRequests", config.gzipRequests));
+        config.setStreaming(booleanProperty("tdd.streaming", config.streaming));
+        config.setPromptCache(booleanProperty("tdd.promptCache", config.promptCache));
+        config.setPromptCacheTtlSeconds(intProperty("tdd.promptCacheTtlSeconds", config.promptCacheTtlSeconds));
+        config.setCacheMode(System.getProperty("tdd.cacheMode", config.cacheMode));
+        config.setCacheDir(Paths.get(System.getProperty("tdd.cacheDir", config.cacheDir.toString())));
+        config.setCacheMaxBytes(Long.parseLong(System.getProperty("tdd.cacheMaxBytes",
+                String.valueOf(config.cacheMaxBytes)).trim()));
+        config.setApiBaseUrl(System.getProperty("tdd.apiBaseUrl", config.apiBaseUrl));
+        config.setModel(System.getProperty("tdd.model", config.model));
+        String recordFile = System.getProperty("tdd.recordFile");
+        config.setRecordFile(recordFile == null ? null : Paths.get(recordFile));
+        config.setHistoryTokenBudget(intProperty("tdd.historyTokenBudget", config.historyTokenBudget));
+        config.setCandidates(intProperty("tdd.candidates", config.candidates));
+        String metricsReport = System.getProperty("tdd.metricsReport");
+        config.setMetricsReport(metricsReport == null ? null : Paths.get(metricsReport));
+        String metricsPrometheus = System.getProperty("tdd.metricsPrometheus");
+        config.setMetricsPrometheus(metricsPrometheus == null ? null : Paths.get(metricsPrometheus));
+        config.setTestTimeoutSeconds(intProperty("tdd.testTimeoutSeconds", config.testTimeoutSeconds));
+        config.setTestMethodTimeoutSeconds(intProperty("tdd.testMethodTimeoutSeconds",
+                config.testMethodTimeoutSeconds));
+        config.setTestOutputLimitKb(intProperty("tdd.testOutputLimitKb", config.testOutputLimitKb));
+        config.setTestJvmMaxHeap(System.getProperty("tdd.testJvmMaxHeap", config.testJvmMaxHeap));
+        config.setTestJvmCpus(intProperty("tdd.testJvmCpus", config.testJvmCpus));
+        config.setJournal(booleanProperty("tdd.journal", config.journal));
+        config.setJournalFsync(System.getProperty("tdd.journalFsync", config.journalFsync));
+        config.setApiRequestsPerMinute(intProperty("tdd.apiRequestsPerMinute", config.apiRequestsPerMinute));
+        config.setApiTokensPerMinute(intProperty("tdd.apiTokensPerMinute", config.apiTokensPerMinute));
+        config.setApiReadTimeoutSeconds(intProperty("tdd.apiReadTimeoutSeconds", config.apiReadTimeoutSeconds));
+        config.setWorkers(intProperty("tdd.workers", config.workers));
+        config.setSpawnWorkers(booleanProperty("tdd.spawnWorkers", config.spawnWorkers));
+        config.setCoordinatorPort(intProperty("tdd.coordinatorPort", config.coordinatorPort));
+        config.setLeaseSeconds(intProperty("tdd.leaseSeconds", config.leaseSeconds));
+        config.setMaxTaskAttempts(intProperty("tdd.maxTaskAttempts", config.maxTaskAttempts));
+        config.setResumeQueue(booleanProperty("tdd.resumeQueue", config.resumeQueue));
+        config.setBreakerErrorPercent(intProperty("tdd.breakerErrorPercent", config.breakerErrorPercent));
+        config.setBreakerCooldownMs(Long.parseLong(System.getProperty("tdd.breakerCooldownMs",
+                String.valueOf(config.breakerCooldownMs)).trim()));
+        return config;
+    }
+
+    public String getTestRunner() {
+        return testRunner;
+    }
+
+    public AgentConfig setTestRunner(String testRunner) {
+        if (!TEST_RUNNER_IN_PROCESS.equals(testRunner) && !TEST_RUNNER_MAVEN.equals(testRunner)) {
+            throw new IllegalArgumentException("Unknown test runner '" + testRunner + "'. Use '" +
+                    TEST_RUNNER_IN_PROCESS + "' or '" + TEST_RUNNER_MAVEN + "'.");
+        }
+        this.testRunner = testRunner;
+        return this;
+    }
+
+    public boolean isCompileCheck() {
+        return compileCheck;
+    }
+
+    public AgentConfig setCompileCheck(boolean compileCheck) {
+        this.compileCheck = compileCheck;
+        return this;
+    }
+
+    public String getMavenMode() {
+        return mavenMode;
+    }
+
+    public AgentConfig setMavenMode(String mavenMode) {
+        if (!MAVEN_MODE_FULL.equals(mavenMode) && !MAVEN_MODE_TARGETED.equals(mavenMode)) {
+            throw new IllegalArgumentException("Unknown Maven mode '" + mavenMode + "'. Use '" +
+                    MAVEN_MODE_FULL + "' or '" + MAVEN_MODE_TARGETED + "'.");
+        }
+        this.mavenMode = mavenMode;
+        return this;
+    }
+
+    public boolean isMavenRegression() {
+        return mavenRegression;
+    }
+
+    public AgentConfig setMavenRegression(boolean mavenRegression) {
+        this.mavenRegression = mavenRegression;
+        return this;
+    }
+
+    public int getBatchConcurrency() {
+        return batchConcurrency;
+    }
+
+    public AgentConfig setBatchConcurrency(int batchConcurrency) {
+        this.batchConcurrency = requirePositive("tdd.batchConcurrency", batchConcurrency);
+        return this;
+    }
+
+    public int getApiConcurrency() {
+        return apiConcurrency;
+    }
+
+    public AgentConfig setApiConcurrency(int apiConcurrency) {
+        this.apiConcurrency = requirePositive("tdd.apiConcurrency", apiConcurrency);
+        return this;
+    }
+
+    public int getTestConcurrency() {
+        return testConcurrency;
+    }
+
+    public AgentConfig setTestConcurrency(int testConcurrency) {
+        this.testConcurrency = requirePositive("tdd.testConcurrency", testConcurrency);
+        return this;
+    }
+
+    public Path getBatchWorkDir() {
+        return batchWorkDir;
+    }
+
+    public AgentConfig setBatchWorkDir(Path batchWorkDir) {
+        this.batchWorkDir = batchWorkDir;
+        return this;
+    }
+
+    public Path getSandbox() {
+        return sandbox;
+    }
+
+    public AgentConfig setSandbox(Path sandbox) {
+        this.sandbox = sandbox;
+        return this;
+    }
+
+    public boolean isIsolateSession() {
+        return isolateSession;
+    }
+
+    public AgentConfig setIsolateSession(boolean isolateSession) {
+        this.isolateSession = isolateSession;
+        return this;
+    }
+
+    public boolean isSnapshots() {
+        return snapshots;
+    }
+
+    public AgentConfig setSnapshots(boolean snapshots) {
+        this.snapshots = snapshots;
+        return this;
+    }
+
+    public boolean isSandboxIndex() {
+        return sandboxIndex;
+    }
+
+    public AgentConfig setSandboxIndex(boolean sandboxIndex) {
+        this.sandboxIndex = sandboxIndex;
+        return this;
+    }
+
+    public boolean isGzipRequests() {
+        return gzipRequests;
+    }
+
+    public AgentConfig setGzipRequests(boolean gzipRequests) {
+        this.gzipRequests = gzipRequests;
+        return this;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public AgentConfig setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    public boolean isPromptCache() {
+        return promptCache;
+    }
+
+    public AgentConfig setPromptCache(boolean promptCache) {
+        this.promptCache = promptCache;
+        return this;
+    }
+
+    public int getPromptCacheTtlSeconds() {
+        return promptCacheTtlSeconds;
+    }
+
+    public AgentConfig setPromptCacheTtlSeconds(int promptCacheTtlSeconds) {
+        this.promptCacheTtlSeconds = requirePositive("tdd.promptCacheTtlSeconds", promptCacheTtlSeconds);
+        return this;
+    }
+
+    public String getCacheMode() {
+        return cacheMode;
+    }
+
+    public AgentConfig setCacheMode(String cacheMode) {
+        if (!CACHE_MODE_OFF.equals(cacheMode) && !CACHE_MODE_READ_WRITE.equals(cacheMode)
+                && !CACHE_MODE_READ_ONLY.equals(cacheMode)) {
+            throw new IllegalArgumentException("Unknown cache mode '" + cacheMode + "'. Use '" + CACHE_MODE_OFF +
+                    "', '" + CACHE_MODE_READ_WRITE + "' or '" + CACHE_MODE_READ_ONLY + "'.");
+        }
+        this.cacheMode = cacheMode;
+        return this;
+    }
+
+    public Path getCacheDir() {
+        return cacheDir;
+    }
+
+    public AgentConfig setCacheDir(Path cacheDir) {
+        this.cacheDir = cacheDir;
+        return this;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    public AgentConfig setCacheMaxBytes(long cacheMaxBytes) {
+        // Below that every entry would be evicted right after it was written
+        if (cacheMaxBytes < 1) {
+            throw new IllegalArgumentException("tdd.cacheMaxBytes must be at least 1, was " + cacheMaxBytes);
+        }
+        this.cacheMaxBytes = cacheMaxBytes;
+        return this;
+    }
+
+    public String getApiBaseUrl() {
+        return apiBaseUrl;
+    }
+
+    public AgentConfig setApiBaseUrl(String apiBaseUrl) {
+        // Normalized without trailing slash, the client appends "/models/<model>:<method>"
+        this.apiBaseUrl = apiBaseUrl.endsWith("/") ? apiBaseUrl.substring(0, apiBaseUrl.length() - 1) : apiBaseUrl;
+        return this;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public AgentConfig setModel(String model) {
+        this.model = model;
+        return this;
+    }
+
+    public Path getRecordFile() {
+        return recordFile;
+    }
+
+    public AgentConfig setRecordFile(Path recordFile) {
+        this.recordFile = recordFile;
+        return this;
+    }
+
+    public int getHistoryTokenBudget() {
+        return historyTokenBudget;
+    }
+
+    public AgentConfig setHistoryTokenBudget(int historyTokenBudget) {
+        this.historyTokenBudget = requirePositive("tdd.historyTokenBudget", historyTokenBudget);
+        return this;
+    }
+
+    public int getCandidates() {
+        return candidates;
+    }
+
+    public AgentConfig setCandidates(int candidates) {
+        this.candidates = requirePositive("tdd.candidates", candidates);
+        return this;
+    }
+
+    public Path getMetricsReport() {
+        return metricsReport;
+    }
+
+    public AgentConfig setMetricsReport(Path metricsReport) {
+        this.metricsReport = metricsReport;
+        return this;
+    }
+
+    public Path getMetricsPrometheus() {
+        return metricsPrometheus;
+    }
+
+    public AgentConfig setMetricsPrometheus(Path metricsPrometheus) {
+        this.metricsPrometheus = metricsPrometheus;
+        return this;
+    }
+
+    public int getTestTimeoutSeconds() {
+        return testTimeoutSeconds;
+    }
+
+    public AgentConfig setTestTimeoutSeconds(int testTimeoutSeconds) {
+        this.testTimeoutSeconds = requirePositive("tdd.testTimeoutSeconds", testTimeoutSeconds);
+        return this;
+    }
+
+    public int getTestMethodTimeoutSeconds() {
+        return testMethodTimeoutSeconds;
+    }
+
+    public AgentConfig setTestMethodTimeoutSeconds(int testMethodTimeoutSeconds) {
+        this.testMethodTimeoutSeconds = requirePositive("tdd.testMethodTimeoutSeconds", testMethodTimeoutSeconds);
+        return this;
+    }
+
+    public int getTestOutputLimitKb() {
+        return testOutputLimitKb;
+    }
+
+    public AgentConfig setTestOutputLimitKb(int testOutputLimitKb) {
+        this.testOutputLimitKb = requirePositive("tdd.testOutputLimitKb", testOutputLimitKb);
+        return this;
+    }
+
+    public String getTestJvmMaxHeap() {
+        return testJvmMaxHeap;
+    }
+
+    public AgentConfig setTestJvmMaxHeap(String testJvmMaxHeap) {
+        if (!testJvmMaxHeap.matches("\\d+[kKmMgG]?")) {
+            throw new IllegalArgumentException("tdd.testJvmMaxHeap must be a heap size like '512m', was '" +
+                    testJvmMaxHeap + "'");
+        }
+        this.testJvmMaxHeap = testJvmMaxHeap;
+        return this;
+    }
+
+    public int getTestJvmCpus() {
+        return testJvmCpus;
+    }
+
+    /**
+     * @param testJvmCpus processors reported to the Maven and test JVMs, 0 for all
+     */
+    public AgentConfig setTestJvmCpus(int testJvmCpus) {
+        this.testJvmCpus = requireNonNegative("tdd.testJvmCpus", testJvmCpus);
+        return this;
+    }
+
+    public boolean isJournal() {
+        return journal;
+    }
+
+    public AgentConfig setJournal(boolean journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    public String getJournalFsync() {
+        return journalFsync;
+    }
+
+    public AgentConfig setJournalFsync(String journalFsync) {
+        if (!SessionJournal.FSYNC_ALWAYS.equals(journalFsync) && !SessionJournal.FSYNC_TURN.equals(journalFsync)
+                && !SessionJournal.FSYNC_NEVER.equals(journalFsync)) {
+            throw new IllegalArgumentException("Unknown journal fsync policy '" + journalFsync + "'. Use '" +
+                    SessionJournal.FSYNC_ALWAYS + "', '" + SessionJournal.FSYNC_TURN + "' or '" +
+                    SessionJournal.FSYNC_NEVER + "'.");
+        }
+        this.journalFsync = journalFsync;
+        return this;
+    }
+
+    public int getApiRequestsPerMinute() {
+        return apiRequestsPerMinute;
+    }
+
+    /**
+     * @param apiRequestsPerMinute request quota shared by all sessions, 0 for no limit
+     */
+    public AgentConfig setApiRequestsPerMinute(int apiRequestsPerMinute) {
+        this.apiRequestsPerMinute = requireNonNegative("tdd.apiRequestsPerMinute", apiRequestsPerMinute);
+        return this;
+    }
+
+    public int getApiTokensPerMinute() {
+        return apiTokensPerMinute;
+    }
+
+    /**
+     * @param apiTokensPerMinute prompt token quota shared by all sessions, 0 for no limit
+     */
+    public AgentConfig setApiTokensPerMinute(int apiTokensPerMinute) {
+        this.apiTokensPerMinute = requireNonNegative("tdd.apiTokensPerMinute", apiTokensPerMinute);
+        return this;
+    }
+
+    public int getApiReadTimeoutSeconds() {
+        return apiReadTimeoutSeconds;
+    }
+
+    /**
+     * @param apiReadTimeoutSeconds longest pause while a response body or stream is read before the call fails
+     */
+    public AgentConfig setApiReadTimeoutSeconds(int apiReadTimeoutSeconds) {
+        this.apiReadTimeoutSeconds = requirePositive("tdd.apiReadTimeoutSeconds", apiReadTimeoutSeconds);
+        return this;
+    }
+
+    public int getBreakerErrorPercent() {
+        return breakerErrorPercent;
+    }
+
+    public AgentConfig setBreakerErrorPercent(int breakerErrorPercent) {
+        if (breakerErrorPercent < 1 || breakerErrorPercent > 100) {
+            throw new IllegalArgumentException("tdd.breakerErrorPercent must be between 1 and 100, was " +
+                    breakerErrorPercent);
+        }
+        this.breakerErrorPercent = breakerErrorPercent;
+        return this;
+    }
+
+    public long getBreakerCooldownMs() {
+        return breakerCooldownMs;
+    }
+
+    public AgentConfig setBreakerCooldownMs(long breakerCooldownMs) {
+        if (breakerCooldownMs < 0) {
+            throw new IllegalArgumentException("tdd.breakerCooldownMs must not be negative, was " + breakerCooldownMs);
+        }
+        this.breakerCooldownMs = breakerCooldownMs;
+        return this;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public AgentConfig setWorkers(int workers) {
+        this.workers = requirePositive("tdd.workers", workers);
+        return this;
+    }
+
+    public boolean isSpawnWorkers() {
+        return spawnWorkers;
+    }
+
+    public AgentConfig setSpawnWorkers(boolean spawnWorkers) {
+        this.spawnWorkers = spawnWorkers;
+        return this;
+    }
+
+    public int getCoordinatorPort() {
+        return coordinatorPort;
+    }
+
+    /**
+     * @param coordinatorPort localhost port the coordinator listens on, 0 for any free port
+     */
+    public AgentConfig setCoordinatorPort(int coordinatorPort) {
+        this.coordinatorPort = requireNonNegative("tdd.coordinatorPort", coordinatorPort);
+        return this;
+    }
+
+    public int getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    public AgentConfig setLeaseSeconds(int leaseSeconds) {
+        this.leaseSeconds = requirePositive("tdd.leaseSeconds", leaseSeconds);
+        return this;
+    }
+
+    public int getMaxTaskAttempts() {
+        return maxTaskAttempts;
+    }
+
+    public AgentConfig setMaxTaskAttempts(int maxTaskAttempts) {
+        this.maxTaskAttempts = requirePositive("tdd.maxTaskAttempts", maxTaskAttempts);
+        return this;
+    }
+
+    public boolean isResumeQueue() {
+        return resumeQueue;
+    }
+
+    public AgentConfig setResumeQueue(boolean resumeQueue) {
+        this.resumeQueue = resumeQueue;
+        return this;
+    }
+
+    private static int requirePositive(String name, int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException(name + " must be at least 1, was " + value);
+        }
+        return value;
+    }
+
+    private static int requireNonNegative(String name, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(name + " must not be negative, was " + value);
+        }
+        return value;
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static boolean booleanProperty(String name, boolean defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,25 @@
+package com.example;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Bytes allocated by the current thread, as reported by HotSpot. Used to show that request assembly stays
+ * flat as the conversation grows. Returns -1 where the JVM does not support allocation accounting.
+ */
+public final class AllocationProbe {
+
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean SUPPORTED = THREAD_BEAN instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) THREAD_BEAN).isThreadAllocatedMemorySupported();
+
+    private AllocationProbe() {
+    }
+
+    public static long allocatedBytes() {
+        if (!SUPPORTED) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) THREAD_BEAN).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,439 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side admission control for Gemini calls, shared by every {@link GeminiApiClient} of the process
+ * that talks to the same model, so that many sessions do not stampede the API together.
+ *
+ * <p>A request is dispatched only when
+ * <ul>
+ *   <li>the request and token buckets (per-minute quotas) have capacity,</li>
+ *   <li>fewer requests are in flight than the adaptive concurrency limit, which is halved on a 429 and
+ *       grows back by one per limit's worth of successes (AIMD),</li>
+ *   <li>no {@code Retry-After} pause is pending, and</li>
+ *   <li>the circuit breaker is closed: once too many recent calls failed with 5xx or I/O errors, dispatch
+ *       pauses for a cooldown and then resumes with a single probe request.</li>
+ * </ul>
+ * Requests that cannot be sent yet wait in a FIFO queue as futures, not as blocked threads.
+ */
+public class ApiRateLimiter {
+
+    static final long INITIAL_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 30_000;
+
+    private static final int BREAKER_WINDOW = 20;
+    private static final int BREAKER_MIN_CALLS = 10;
+    private static final long LOG_WAIT_THRESHOLD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Map<String, ApiRateLimiter> INSTANCES = new ConcurrentHashMap<>();
+
+    // Wakes waiting requests when a pause, cooldown or quota refill ends; admission itself holds no thread
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "api-rate-limiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private enum BreakerState { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int maxConcurrency;
+    private final TokenBucket requestBucket;
+    private final TokenBucket tokenBucket;
+    private final double breakerErrorRate;
+    private final long breakerCooldownNanos;
+    private final Metrics metrics;
+
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+    private double concurrencyLimit;
+    private int inFlight;
+    private int queued;
+    // Earliest pending timer dispatch
+    private long wakeUpNanos = Long.MAX_VALUE;
+    private long lastDecreaseNanos = System.nanoTime();
+    private long pausedUntilNanos = System.nanoTime();
+
+    private BreakerState breakerState = BreakerState.CLOSED;
+    private long breakerOpenUntilNanos;
+    private boolean probeInFlight;
+    private final boolean[] outcomes = new boolean[BREAKER_WINDOW];
+    private int outcomeCount;
+    private int outcomeIndex;
+
+    ApiRateLimiter(String name, AgentConfig config) {
+        this.name = name;
+        this.maxConcurrency = config.getApiConcurrency();
+        this.concurrencyLimit = maxConcurrency;
+        this.requestBucket = TokenBucket.perMinute(config.getApiRequestsPerMinute());
+        this.tokenBucket = TokenBucket.perMinute(config.getApiTokensPerMinute());
+        this.breakerErrorRate = config.getBreakerErrorPercent() / 100.0;
+        this.breakerCooldownNanos = TimeUnit.MILLISECONDS.toNanos(config.getBreakerCooldownMs());
+        this.metrics = Metrics.forConfig(config);
+        updateGauges();
+    }
+
+    /**
+     * @return the limiter shared by all clients of the configured endpoint and model
+     */
+    public static ApiRateLimiter forConfig(AgentConfig config) {
+        String name = config.getApiBaseUrl() + "/models/" + config.getModel();
+        return INSTANCES.computeIfAbsent(name, key -> new ApiRateLimiter(key, config));
+    }
+
+    /**
+     * Queues the request for admission without blocking the caller: the returned future completes, in
+     * arrival order, once the request may be sent, either right away or on the thread that releases a permit
+     * or on the limiter's timer.
+     *
+     * @param estimatedTokens expected prompt size, charged against the tokens-per-minute quota
+     */
+    public CompletableFuture<Permit> acquire(long estimatedTokens) {
+        Waiter waiter = new Waiter(estimatedTokens);
+        List<Waiter> admitted;
+        synchronized (this) {
+            waiters.add(waiter);
+            admitted = dispatch();
+        }
+        complete(admitted);
+        return waiter.future;
+    }
+
+    /**
+     * For synchronous callers: waits for {@link #acquire(long)}.
+     */
+    public Permit acquireBlocking(long estimatedTokens) throws InterruptedException {
+        CompletableFuture<Permit> future = acquire(estimatedTokens);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            // Admitted in the meantime: hand the permit back unused
+            if (!future.cancel(false)) {
+                future.join().releaseUnused();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Admits waiters from the head of the queue while they fit; the caller completes them outside the lock
+    private List<Waiter> dispatch() {
+        List<Waiter> admitted = new ArrayList<>();
+        long now = System.nanoTime();
+        if (breakerState == BreakerState.OPEN && now >= breakerOpenUntilNanos) {
+            breakerState = BreakerState.HALF_OPEN;
+            probeInFlight = false;
+            System.out.println("AGENT: API circuit breaker half-open, sending a probe request");
+        }
+        while (!waiters.isEmpty()) {
+            Waiter waiter = waiters.peek();
+            if (waiter.future.isDone()) {
+                // Cancelled by its caller
+                waiters.poll();
+                continue;
+            }
+            long waitNanos;
+            if (breakerState == BreakerState.OPEN) {
+                waitNanos = breakerOpenUntilNanos - now;
+                waiter.reason = "circuit breaker open";
+            } else if (breakerState == BreakerState.HALF_OPEN && probeInFlight) {
+                waitNanos = 0;
+                waiter.reason = "circuit breaker probing";
+            } else if (now < pausedUntilNanos) {
+                waitNanos = pausedUntilNanos - now;
+                waiter.reason = "Retry-After";
+            } else if (inFlight >= (int) concurrencyLimit) {
+                waitNanos = 0;
+                waiter.reason = "concurrency limit";
+            } else {
+                long tokens = Math.min(waiter.estimatedTokens, tokenBucket.capacity);
+                waitNanos = Math.max(requestBucket.nanosUntilAvailable(1, now),
+                        tokenBucket.nanosUntilAvailable(tokens, now));
+                if (waitNanos <= 0) {
+                    waiters.poll();
+                    requestBucket.take(1);
+                    tokenBucket.take(tokens);
+                    inFlight++;
+                    boolean probe = breakerState == BreakerState.HALF_OPEN;
+                    if (probe) {
+                        probeInFlight = true;
+                    }
+                    waiter.permit = new Permit(tokens, now, probe);
+                    admitted.add(waiter);
+                    continue;
+                }
+                waiter.reason = "rate quota";
+            }
+            // Zero means: until a permit is released
+            if (waitNanos > 0) {
+                scheduleDispatch(now + waitNanos);
+            }
+            break;
+        }
+        queued = waiters.size();
+        updateGauges();
+        return admitted;
+    }
+
+    private void scheduleDispatch(long atNanos) {
+        if (atNanos >= wakeUpNanos) {
+            return;
+        }
+        wakeUpNanos = atNanos;
+        TIMER.schedule(() -> {
+            List<Waiter> admitted;
+            synchronized (this) {
+                if (wakeUpNanos == atNanos) {
+                    wakeUpNanos = Long.MAX_VALUE;
+                }
+                admitted = dispatch();
+            }
+            complete(admitted);
+        }, atNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    private void complete(List<Waiter> admitted) {
+        for (Waiter waiter : admitted) {
+            long waited = System.nanoTime() - waiter.startNanos;
+            metrics.recordNanos("api_limiter_wait_seconds", null, null, waited);
+            if (waited >= LOG_WAIT_THRESHOLD_NANOS) {
+                System.out.println("AGENT: API limiter held a request for " +
+                        TimeUnit.NANOSECONDS.toMillis(waited) + " ms (" + waiter.reason + "); " + formatState());
+            }
+            if (!waiter.future.complete(waiter.permit)) {
+                waiter.permit.releaseUnused();
+            }
+        }
+    }
+
+    /**
+     * Jittered exponential backoff for a retry. A server-sent delay is honored as a lower bound and also
+     * pauses dispatch for every other session, which would otherwise hit the same limit.
+     *
+     * @param retryAfterMillis delay requested by the server, or a negative value if there was none
+     */
+    public long backoffMillis(int attempt, long retryAfterMillis) {
+        long ceiling = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempt - 1, 20));
+        // "Equal jitter": at least half the exponential delay, so retries spread out but still back off
+        long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        if (retryAfterMillis > 0) {
+            delay = Math.max(delay, retryAfterMillis);
+            synchronized (this) {
+                pausedUntilNanos = Math.max(pausedUntilNanos,
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+            }
+        }
+        return delay;
+    }
+
+    public synchronized String formatState() {
+        return String.format("limit %.1f of %d, in flight %d, queued %d, breaker %s", concurrencyLimit,
+                maxConcurrency, inFlight, queued, breakerState);
+    }
+
+    private void release(Permit permit, int statusCode, long actualTokens) {
+        List<Waiter> admitted;
+        synchronized (this) {
+            inFlight--;
+            long now = System.nanoTime();
+
+            if (actualTokens > 0) {
+                // Charge the real prompt size instead of the estimate; a deficit delays later requests
+                tokenBucket.take(actualTokens - permit.tokens);
+            }
+
+            if (statusCode == 429) {
+                // One decrease per congestion event: 429s for requests sent before the last decrease don't count
+                if (permit.dispatchNanos >= lastDecreaseNanos) {
+                    double previous = concurrencyLimit;
+                    concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+                    lastDecreaseNanos = now;
+                    metrics.increment("api_limit_decreases_total");
+                    System.out.println(String.format("AGENT: API concurrency limit %.1f -> %.1f after HTTP 429; %s",
+                            previous, concurrencyLimit, formatState()));
+                }
+            } else if (statusCode >= 200 && statusCode < 300) {
+                concurrencyLimit = Math.min(maxConcurrency, concurrencyLimit + 1 / concurrencyLimit);
+            }
+
+            boolean failed = statusCode < 0 || statusCode >= 500;
+            recordOutcome(permit, failed, now);
+            admitted = dispatch();
+        }
+        complete(admitted);
+    }
+
+    // A permit that was admitted after its caller gave up: nothing was sent
+    private void releaseUnused(Permit permit) {
+        List<Waiter> admitted;
+        synchronized (this) {
+            inFlight--;
+            requestBucket.take(-1);
+            tokenBucket.take(-permit.tokens);
+            if (permit.probe) {
+                probeInFlight = false;
+            }
+            admitted = dispatch();
+        }
+        complete(admitted);
+    }
+
+    private void recordOutcome(Permit permit, boolean failed, long now) {
+        // Only the probe decides; requests sent before the breaker opened finish in any state
+        if (permit.probe) {
+            probeInFlight = false;
+            if (breakerState != BreakerState.HALF_OPEN) {
+                return;
+            }
+            if (failed) {
+                openBreaker(now, "probe failed");
+            } else {
+                breakerState = BreakerState.CLOSED;
+                outcomeCount = 0;
+                System.out.println("AGENT: API circuit breaker closed, the probe succeeded");
+            }
+            return;
+        }
+
+        outcomes[outcomeIndex] = failed;
+        outcomeIndex = (outcomeIndex + 1) % BREAKER_WINDOW;
+        outcomeCount = Math.min(BREAKER_WINDOW, outcomeCount + 1);
+        if (breakerState != BreakerState.CLOSED || outcomeCount < BREAKER_MIN_CALLS) {
+            return;
+        }
+        int failures = 0;
+        for (int i = 0; i < outcomeCount; i++) {
+            if (outcomes[i]) {
+                failures++;
+            }
+        }
+        if (failures >= breakerErrorRate * outcomeCount) {
+            openBreaker(now, failures + " of the last " + outcomeCount + " calls failed");
+        }
+    }
+
+    private void openBreaker(long now, String reason) {
+        breakerState = BreakerState.OPEN;
+        breakerOpenUntilNanos = now + breakerCooldownNanos;
+        outcomeCount = 0;
+        outcomeIndex = 0;
+        metrics.increment("api_circuit_opened_total");
+        System.out.println("AGENT: API circuit breaker open for " +
+                TimeUnit.NANOSECONDS.toMillis(breakerCooldownNanos) + " ms (" + reason + ") for " + name);
+    }
+
+    private void updateGauges() {
+        metrics.setGauge("api_concurrency_limit", (long) concurrencyLimit);
+        metrics.setGauge("api_in_flight", inFlight);
+        metrics.setGauge("api_queue_depth", queued);
+        metrics.setGauge("api_circuit_open", breakerState == BreakerState.CLOSED ? 0 : 1);
+    }
+
+    /**
+     * Admission for one HTTP attempt. Exactly one of the release methods must be called.
+     */
+    public class Permit {
+        private final long tokens;
+        private final long dispatchNanos;
+        // The single request let through by a half-open breaker
+        private final boolean probe;
+        private boolean released;
+
+        Permit(long tokens, long dispatchNanos, boolean probe) {
+            this.tokens = tokens;
+            this.dispatchNanos = dispatchNanos;
+            this.probe = probe;
+        }
+
+        /**
+         * @param promptTokens prompt size reported by the API, or 0 if unknown
+         */
+        public void onResponse(int statusCode, long promptTokens) {
+            releaseOnce(statusCode, promptTokens);
+        }
+
+        public void onError() {
+            releaseOnce(-1, 0);
+        }
+
+        private void releaseOnce(int statusCode, long promptTokens) {
+            if (markReleased()) {
+                release(this, statusCode, promptTokens);
+            }
+        }
+
+        void releaseUnused() {
+            if (markReleased()) {
+                ApiRateLimiter.this.releaseUnused(this);
+            }
+        }
+
+        private boolean markReleased() {
+            synchronized (ApiRateLimiter.this) {
+                if (released) {
+                    return false;
+                }
+                released = true;
+                return true;
+            }
+        }
+    }
+
+    private final class Waiter {
+        private final long estimatedTokens;
+        private final long startNanos = System.nanoTime();
+        private final CompletableFuture<Permit> future = new CompletableFuture<>();
+        private String reason = "queued behind earlier requests";
+        private Permit permit;
+
+        Waiter(long estimatedTokens) {
+            this.estimatedTokens = estimatedTokens;
+        }
+    }
+
+    // Refills continuously; a negative balance is debt from underestimated requests
+    private static final class TokenBucket {
+        private final long capacity;
+        private final double tokensPerNano;
+        private double available;
+        private long lastRefillNanos = System.nanoTime();
+
+        private TokenBucket(long capacity) {
+            this.capacity = capacity;
+            this.tokensPerNano = capacity / (double) TimeUnit.MINUTES.toNanos(1);
+            this.available = capacity;
+        }
+
+        // A quota of 0 means unlimited
+        static TokenBucket perMinute(long quota) {
+            return new TokenBucket(quota <= 0 ? Long.MAX_VALUE : quota);
+        }
+
+        long nanosUntilAvailable(long tokens, long now) {
+            if (capacity == Long.MAX_VALUE) {
+                return 0;
+            }
+            available = Math.min(capacity, available + (now - lastRefillNanos) * tokensPerNano);
+            lastRefillNanos = now;
+            return available >= tokens ? 0 : (long) Math.ceil((tokens - available) / tokensPerNano);
+        }
+
+        void take(long tokens) {
+            if (capacity != Long.MAX_VALUE) {
+                available -= tokens;
+            }
+        }
+    }
+}
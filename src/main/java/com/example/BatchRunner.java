@@ -0,0 +1,279 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs many TDD tasks concurrently. Every task gets its own workspace copy of the sandbox and its own
+ * {@link TDDAgentOrchestrator}; API calls are admitted by the shared {@link ApiRateLimiter} and test runs are
+ * throttled through shared {@link ConcurrencyLimits}.
+ */
+public class BatchRunner {
+
+    private final String apiKey;
+    private final AgentConfig config;
+    private final WorkspaceManager workspaceManager;
+    private final ConcurrencyLimits limits;
+    private final Metrics metrics;
+
+    public BatchRunner(String apiKey, AgentConfig config, Path baseSandbox, Path workspacesRoot) {
+        this.apiKey = apiKey;
+        this.config = config;
+        this.workspaceManager = new WorkspaceManager(baseSandbox, workspacesRoot);
+        this.limits = new ConcurrencyLimits(config.getTestConcurrency());
+        this.metrics = Metrics.forConfig(config);
+    }
+
+    /**
+     * Reads one test file path per line. Lines may also be JSON objects with a {@code testFile} field
+     * (JSONL); blank lines and lines starting with '#' are ignored.
+     */
+    public static List<String> readTaskFile(Path taskFile) throws IOException {
+        List<String> testFiles = new ArrayList<>();
+        for (String line : Files.readAllLines(taskFile, StandardCharsets.UTF_8)) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            testFiles.add(trimmed.startsWith("{") ? new JSONObject(trimmed).getString("testFile") : trimmed);
+        }
+        return testFiles;
+    }
+
+    public List<TaskResult> run(List<String> testFiles) throws InterruptedException {
+        System.out.println("BATCH: Running " + testFiles.size() + " task(s), " + config.getBatchConcurrency() +
+                " concurrent session(s), " + config.getApiConcurrency() + " concurrent API call(s), " +
+                config.getTestConcurrency() + " concurrent test run(s)");
+
+        long startNanos = System.nanoTime();
+        if (config.isPromptCache()) {
+            PromptCache.holdShared();
+        }
+        Semaphore sessionPermits = new Semaphore(config.getBatchConcurrency());
+        ExecutorService executor = newExecutor(config.getBatchConcurrency());
+        List<Future<TaskResult>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < testFiles.size(); i++) {
+                final int taskIndex = i;
+                futures.add(executor.submit(() -> {
+                    sessionPermits.acquire();
+                    try {
+                        return runTask(taskIndex, testFiles.get(taskIndex));
+                    } finally {
+                        sessionPermits.release();
+                    }
+                }));
+            }
+
+            List<TaskResult> results = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new TaskResult(testFiles.get(i), null, false, 0, 0, 0, null,
+                            String.valueOf(e.getCause())));
+                }
+            }
+
+            printSummary(config, results, System.nanoTime() - startNanos);
+            return results;
+        } finally {
+            executor.shutdownNow();
+            if (config.isPromptCache()) {
+                PromptCache.releaseShared();
+            }
+        }
+    }
+
+    // Also used by the workers of a coordinator, one task at a time
+    TaskResult runTask(int taskIndex, String testFile) {
+        long startNanos = System.nanoTime();
+        Path workspace = null;
+        TDDAgentOrchestrator agent = null;
+        try {
+            String className = TestRunner.testClassNameOf(testFile);
+            long workspaceNanos = metrics.startTimer();
+            workspace = workspaceManager.createWorkspace("task-" + taskIndex + "-" +
+                    className.substring(className.lastIndexOf('.') + 1));
+            metrics.recordSince("workspace_create_seconds", workspaceNanos);
+            System.out.println("BATCH: Task " + taskIndex + " (" + testFile + ") started in " + workspace +
+                    ", created in " + elapsedMillis(startNanos) + " ms");
+
+            agent = new TDDAgentOrchestrator(apiKey, workspace.toString(), testFile, config, limits);
+            boolean passed = agent.runTDDWorkflow();
+            return new TaskResult(testFile, workspace, passed, elapsedMillis(startNanos), agent.getRequestCount(),
+                    agent.getToolCallCount(), agent.getSandboxIndex(),
+                    agent.isAborted() ? "Stopped by an API error" : null);
+        } catch (Exception e) {
+            System.err.println("BATCH: Task " + taskIndex + " (" + testFile + ") failed: " + e);
+            return new TaskResult(testFile, workspace, false, elapsedMillis(startNanos),
+                    agent == null ? 0 : agent.getRequestCount(), agent == null ? 0 : agent.getToolCallCount(),
+                    agent == null ? null : agent.getSandboxIndex(), e.toString());
+        }
+    }
+
+    // Virtual threads on Java 21+, looked up reflectively since the agent is compiled for Java 11
+    private static ExecutorService newExecutor(int poolSize) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(poolSize);
+        }
+    }
+
+    static void printSummary(AgentConfig config, List<TaskResult> results, long elapsedNanos) {
+        int passed = 0;
+        int roundTrips = 0;
+        int readTurnsSaved = 0;
+        long indexBytesSaved = 0;
+        System.out.println("\nBATCH SUMMARY");
+        for (TaskResult result : results) {
+            if (result.isPassed()) {
+                passed++;
+            }
+            roundTrips += result.getRoundTrips();
+            readTurnsSaved += result.getReadTurnsSaved();
+            indexBytesSaved += result.getIndexBytesSaved();
+            System.out.println(String.format(" %-6s %8d ms %3d round trips  %s%s",
+                    result.isPassed() ? "PASS" : "FAIL", result.getDurationMillis(), result.getRoundTrips(), result.getTestFile(),
+                    result.getError() == null ? "" : "  (" + result.getError() + ")"));
+        }
+
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        System.out.println(String.format(" %d/%d passed in %.1f s, throughput %.2f tasks/min, %.1f round trips/task",
+                passed, results.size(), seconds, seconds > 0 ? results.size() * 60 / seconds : 0,
+                results.isEmpty() ? 0 : roundTrips / (double) results.size()));
+        if (config.isSandboxIndex()) {
+            System.out.println(String.format(" Sandbox index saved ~%d read turn(s) and ~%d B of file content",
+                    readTurnsSaved, indexBytesSaved));
+        }
+
+        JSONArray tasks = new JSONArray();
+        for (TaskResult result : results) {
+            tasks.put(result.toJson());
+        }
+        JSONObject summary = new JSONObject()
+                .put("tasks", tasks)
+                .put("passed", passed)
+                .put("total", results.size())
+                .put("roundTrips", roundTrips)
+                .put("readTurnsSaved", readTurnsSaved)
+                .put("indexBytesSaved", indexBytesSaved)
+                .put("elapsedMillis", elapsedNanos / 1_000_000)
+                .put("tasksPerMinute", seconds > 0 ? results.size() * 60 / seconds : 0);
+        try {
+            Path summaryFile = config.getBatchWorkDir().resolve("batch-summary.json");
+            Files.createDirectories(summaryFile.getParent());
+            Files.write(summaryFile, summary.toString(2).getBytes(StandardCharsets.UTF_8));
+            System.out.println(" Summary written to " + summaryFile);
+        } catch (IOException e) {
+            System.err.println("BATCH: Could not write summary: " + e.getMessage());
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    public static class TaskResult {
+        private final String testFile;
+        private final Path workspace;
+        private final boolean passed;
+        private final long durationMillis;
+        private final int roundTrips;
+        private final int toolCalls;
+        private final int readTurnsSaved;
+        private final long indexBytesSaved;
+        private final String error;
+
+        TaskResult(String testFile, Path workspace, boolean passed, long durationMillis, int roundTrips,
+                   int toolCalls, SandboxIndex index, String error) {
+            this(testFile, workspace, passed, durationMillis, roundTrips, toolCalls,
+                    index == null ? 0 : index.getReadTurnsSaved(), index == null ? 0 : index.getBytesSaved(), error);
+        }
+
+        private TaskResult(String testFile, Path workspace, boolean passed, long durationMillis, int roundTrips,
+                           int toolCalls, int readTurnsSaved, long indexBytesSaved, String error) {
+            this.testFile = testFile;
+            this.workspace = workspace;
+            this.passed = passed;
+            this.durationMillis = durationMillis;
+            this.roundTrips = roundTrips;
+            this.toolCalls = toolCalls;
+            this.readTurnsSaved = readTurnsSaved;
+            this.indexBytesSaved = indexBytesSaved;
+            this.error = error;
+        }
+
+        static TaskResult fromJson(JSONObject json) {
+            String workspace = json.optString("workspace", null);
+            String error = json.optString("error", null);
+            return new TaskResult(json.getString("testFile"), workspace == null ? null : Path.of(workspace),
+                    json.getBoolean("passed"), json.optLong("durationMillis"), json.optInt("roundTrips"),
+                    json.optInt("toolCalls"), json.optInt("readTurnsSaved"), json.optLong("indexBytesSaved"), error);
+        }
+
+        public String getTestFile() {
+            return testFile;
+        }
+
+        public Path getWorkspace() {
+            return workspace;
+        }
+
+        public boolean isPassed() {
+            return passed;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public int getRoundTrips() {
+            return roundTrips;
+        }
+
+        public int getToolCalls() {
+            return toolCalls;
+        }
+
+        public int getReadTurnsSaved() {
+            return readTurnsSaved;
+        }
+
+        public long getIndexBytesSaved() {
+            return indexBytesSaved;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        JSONObject toJson() {
+            return new JSONObject()
+                    .put("testFile", testFile)
+                    .put("workspace", workspace == null ? JSONObject.NULL : workspace.toString())
+                    .put("passed", passed)
+                    .put("durationMillis", durationMillis)
+                    .put("roundTrips", roundTrips)
+                    .put("toolCalls", toolCalls)
+                    .put("readTurnsSaved", readTurnsSaved)
+                    .put("indexBytesSaved", indexBytesSaved)
+                    .put("error", error == null ? JSONObject.NULL : error);
+        }
+    }
+}
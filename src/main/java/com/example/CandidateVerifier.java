@@ -0,0 +1,144 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Verifies alternative implementations side by side. Each candidate is written into its own scratch copy
+ * of the sandbox and tested there; the first one that passes wins and the others are cancelled.
+ */
+public class CandidateVerifier {
+
+    private final Path sandboxPath;
+    private final String testFilePath;
+    private final AgentConfig config;
+    private final Semaphore testPermits;
+    private final ExecutorService executor;
+
+    public CandidateVerifier(Path sandboxPath, String testFilePath, AgentConfig config, Semaphore testPermits,
+                             ExecutorService executor) {
+        this.sandboxPath = sandboxPath;
+        this.testFilePath = testFilePath;
+        this.config = config;
+        this.testPermits = testPermits;
+        this.executor = executor;
+    }
+
+    /**
+     * @param candidates file path and content of every candidate, as relative paths already checked by the caller
+     */
+    public Outcome verify(List<String[]> candidates) throws IOException, InterruptedException {
+        // On the sandbox's file system, so the scratch copies can be hard-linked
+        Path agentDirectory = Files.createDirectories(sandboxPath.resolve(".agent"));
+        Path scratchRoot = Files.createTempDirectory(agentDirectory, "candidates");
+        WorkspaceManager workspaces = new WorkspaceManager(sandboxPath, scratchRoot);
+        CompletionService<TestRunResult> completion = new ExecutorCompletionService<>(executor);
+        List<Future<TestRunResult>> futures = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            int index = i;
+            futures.add(completion.submit(() -> verifyCandidate(workspaces, scratchRoot, index, candidates.get(index))));
+        }
+
+        TestRunResult[] results = new TestRunResult[candidates.size()];
+        int winner = -1;
+        try {
+            for (int done = 0; done < candidates.size() && winner < 0; done++) {
+                Future<TestRunResult> future = completion.take();
+                int index = futures.indexOf(future);
+                try {
+                    results[index] = future.get();
+                } catch (ExecutionException e) {
+                    results[index] = new TestRunResult(false, "Verification failed: " + e.getCause());
+                }
+                System.out.println("AGENT: Candidate " + (index + 1) + " of " + candidates.size() + " " +
+                        (results[index].isSuccess() ? "passed" : "failed"));
+                if (results[index].isSuccess()) {
+                    winner = index;
+                }
+            }
+        } finally {
+            for (Future<TestRunResult> future : futures) {
+                future.cancel(true);
+            }
+            deleteIfEmpty(scratchRoot);
+        }
+        return new Outcome(results, winner);
+    }
+
+    private TestRunResult verifyCandidate(WorkspaceManager workspaces, Path scratchRoot, int index,
+                                          String[] candidate) throws Exception {
+        Path workspace = workspaces.createWorkspace("candidate-" + (index + 1));
+        try {
+            // Replaced, not overwritten: the file is linked to the sandbox's
+            WorkspaceManager.writeFile(workspace.resolve(candidate[0]).normalize(),
+                    candidate[1].getBytes(StandardCharsets.UTF_8));
+
+            TestRunner runner = TestRunner.forConfig(config, workspace, testFilePath, new InMemoryCompiler(workspace));
+            testPermits.acquire();
+            try {
+                return runner.runTests();
+            } finally {
+                testPermits.release();
+            }
+        } finally {
+            WorkspaceManager.deleteTree(workspace);
+            deleteIfEmpty(scratchRoot);
+        }
+    }
+
+    // Whoever finishes last removes the scratch root; until then other candidates still use it
+    private static void deleteIfEmpty(Path directory) {
+        try {
+            Files.deleteIfExists(directory);
+        } catch (DirectoryNotEmptyException e) {
+            // A candidate is still running
+        } catch (IOException e) {
+            System.err.println("Could not delete " + directory + ": " + e.getMessage());
+        }
+    }
+
+    public static class Outcome {
+        private final TestRunResult[] results;
+        private final int winner;
+
+        Outcome(TestRunResult[] results, int winner) {
+            this.results = results;
+            this.winner = winner;
+        }
+
+        public boolean hasWinner() {
+            return winner >= 0;
+        }
+
+        /**
+         * @return the passing candidate, or else the one that got furthest: tests ran, with the fewest failures
+         */
+        public int getChosen() {
+            if (winner >= 0) {
+                return winner;
+            }
+            int best = 0;
+            for (int i = 1; i < results.length; i++) {
+                if (results[i] != null && results[i].isBetterThan(results[best])) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        public TestRunResult getResult(int index) {
+            return results[index];
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example;
+
+import java.util.List;
+import java.util.Map;
+
+public class CompilationResult {
+
+    private final Map<String, byte[]> classes;
+    private final List<String> errors;
+
+    public CompilationResult(Map<String, byte[]> classes, List<String> errors) {
+        this.classes = classes;
+        this.errors = errors;
+    }
+
+    public boolean isSuccess() {
+        return errors.isEmpty();
+    }
+
+    // Binary class name -> class file bytes
+    public Map<String, byte[]> getClasses() {
+        return classes;
+    }
+
+    // Compiler errors formatted as "file:line: message"
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public String formatErrors() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Compilation failed with ").append(errors.size()).append(" error(s):\n");
+        for (String error : errors) {
+            sb.append(error).append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,25 @@
+package com.example;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Process-wide permits shared by all sessions of a batch. Test executions are bounded by local CPU and
+ * memory; API calls are admitted separately by the shared {@link ApiRateLimiter}, which adapts to the
+ * remote quota.
+ */
+public class ConcurrencyLimits {
+
+    private final Semaphore testPermits;
+
+    public ConcurrencyLimits(int maxConcurrentTestRuns) {
+        this.testPermits = new Semaphore(maxConcurrentTestRuns, true);
+    }
+
+    public static ConcurrencyLimits unbounded() {
+        return new ConcurrencyLimits(Integer.MAX_VALUE);
+    }
+
+    public Semaphore getTestPermits() {
+        return testPermits;
+    }
+}
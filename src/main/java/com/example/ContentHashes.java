@@ -0,0 +1,88 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SHA-256 of files the agent wrote, to recognize a write of content the file already has. A recorded hash
+ * is only trusted while the file's size and modification time are unchanged; otherwise the file is read
+ * and hashed again.
+ *
+ * <p>Also the one place the agent computes SHA-256 hashes, e.g. for cache keys.
+ */
+public class ContentHashes {
+
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    public boolean isUnchanged(Path file, byte[] content) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (!attributes.isRegularFile() || attributes.size() != content.length) {
+            return false;
+        }
+        Entry entry = entries.get(file);
+        if (entry == null || !entry.matches(attributes)) {
+            entry = new Entry(sha256(Files.readAllBytes(file)), attributes);
+            entries.put(file, entry);
+        }
+        return Arrays.equals(entry.hash, sha256(content));
+    }
+
+    public void recordWrite(Path file, byte[] content) throws IOException {
+        entries.put(file, new Entry(sha256(content), Files.readAttributes(file, BasicFileAttributes.class)));
+    }
+
+    static byte[] sha256(byte[] content) {
+        return newSha256().digest(content);
+    }
+
+    static String sha256Hex(String content) {
+        return toHex(sha256(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // For content that is hashed in pieces
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static final class Entry {
+        private final byte[] hash;
+        private final long size;
+        private final long modifiedMillis;
+
+        Entry(byte[] hash, BasicFileAttributes attributes) {
+            this.hash = hash;
+            this.size = attributes.size();
+            this.modifiedMillis = attributes.lastModifiedTime().toMillis();
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == modifiedMillis;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Conversation sent to Gemini on every request, kept within a token budget.
+ *
+ * <p>Every message carries an estimated token size. Once the total exceeds the budget, the oldest
+ * superseded payloads are replaced by short stubs: file contents that were written or read again later,
+ * and build logs older than the latest run. The task prompt and the most recent messages are always
+ * kept verbatim.
+ */
+public class ConversationHistory {
+
+    // Common rule of thumb for English text and code
+    static final int BYTES_PER_TOKEN = 4;
+    private static final int KEEP_RECENT_MESSAGES = 4;
+
+    private final int tokenBudget;
+    private final String pinnedFile;
+    private final List<Message> messages = new ArrayList<>();
+    private final Map<String, Integer> fileVersions = new HashMap<>();
+    private int buildCount;
+    private int compactedParts;
+
+    /**
+     * @param pinnedFile file whose reads are never compacted, i.e. the task's test file
+     */
+    public ConversationHistory(int tokenBudget, String pinnedFile) {
+        this.tokenBudget = tokenBudget;
+        this.pinnedFile = pinnedFile;
+    }
+
+    public void addUserMessage(String text) {
+        add("user", new JSONArray().put(new JSONObject().put("text", text)), new ArrayList<>());
+    }
+
+    public void addModelPart(JSONObject part) {
+        addModelParts(new JSONArray().put(part));
+    }
+
+    /**
+     * Adds a model turn with all its parts, e.g. several function calls.
+     */
+    public void addModelParts(JSONArray parts) {
+        List<PartInfo> infos = new ArrayList<>();
+        for (int i = 0; i < parts.length(); i++) {
+            JSONObject functionCall = parts.getJSONObject(i).optJSONObject("functionCall");
+            if (functionCall != null && isFileWrite(functionCall.optString("name"))) {
+                String path = functionCall.getJSONObject("args").optString("filePath");
+                int version = fileVersions.merge(path, 1, Integer::sum);
+                infos.add(new PartInfo(i, Kind.FILE_WRITE, path, version, null));
+            }
+        }
+        add("model", parts, infos);
+    }
+
+    public void addFunctionResult(String toolName, JSONObject args, String result, boolean testsPassed) {
+        ToolCall call = new ToolCall(toolName, args);
+        call.setResult(result, testsPassed);
+        addFunctionResults(List.of(call));
+    }
+
+    /**
+     * Adds the results of all function calls of a model turn as one user turn, in call order.
+     */
+    public void addFunctionResults(List<ToolCall> calls) {
+        JSONArray parts = new JSONArray();
+        List<PartInfo> infos = new ArrayList<>();
+        for (ToolCall call : calls) {
+            String toolName = call.getName();
+            parts.put(new JSONObject().put("functionResponse", new JSONObject()
+                    .put("name", toolName)
+                    .put("response", new JSONObject().put("content", call.getResult()))));
+
+            int index = parts.length() - 1;
+            String path = call.getArgs() == null ? "" : call.getArgs().optString("filePath");
+            if (toolName.equals("read_file")) {
+                infos.add(new PartInfo(index, Kind.FILE_READ, path, fileVersions.getOrDefault(path, 0), null));
+            } else if (isFileWrite(toolName)) {
+                infos.add(new PartInfo(index, Kind.WRITE_RESULT, path, fileVersions.getOrDefault(path, 0), null));
+            } else if (toolName.equals("run_maven_test")) {
+                buildCount++;
+                infos.add(new PartInfo(index, Kind.BUILD_LOG, null, buildCount,
+                        summarizeBuild(buildCount, call.getResult(), call.isTestsPassed())));
+            }
+        }
+        add("user", parts, infos);
+    }
+
+    private static boolean isFileWrite(String toolName) {
+        return toolName.equals("write_file") || toolName.equals("apply_patch");
+    }
+
+    private void add(String role, JSONArray parts, List<PartInfo> infos) {
+        JSONObject message = new JSONObject().put("role", role).put("parts", parts);
+        messages.add(new Message(message, infos));
+    }
+
+    /**
+     * @return the messages to send, compacted first if the budget is exceeded
+     */
+    public JSONArray toJsonArray() {
+        compactIfNeeded();
+        JSONArray contents = new JSONArray();
+        for (Message message : messages) {
+            contents.put(message.json);
+        }
+        return contents;
+    }
+
+    /**
+     * @return the messages to send as UTF-8 JSON, compacted first if the budget is exceeded. Each message
+     *         is encoded once when it is added or compacted, so this does not re-serialize the history.
+     */
+    public List<byte[]> encodedMessages() {
+        compactIfNeeded();
+        List<byte[]> encoded = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            encoded.add(message.encoded);
+        }
+        return encoded;
+    }
+
+    private void compactIfNeeded() {
+        long tokens = getEstimatedTokens();
+        int lastCompactable = messages.size() - KEEP_RECENT_MESSAGES;
+        // Index 0 is the task prompt and stays verbatim
+        for (int i = 1; i < lastCompactable && tokens > tokenBudget; i++) {
+            Message message = messages.get(i);
+            boolean changed = false;
+            for (PartInfo info : message.infos) {
+                if (!info.compacted && !isPinned(info) && isSuperseded(i, info)) {
+                    compact(message, info);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                long before = message.tokens;
+                message.updateSize();
+                tokens -= before - message.tokens;
+            }
+        }
+    }
+
+    private boolean isPinned(PartInfo info) {
+        return info.kind == Kind.FILE_READ && info.path.equals(pinnedFile);
+    }
+
+    // A file payload is superseded by any later write or read of the same file, a build log by any later build
+    private boolean isSuperseded(int index, PartInfo info) {
+        for (int i = index; i < messages.size(); i++) {
+            for (PartInfo later : messages.get(i).infos) {
+                if (i == index && later.partIndex <= info.partIndex) {
+                    continue;
+                }
+                if (info.kind == Kind.BUILD_LOG) {
+                    if (later.kind == Kind.BUILD_LOG) {
+                        return true;
+                    }
+                } else if (later.path != null && later.path.equals(info.path)
+                        && (later.kind == Kind.FILE_WRITE || later.kind == Kind.FILE_READ)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void compact(Message message, PartInfo info) {
+        JSONObject part = message.json.getJSONArray("parts").getJSONObject(info.partIndex);
+        if (info.kind == Kind.FILE_WRITE) {
+            JSONObject args = part.getJSONObject("functionCall").getJSONObject("args");
+            String key = args.has("patch") ? "patch" : "fileContent";
+            String content = args.optString(key);
+            String action = key.equals("patch") ? " patched, " : " written, ";
+            args.put(key, "[file " + info.path + " v" + info.version + action + formatSize(content.length()) +
+                    "; superseded by a later version]");
+        } else {
+            JSONObject response = part.getJSONObject("functionResponse").getJSONObject("response");
+            String content = response.optString("content");
+            String stub;
+            if (info.kind == Kind.BUILD_LOG) {
+                stub = info.summary;
+            } else if (info.kind == Kind.FILE_READ) {
+                stub = "[file " + info.path + " read, " + formatSize(content.length()) +
+                        "; superseded by a later version]";
+            } else {
+                stub = "[file " + info.path + " v" + info.version + " written; result superseded]";
+            }
+            response.put("content", stub);
+        }
+        info.compacted = true;
+        compactedParts++;
+    }
+
+    private static String summarizeBuild(int buildNumber, String result, boolean testsPassed) {
+        String firstLine = result.trim();
+        int newline = firstLine.indexOf('\n');
+        if (newline >= 0) {
+            firstLine = firstLine.substring(0, newline).trim();
+        }
+        return "[build #" + buildNumber + (testsPassed ? " passed" : " failed") + ": " + firstLine + "]";
+    }
+
+    private static String formatSize(int bytes) {
+        return bytes < 1024 ? bytes + " B" : String.format("%.1f KB", bytes / 1024.0);
+    }
+
+    /**
+     * @return the number of leading messages up to the first read of the pinned file, provided compaction can
+     *         never change any of them; 0 if there is no such prefix. It stays the same for the rest of the
+     *         task, so it can be cached server-side.
+     */
+    public int stablePrefixLength() {
+        for (int i = 0; i < messages.size(); i++) {
+            boolean pinnedRead = false;
+            for (PartInfo info : messages.get(i).infos) {
+                if (!isPinned(info)) {
+                    return 0;
+                }
+                pinnedRead = true;
+            }
+            if (pinnedRead) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    public long getEstimatedTokens() {
+        return getEstimatedBytes() / BYTES_PER_TOKEN;
+    }
+
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (Message message : messages) {
+            bytes += message.bytes;
+        }
+        return bytes;
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public int getCompactedParts() {
+        return compactedParts;
+    }
+
+    private static class Message {
+        private final JSONObject json;
+        private final List<PartInfo> infos;
+        private byte[] encoded;
+        private long bytes;
+        private long tokens;
+
+        Message(JSONObject json, List<PartInfo> infos) {
+            this.json = json;
+            this.infos = infos;
+            updateSize();
+        }
+
+        void updateSize() {
+            encoded = json.toString().getBytes(StandardCharsets.UTF_8);
+            bytes = encoded.length;
+            tokens = bytes / BYTES_PER_TOKEN;
+        }
+    }
+
+    private enum Kind { FILE_WRITE, FILE_READ, WRITE_RESULT, BUILD_LOG }
+
+    private static class PartInfo {
+        private final int partIndex;
+        private final Kind kind;
+        private final String path;
+        private final int version;
+        private final String summary;
+        private boolean compacted;
+
+        PartInfo(int partIndex, Kind kind, String path, int version, String summary) {
+            this.partIndex = partIndex;
+            this.kind = kind;
+            this.path = path;
+            this.version = version;
+            this.summary = summary;
+        }
+    }
+}
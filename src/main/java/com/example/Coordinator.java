@@ -0,0 +1,350 @@
+package com.example;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a batch across worker processes on this machine, so that the sessions and their builds are spread
+ * over several JVMs and a session that crashes or hangs its JVM takes only its own task down.
+ *
+ * <p>The tasks go into a {@link WorkQueue} on disk, which {@code tdd.resumeQueue} continues after a crash.
+ * Workers connect to a localhost socket and lease one task at a time; a lease lasts {@code tdd.leaseSeconds}
+ * and is extended by the worker's heartbeats. The task of a worker that disconnects or stops sending
+ * heartbeats is queued again, up to {@code tdd.maxTaskAttempts} times. Spawned workers that exit are replaced
+ * while tasks remain. The results and the metrics of all workers are aggregated into the usual batch summary
+ * and run report.
+ *
+ * <p>Messages are JSON objects, one per line. A worker sends {@code hello}, {@code lease},
+ * {@code heartbeat} and {@code result}; the coordinator answers a lease with {@code task}, {@code wait}
+ * or {@code stop}.
+ */
+public class Coordinator {
+
+    private static final long POLL_MILLIS = 1000;
+    private static final long WAIT_MILLIS = 2000;
+    private static final long SHUTDOWN_SECONDS = 10;
+
+    private final AgentConfig config;
+    private final Path taskFile;
+    private final Metrics metrics;
+    private final long leaseMillis;
+    private final Object progress = new Object();
+    private final Map<String, Process> processes = new ConcurrentHashMap<>();
+    // Every worker reports its cumulative metrics with each result; the latest report counts
+    private final Map<String, JSONObject> workerMetrics = new ConcurrentHashMap<>();
+    private final AtomicInteger workerIds = new AtomicInteger();
+    private WorkQueue queue;
+    private ServerSocket server;
+    private int spawned;
+    private volatile boolean finished;
+
+    public Coordinator(AgentConfig config, Path taskFile) {
+        this.config = config;
+        this.taskFile = taskFile;
+        this.metrics = Metrics.forConfig(config);
+        this.leaseMillis = config.getLeaseSeconds() * 1000L;
+    }
+
+    public List<BatchRunner.TaskResult> run() throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        Path queueFile = config.getBatchWorkDir().resolve("queue-" + taskFile.getFileName() + ".jsonl");
+        queue = WorkQueue.open(queueFile, BatchRunner.readTaskFile(taskFile), config.getMaxTaskAttempts(),
+                config.isResumeQueue());
+        System.out.println("COORDINATOR: Queue " + queueFile + ": " + queue.size() + " task(s), " +
+                queue.countDone() + " already done");
+
+        server = new ServerSocket(config.getCoordinatorPort(), 50, InetAddress.getLoopbackAddress());
+        startThread("coordinator-accept", this::acceptWorkers);
+        if (!config.isSpawnWorkers()) {
+            System.out.println("COORDINATOR: Waiting for workers, start them with: java -cp <classpath> " +
+                    TddAgentMain.class.getName() + " --worker " + address());
+        }
+
+        int maxSpawns = config.getWorkers() + queue.size() * config.getMaxTaskAttempts();
+        try {
+            while (!queue.isFinished()) {
+                reapExpiredLeases();
+                if (config.isSpawnWorkers() && !replaceWorkers(maxSpawns)) {
+                    System.err.println("COORDINATOR: Workers keep exiting, giving up with " +
+                            (queue.size() - queue.countDone()) + " task(s) unfinished");
+                    break;
+                }
+                metrics.setGauge("coordinator_workers", processes.size());
+                synchronized (progress) {
+                    if (!queue.isFinished()) {
+                        progress.wait(POLL_MILLIS);
+                    }
+                }
+            }
+        } finally {
+            finished = true;
+            stopWorkers();
+            server.close();
+        }
+
+        for (JSONObject snapshot : workerMetrics.values()) {
+            metrics.merge(snapshot);
+        }
+        List<BatchRunner.TaskResult> results = new ArrayList<>();
+        for (JSONObject result : queue.results()) {
+            results.add(BatchRunner.TaskResult.fromJson(result));
+        }
+        queue.close();
+        BatchRunner.printSummary(config, results, System.nanoTime() - startNanos);
+        return results;
+    }
+
+    private void acceptWorkers() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                startThread("coordinator-connection", () -> serve(socket));
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    System.err.println("COORDINATOR: Could not accept a worker: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Socket connection) {
+        String worker = null;
+        try (Socket socket = connection;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                     StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                JSONObject message = new JSONObject(line);
+                String type = message.getString("type");
+                if (type.equals("hello")) {
+                    worker = message.getString("worker");
+                    System.out.println("COORDINATOR: Worker " + worker + " (pid " + message.optLong("pid") +
+                            ") connected");
+                } else if (worker == null) {
+                    throw new IOException("'" + type + "' before 'hello'");
+                } else if (type.equals("lease")) {
+                    send(out, leaseTo(worker));
+                } else if (type.equals("heartbeat")) {
+                    queue.heartbeat(message.getInt("taskId"), worker, leaseMillis);
+                } else if (type.equals("result")) {
+                    complete(worker, message);
+                }
+            }
+        } catch (IOException | JSONException e) {
+            System.err.println("COORDINATOR: Connection to worker " + worker + " failed: " + e.getMessage());
+        } finally {
+            if (worker != null) {
+                takeBackLeases(worker, "worker " + worker + " disconnected");
+            }
+        }
+    }
+
+    private JSONObject leaseTo(String worker) throws IOException {
+        WorkQueue.Lease lease = finished ? null : queue.lease(worker, leaseMillis);
+        if (lease != null) {
+            System.out.println("COORDINATOR: Task " + lease.getTaskId() + " (" + lease.getTestFile() + ") leased to " +
+                    worker + (lease.getAttempt() > 1 ? ", attempt " + lease.getAttempt() : ""));
+            return new JSONObject()
+                    .put("type", "task")
+                    .put("taskId", lease.getTaskId())
+                    .put("testFile", lease.getTestFile())
+                    .put("attempt", lease.getAttempt())
+                    .put("leaseSeconds", config.getLeaseSeconds());
+        }
+        // Leased tasks may still come back if their worker dies
+        return finished || queue.isFinished() ? new JSONObject().put("type", "stop")
+                : new JSONObject().put("type", "wait").put("millis", WAIT_MILLIS);
+    }
+
+    private void complete(String worker, JSONObject message) throws IOException {
+        if (message.has("metrics")) {
+            workerMetrics.put(worker, message.getJSONObject("metrics"));
+        }
+        int taskId = message.getInt("taskId");
+        JSONObject result = message.getJSONObject("result");
+        if (queue.complete(taskId, worker, result)) {
+            System.out.println("COORDINATOR: Task " + taskId + " (" + result.getString("testFile") + ") " +
+                    (result.getBoolean("passed") ? "passed" : "failed") + " on " + worker + " in " +
+                    result.optLong("durationMillis") + " ms, " + queue.countDone() + "/" + queue.size() + " done");
+        } else {
+            System.out.println("COORDINATOR: Ignoring the result of task " + taskId + " from " + worker +
+                    ", its lease was taken back");
+        }
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+    }
+
+    private void takeBackLeases(String worker, String reason) {
+        for (WorkQueue.Lease lease : queue.leasesOf(worker)) {
+            requeue(lease, reason);
+        }
+    }
+
+    private void reapExpiredLeases() {
+        for (WorkQueue.Lease lease : queue.expiredLeases(System.currentTimeMillis())) {
+            requeue(lease, "no heartbeat from " + lease.getWorker() + " for " + config.getLeaseSeconds() + " s");
+            // A hung worker would otherwise hold on to its JVM and build processes
+            Process process = processes.get(lease.getWorker());
+            if (process != null) {
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private void requeue(WorkQueue.Lease lease, String reason) {
+        try {
+            boolean requeued = queue.requeue(lease.getTaskId(), lease.getWorker(), reason);
+            metrics.increment("coordinator_lost_leases_total", "outcome", requeued ? "requeued" : "failed");
+            System.out.println("COORDINATOR: Task " + lease.getTaskId() + " (" + lease.getTestFile() + ") " +
+                    (requeued ? "queued again" : "failed after " + lease.getAttempt() + " attempt(s)") + ": " +
+                    reason);
+        } catch (IOException e) {
+            System.err.println("COORDINATOR: Could not re-queue task " + lease.getTaskId() + ": " + e.getMessage());
+        }
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+    }
+
+    // Returns false once the spawn budget is used up and no worker is left
+    private boolean replaceWorkers(int maxSpawns) throws IOException {
+        int wanted = Math.min(config.getWorkers(), queue.size() - queue.countDone());
+        while (processes.size() < wanted) {
+            if (spawned >= maxSpawns) {
+                return !processes.isEmpty();
+            }
+            spawnWorker();
+        }
+        return true;
+    }
+
+    private void spawnWorker() throws IOException {
+        String id = "w" + workerIds.incrementAndGet();
+        Path log = config.getBatchWorkDir().resolve("workers").resolve(id + ".log");
+        Files.createDirectories(log.getParent());
+        Process process = new ProcessBuilder(workerCommand(id))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(log.toFile()))
+                .start();
+        spawned++;
+        processes.put(id, process);
+        metrics.increment("coordinator_workers_spawned_total");
+        System.out.println("COORDINATOR: Worker " + id + " started, pid " + process.pid() + ", log " + log);
+        process.onExit().thenRun(() -> {
+            processes.remove(id);
+            if (!finished) {
+                System.out.println("COORDINATOR: Worker " + id + " exited with code " + process.exitValue());
+            }
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+        });
+    }
+
+    /**
+     * The same JVM, classpath and {@code tdd.*} settings as the coordinator. The shared API limits are
+     * divided among the workers, since each of them enforces its own.
+     */
+    private List<String> workerCommand(String id) {
+        Map<String, String> properties = new TreeMap<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("tdd.")) {
+                properties.put(name, System.getProperty(name));
+            }
+        }
+        int workers = config.getWorkers();
+        properties.put("tdd.apiConcurrency", String.valueOf(Math.max(1, config.getApiConcurrency() / workers)));
+        if (config.getApiRequestsPerMinute() > 0) {
+            properties.put("tdd.apiRequestsPerMinute",
+                    String.valueOf(Math.max(1, config.getApiRequestsPerMinute() / workers)));
+        }
+        if (config.getApiTokensPerMinute() > 0) {
+            properties.put("tdd.apiTokensPerMinute",
+                    String.valueOf(Math.max(1, config.getApiTokensPerMinute() / workers)));
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            command.add("-D" + property.getKey() + "=" + property.getValue());
+        }
+        command.add("-cp");
+        command.add(workerClasspath());
+        command.add(TddAgentMain.class.getName());
+        command.add("--worker");
+        command.add(address());
+        command.add(id);
+        return command;
+    }
+
+    // 'mvn exec:java' loads the agent in a class loader of its own instead of from java.class.path
+    private static String workerClasspath() {
+        ClassLoader loader = Coordinator.class.getClassLoader();
+        if (!(loader instanceof URLClassLoader)) {
+            return System.getProperty("java.class.path");
+        }
+        List<String> entries = new ArrayList<>();
+        for (URL url : ((URLClassLoader) loader).getURLs()) {
+            try {
+                entries.add(Paths.get(url.toURI()).toString());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // Not a local file, which a worker could not load either
+            }
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    // Idle workers are told to stop at their next lease; a worker still running a task at this point is killed
+    private void stopWorkers() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_SECONDS);
+        for (Process process : new ArrayList<>(processes.values())) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !process.waitFor(remaining, TimeUnit.NANOSECONDS)) {
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private String address() {
+        return server.getInetAddress().getHostAddress() + ":" + server.getLocalPort();
+    }
+
+    private static void send(Writer out, JSONObject message) throws IOException {
+        out.write(message + "\n");
+        out.flush();
+    }
+
+    private static void startThread(String name, Runnable body) {
+        Thread thread = new Thread(body, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -1,26 +1,102 @@
 package com.example;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.util.Scanner;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 public class GeminiApiClient {
 
     private final String apiKey;
-    private static final String API_URL = "https://generativelanguage.googleapis.com/v1beta/models/gemini-2.0-flash:generateContent";
+    private final ApiRateLimiter rateLimiter;
+    private final boolean gzipRequests;
+    private final Duration readTimeout;
+    private final ResponseCache responseCache;
+    private final String apiUrl;
+    private final String streamApiUrl;
+    private final String apiBaseUrl;
+    private final String modelName;
+    private final Path recordFile;
+    private final Metrics metrics;
 
     private static final int MAX_RETRIES = 3;
-    private static final int INITIAL_BACKOFF_MS = 1000;
+    private static final Pattern RETRY_DELAY = Pattern.compile("\"retryDelay\"\\s*:\\s*\"(\\d+(?:\\.\\d+)?)s\"");
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(3);
 
+    // One client for the whole process: pooled connections, HTTP/2 multiplexing and no thread per in-flight request
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+
+    // Response bodies are parsed here while they are read from the connection, which blocks on I/O
+    private static final ExecutorService PARSE_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "gemini-response");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final byte[] CONTENTS_PREFIX = "{\"contents\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COMMA = ",".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TOOLS_PREFIX = "],\"tools\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OBJECT_END = "}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ARRAY_END = "]".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] GENERATION_CONFIG_PREFIX = ",\"generationConfig\":".getBytes(StandardCharsets.UTF_8);
 
     public GeminiApiClient(String apiKey) {
+        this(apiKey, new AgentConfig());
+    }
+
+    public GeminiApiClient(String apiKey, AgentConfig config) {
         this.apiKey = apiKey;
+        this.rateLimiter = ApiRateLimiter.forConfig(config);
+        this.gzipRequests = config.isGzipRequests();
+        this.readTimeout = Duration.ofSeconds(config.getApiReadTimeoutSeconds());
+        this.responseCache = ResponseCache.forConfig(config);
+        String modelUrl = config.getApiBaseUrl() + "/models/" + config.getModel();
+        this.apiUrl = modelUrl + ":generateContent";
+        this.streamApiUrl = modelUrl + ":streamGenerateContent";
+        this.apiBaseUrl = config.getApiBaseUrl();
+        this.modelName = "models/" + config.getModel();
+        this.recordFile = config.getRecordFile();
+        this.metrics = Metrics.forConfig(config);
     }
 
     public JSONObject buildRequestBody(JSONArray contents, JSONArray tools) {
@@ -33,71 +109,598 @@ public class GeminiApiClient {
         return request;
     }
 
+    /**
+     * Pre-encodes the tool declarations once; they are identical in every request of a session.
+     */
+    public static byte[] encodeTools(JSONArray tools) {
+        return new JSONArray().put(new JSONObject().put("functionDeclarations", tools)).toString()
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Assembles a request from already encoded messages without copying them: the body is a list of
+     * chunks that is streamed to the connection as is.
+     *
+     * @param tools encoded tool declarations from {@link #encodeTools(JSONArray)}, or {@code null}
+     */
+    public EncodedRequest encodeRequest(List<byte[]> contents, byte[] tools) {
+        return encodeRequest(contents, tools, 1);
+    }
+
+    /**
+     * @param candidateCount number of alternative responses to ask for
+     */
+    public EncodedRequest encodeRequest(List<byte[]> contents, byte[] tools, int candidateCount) {
+        return new EncodedRequest(contents, encode(CONTENTS_PREFIX, contents, tools, candidateCount), null, null);
+    }
+
+    /**
+     * Like {@link #encodeRequest(List, byte[], int)}, but the tool declarations and the first messages are
+     * referenced from cached content instead of being sent. The full request is kept as well: it is the key
+     * of the response cache and is sent instead if the API rejects the cached content.
+     *
+     * @param cachedContent cached content whose messages are a prefix of {@code contents}, or {@code null}
+     */
+    public EncodedRequest encodeRequest(List<byte[]> contents, byte[] tools, int candidateCount,
+                                        CachedContent cachedContent) {
+        EncodedRequest full = encodeRequest(contents, tools, candidateCount);
+        if (cachedContent == null) {
+            return full;
+        }
+        byte[] prefix = ("{\"cachedContent\":" + JSONObject.quote(cachedContent.getName()) + ",\"contents\":[")
+                .getBytes(StandardCharsets.UTF_8);
+        List<byte[]> remaining = contents.subList(cachedContent.getMessageCount(), contents.size());
+        return new EncodedRequest(contents, encode(prefix, remaining, null, candidateCount), cachedContent, full);
+    }
+
+    private static List<byte[]> encode(byte[] prefix, List<byte[]> contents, byte[] tools, int candidateCount) {
+        List<byte[]> chunks = new ArrayList<>(contents.size() * 2 + 5);
+        chunks.add(prefix);
+        for (int i = 0; i < contents.size(); i++) {
+            if (i > 0) {
+                chunks.add(COMMA);
+            }
+            chunks.add(contents.get(i));
+        }
+        if (tools != null) {
+            chunks.add(TOOLS_PREFIX);
+            chunks.add(tools);
+        } else {
+            chunks.add(ARRAY_END);
+        }
+        if (candidateCount > 1) {
+            chunks.add(GENERATION_CONFIG_PREFIX);
+            chunks.add(new JSONObject().put("candidateCount", candidateCount).toString()
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        chunks.add(OBJECT_END);
+        return chunks;
+    }
+
+    /**
+     * Stores the tool declarations and the first messages of a conversation as a {@code cachedContents}
+     * resource that later requests can reference.
+     *
+     * @return the cached content, or {@code null} if the API rejected it for being below the model's minimum
+     *         size for caching
+     * @throws IOException also if the API rejected it for any other reason
+     */
+    public CachedContent createCachedContent(List<byte[]> messages, byte[] tools, long ttlSeconds)
+            throws IOException, InterruptedException {
+        byte[] prefix = ("{\"model\":" + JSONObject.quote(modelName) + ",\"ttl\":\"" + ttlSeconds +
+                "s\",\"contents\":[").getBytes(StandardCharsets.UTF_8);
+        List<byte[]> chunks = encode(prefix, messages, tools, 1);
+        long bytes = 0;
+        for (byte[] chunk : chunks) {
+            bytes += chunk.length;
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(apiBaseUrl + "/cachedContents?key=" + apiKey))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArrays(chunks))
+                .build();
+        JSONObject response = sendCachedContentRequest("create", request, bytes / ConversationHistory.BYTES_PER_TOKEN);
+        if (response == null) {
+            return null;
+        }
+        JSONObject usage = response.optJSONObject("usageMetadata");
+        long tokens = usage == null ? bytes / ConversationHistory.BYTES_PER_TOKEN : usage.optLong("totalTokenCount");
+        return new CachedContent(response.getString("name"), messages, tokens, bytes);
+    }
+
+    /**
+     * @return false if the cached content no longer exists
+     */
+    public boolean updateCachedContentTtl(CachedContent cachedContent, long ttlSeconds)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(apiBaseUrl + "/" + cachedContent.getName() +
+                        "?updateMask=ttl&key=" + apiKey))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .method("PATCH", HttpRequest.BodyPublishers.ofString(
+                        new JSONObject().put("ttl", ttlSeconds + "s").toString()))
+                .build();
+        return sendCachedContentRequest("update", request, 0) != null;
+    }
+
+    public void deleteCachedContent(CachedContent cachedContent) throws IOException, InterruptedException {
+        cachedContent.invalidate();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(apiBaseUrl + "/" + cachedContent.getName() +
+                        "?key=" + apiKey))
+                .timeout(REQUEST_TIMEOUT)
+                .DELETE()
+                .build();
+        sendCachedContentRequest("delete", request, 0);
+    }
+
+    // Null for a 4xx rejection, which the caller handles by not caching; anything else unexpected is an error.
+    // A rejected create is only null when the content is too small, the one rejection that depends on size.
+    private JSONObject sendCachedContentRequest(String operation, HttpRequest request, long estimatedTokens)
+            throws IOException, InterruptedException {
+        ApiRateLimiter.Permit permit = rateLimiter.acquireBlocking(estimatedTokens);
+        HttpResponse<String> response;
+        try {
+            response = HTTP_CLIENT.send(request, responseInfo ->
+                    new IdleTimeoutSubscriber<>(HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8),
+                            readTimeout));
+        } catch (IOException | InterruptedException e) {
+            permit.onError();
+            throw e;
+        }
+        int responseCode = response.statusCode();
+        permit.onResponse(responseCode, 0);
+        metrics.increment("gemini_cached_content_requests_total", "status", operation + "_" + responseCode);
+        if (responseCode == 200) {
+            return response.body().isBlank() ? new JSONObject() : new JSONObject(response.body());
+        }
+        String message = "cachedContents " + operation + " failed with HTTP " + responseCode + ": " +
+                response.body();
+        if (operation.equals("create") && responseCode == 400 && isBelowCachingMinimum(response.body())) {
+            System.err.println("AGENT: " + message);
+            return null;
+        }
+        if (responseCode >= 400 && responseCode < 500 && responseCode != 429 && !operation.equals("create")) {
+            // Deleting content that already expired is not worth a warning
+            if (!(operation.equals("delete") && responseCode == 404)) {
+                System.err.println("AGENT: " + message);
+            }
+            return null;
+        }
+        throw new IOException(message);
+    }
+
+    // "Cached content is too small. total_token_count=..., min_total_token_count=..."
+    private static boolean isBelowCachingMinimum(String errorBody) {
+        return errorBody.contains("min_total_token_count") || errorBody.contains("too small");
+    }
+
     public String callGeminiAPI(JSONArray contents, JSONArray tools) throws Exception {
-        JSONObject requestBody = buildRequestBody(contents, tools);
-        URL url = new URL(API_URL + "?key=" + apiKey);
+        try {
+            return callGeminiApiAsync(contents, tools).get();
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    public CompletableFuture<String> callGeminiApiAsync(JSONArray contents, JSONArray tools) {
+        List<byte[]> messages = new ArrayList<>(contents.length());
+        for (int i = 0; i < contents.length(); i++) {
+            messages.add(contents.getJSONObject(i).toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return generateContentAsync(encodeRequest(messages, tools == null ? null : encodeTools(tools)))
+                .thenApply(JSONObject::toString);
+    }
+
+    public JSONObject generateContent(EncodedRequest request) throws Exception {
+        try {
+            return generateContentAsync(request).get();
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    public CompletableFuture<JSONObject> generateContentAsync(EncodedRequest request) {
+        long startNanos = metrics.startTimer();
+        String cacheKey = responseCache == null ? null : responseCache.key(apiUrl, request.full.chunks);
+        JSONObject cached = cachedResponse(cacheKey, request);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        HttpRequest httpRequest;
+        try {
+            httpRequest = buildHttpRequest(URI.create(apiUrl + "?key=" + apiKey), request, true);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return timed(startNanos, record(request, cacheResponse(cacheKey,
+                sendWithRetry(httpRequest, request, GeminiApiClient::jsonBodyHandler, 1))));
+    }
+
+    /**
+     * Calls {@code streamGenerateContent} and reports text and completed function calls to the listener
+     * while the response is still being generated.
+     *
+     * @return the assembled response in the same format as {@link #generateContent(EncodedRequest)}
+     */
+    public JSONObject streamGenerateContent(EncodedRequest request, StreamListener listener) throws Exception {
+        try {
+            return streamGenerateContentAsync(request, listener).get();
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    public CompletableFuture<JSONObject> streamGenerateContentAsync(EncodedRequest request, StreamListener listener) {
+        long startNanos = metrics.startTimer();
+        // Streamed and non-streamed calls share cache entries: the assembled response has the same format
+        String cacheKey = responseCache == null ? null : responseCache.key(apiUrl, request.full.chunks);
+        JSONObject cached = cachedResponse(cacheKey, request);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
 
-        int attempts = 0;
-        int backoffMs = INITIAL_BACKOFF_MS;
+        HttpRequest httpRequest;
+        try {
+            // No Accept-Encoding here: events must reach the parser as soon as they are flushed
+            httpRequest = buildHttpRequest(URI.create(streamApiUrl + "?alt=sse&key=" + apiKey), request, false);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        Supplier<HttpResponse.BodyHandler<ResponseBody>> handler = () -> responseInfo ->
+                responseInfo.statusCode() == 200
+                        ? streamingBodySubscriber(new StreamingResponseParser(listener))
+                        : errorBodySubscriber(responseInfo);
+        return timed(startNanos, record(request, cacheResponse(cacheKey,
+                sendWithRetry(httpRequest, request, handler, 1))));
+    }
 
-        while (true) {
-            attempts++;
+    private JSONObject cachedResponse(String cacheKey, EncodedRequest request) {
+        String cached = cacheKey == null ? null : responseCache.get(cacheKey, request.getSize());
+        if (cached == null) {
+            return null;
+        }
+        metrics.increment("gemini_cache_hits_total");
+        return new JSONObject(cached);
+    }
 
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
+    // Whole call including retries and backoff, as seen by the caller
+    private CompletableFuture<JSONObject> timed(long startNanos, CompletableFuture<JSONObject> response) {
+        if (!metrics.isEnabled()) {
+            return response;
+        }
+        return response.whenComplete((body, error) ->
+                metrics.recordSince("gemini_call_seconds", "result", error == null ? "ok" : "error", startNanos));
+    }
 
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = requestBody.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
+    private CompletableFuture<JSONObject> cacheResponse(String cacheKey, CompletableFuture<JSONObject> response) {
+        if (cacheKey == null) {
+            return response;
+        }
+        return response.thenApply(body -> {
+            if (body.has("candidates")) {
+                responseCache.put(cacheKey, body.toString());
             }
+            return body;
+        });
+    }
 
-            int responseCode = connection.getResponseCode();
+    private static HttpResponse.BodySubscriber<ResponseBody> streamingBodySubscriber(StreamingResponseParser parser) {
+        return HttpResponse.BodySubscribers.fromLineSubscriber(parser,
+                p -> ResponseBody.parsed(p.getAggregatedJson(), p.getReceivedBytes()), StandardCharsets.UTF_8, null);
+    }
 
-            if (responseCode == 200) {
-                StringBuilder responseBuilder = new StringBuilder();
-                try (Scanner scanner = new Scanner(connection.getInputStream(), StandardCharsets.UTF_8)) {
-                    while (scanner.hasNextLine()) {
-                        responseBuilder.append(scanner.nextLine());
-                    }
+    // Appends live responses to the record file so GeminiStubServer can replay the session offline
+    private CompletableFuture<JSONObject> record(EncodedRequest request, CompletableFuture<JSONObject> response) {
+        if (recordFile == null) {
+            return response;
+        }
+        JSONArray contents = new JSONArray();
+        for (byte[] message : request.messages) {
+            contents.put(new JSONObject(new String(message, StandardCharsets.UTF_8)));
+        }
+        String session = GeminiStubServer.sessionKey(contents);
+        int turn = GeminiStubServer.turnIndex(contents);
+        return response.thenApply(body -> {
+            JSONObject entry = new JSONObject()
+                    .put("session", session)
+                    .put("turn", turn)
+                    .put("response", body);
+            synchronized (GeminiApiClient.class) {
+                try {
+                    Files.write(recordFile, (entry + "\n").getBytes(StandardCharsets.UTF_8),
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                } catch (IOException e) {
+                    System.err.println("Could not record response: " + e.getMessage());
                 }
+            }
+            return body;
+        });
+    }
+
+    private HttpRequest buildHttpRequest(URI uri, EncodedRequest request, boolean acceptGzip) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json");
+        if (acceptGzip) {
+            builder.header("Accept-Encoding", "gzip");
+        }
+        if (gzipRequests) {
+            builder.header("Content-Encoding", "gzip");
+            return builder.POST(HttpRequest.BodyPublishers.ofByteArray(gzip(request.chunks, request.getSize())))
+                    .build();
+        }
+        // The chunks are written to the connection one after another, never joined into one array
+        return builder.POST(HttpRequest.BodyPublishers.ofByteArrays(request.chunks)).build();
+    }
+
+    // Bytes on the wire: the gzip-compressed body when compression is on
+    private static long requestBytes(HttpRequest httpRequest, EncodedRequest request) {
+        long length = httpRequest.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(-1L);
+        return length >= 0 ? length : request.getSize();
+    }
+
+    private CompletableFuture<JSONObject> sendWithRetry(HttpRequest request, EncodedRequest encoded,
+                                                        Supplier<HttpResponse.BodyHandler<ResponseBody>> bodyHandler,
+                                                        int attempt) {
+        // Admitted per attempt only, so a request waiting in backoff does not block other sessions. Cached
+        // tokens still count against the quota.
+        return rateLimiter.acquire(encoded.full.getSize() / ConversationHistory.BYTES_PER_TOKEN)
+                .thenCompose(permit -> sendAttempt(request, encoded, bodyHandler, attempt, permit));
+    }
+
+    private CompletableFuture<JSONObject> sendAttempt(HttpRequest request, EncodedRequest encoded,
+                                                      Supplier<HttpResponse.BodyHandler<ResponseBody>> bodyHandler,
+                                                      int attempt, ApiRateLimiter.Permit permit) {
+        long attemptNanos = metrics.startTimer();
+        metrics.add("gemini_request_bytes_total", requestBytes(request, encoded));
+        if (encoded.cachedContent != null) {
+            metrics.add("gemini_cached_prefix_bytes_total", encoded.full.getSize() - encoded.getSize());
+        }
+        HttpResponse.BodyHandler<ResponseBody> handler = bodyHandler.get();
+        return HTTP_CLIENT.sendAsync(request, responseInfo ->
+                        new IdleTimeoutSubscriber<>(handler.apply(responseInfo), readTimeout))
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        permit.onError();
+                        metrics.increment("gemini_http_responses_total", "status", "io_error");
+                    }
+                })
+                .thenComposeAsync(response -> {
+                    int responseCode = response.statusCode();
+                    metrics.increment("gemini_http_responses_total", "status", String.valueOf(responseCode));
+
+                    if (responseCode == 200) {
+                        try {
+                            JSONObject json = response.body().toJson();
+                            metrics.recordSince("gemini_attempt_seconds", attemptNanos);
+                            metrics.add("gemini_response_bytes_total", response.body().bytes);
+                            JSONObject usage = json.optJSONObject("usageMetadata");
+                            permit.onResponse(responseCode, usage == null ? 0 : usage.optLong("promptTokenCount"));
+                            recordUsage(usage);
+                            return CompletableFuture.completedFuture(json);
+                        } catch (IOException | RuntimeException e) {
+                            permit.onError();
+                            return CompletableFuture.failedFuture(e);
+                        }
+                    }
+
+                    // Handle all other response codes as errors
+                    permit.onResponse(responseCode, 0);
+                    metrics.recordSince("gemini_attempt_seconds", attemptNanos);
+                    metrics.add("gemini_response_bytes_total", response.body().bytes);
+                    String body = response.body().error;
+                    String errorResponse = body.isEmpty() ? "No error stream available." : body;
+                    System.err.println("API call failed with code " + responseCode + ". Response: " + errorResponse);
+
+                    // Expired, deleted or not usable with this request: the prefix is sent again instead
+                    if (encoded.cachedContent != null
+                            && (responseCode == 400 || responseCode == 403 || responseCode == 404)) {
+                        encoded.cachedContent.invalidate();
+                        System.err.println("AGENT: Cached content " + encoded.cachedContent.getName() +
+                                " rejected, sending the full request");
+                        metrics.increment("gemini_cached_content_fallbacks_total");
+                        try {
+                            HttpRequest fullRequest = buildHttpRequest(request.uri(), encoded.full,
+                                    request.headers().firstValue("Accept-Encoding").isPresent());
+                            return sendWithRetry(fullRequest, encoded.full, bodyHandler, attempt);
+                        } catch (IOException e) {
+                            return CompletableFuture.failedFuture(e);
+                        }
+                    }
+
+                    if ((responseCode == 429 || responseCode >= 500) && attempt < MAX_RETRIES) {
+                        long backoffMs = rateLimiter.backoffMillis(attempt, retryAfterMillis(response, body));
+                        System.err.println("Attempt " + attempt + " failed. Retrying in " + backoffMs + " ms (" +
+                                rateLimiter.formatState() + ")...");
+                        metrics.increment("gemini_retries_total", "status", String.valueOf(responseCode));
+                        metrics.recordNanos("gemini_backoff_seconds", null, null,
+                                TimeUnit.MILLISECONDS.toNanos(backoffMs));
+                        return CompletableFuture.supplyAsync(() -> null,
+                                        CompletableFuture.delayedExecutor(backoffMs, TimeUnit.MILLISECONDS))
+                                .thenCompose(ignored -> sendWithRetry(request, encoded, bodyHandler, attempt + 1));
+                    }
+                    return CompletableFuture.failedFuture(new IOException("Server returned HTTP response code: " +
+                            responseCode + " for URL: " + request.uri().getPath() + ". Response: " + errorResponse));
+                }, PARSE_EXECUTOR);
+    }
 
-                return responseBuilder.toString();
-            } else {
-                // Handle all other response codes as errors
-                String errorResponse = handleHttpError(connection);
-                System.err.println("API call failed with code " + responseCode + ". Response: " + errorResponse);
-
-                if ((responseCode == 429 || responseCode >= 500) && attempts < MAX_RETRIES) {
-                    System.err.println("Attempt " + attempts + " failed. Retrying in " + backoffMs + " ms...");
-                    Thread.sleep(backoffMs);
-                    backoffMs *= 2; // Exponential backoff
-                } else {
-                    throw new IOException("Server returned HTTP response code: " + responseCode + " for URL: " + url +
-                            ". Response: " + errorResponse);
+    /**
+     * @return the delay the server asked for, from the {@code Retry-After} header (seconds or HTTP date) or the
+     * {@code retryDelay} of a Gemini quota error, or -1 if there is none
+     */
+    static long retryAfterMillis(HttpResponse<?> response, String errorBody) {
+        Optional<String> header = response.headers().firstValue("Retry-After");
+        if (header.isPresent()) {
+            String value = header.get().trim();
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+            } catch (NumberFormatException e) {
+                try {
+                    ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+                    return Math.max(0, Duration.between(Instant.now(), date.toInstant()).toMillis());
+                } catch (DateTimeParseException ignored) {
+                    // Fall through to the body
                 }
             }
         }
+        Matcher matcher = RETRY_DELAY.matcher(errorBody);
+        if (matcher.find()) {
+            return (long) (Double.parseDouble(matcher.group(1)) * 1000);
+        }
+        return -1;
+    }
+
+    private void recordUsage(JSONObject usage) {
+        if (usage == null || !metrics.isEnabled()) {
+            return;
+        }
+        metrics.add("gemini_prompt_tokens_total", usage.optLong("promptTokenCount"));
+        metrics.add("gemini_candidates_tokens_total", usage.optLong("candidatesTokenCount"));
+        metrics.add("gemini_total_tokens_total", usage.optLong("totalTokenCount"));
+        metrics.add("gemini_cached_tokens_total", usage.optLong("cachedContentTokenCount"));
+    }
+
+    // A successful body is only wrapped here and parsed later on PARSE_EXECUTOR, never on the client's threads
+    private static HttpResponse.BodyHandler<ResponseBody> jsonBodyHandler() {
+        return responseInfo -> responseInfo.statusCode() == 200
+                ? HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(),
+                        in -> ResponseBody.pending(in, isGzipped(responseInfo)))
+                : errorBodySubscriber(responseInfo);
+    }
+
+    private static HttpResponse.BodySubscriber<ResponseBody> errorBodySubscriber(
+            HttpResponse.ResponseInfo responseInfo) {
+        return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(),
+                body -> ResponseBody.error(decodeBody(isGzipped(responseInfo), body), body.length));
+    }
 
+    private static boolean isGzipped(HttpResponse.ResponseInfo responseInfo) {
+        return responseInfo.headers().firstValue("Content-Encoding")
+                .map(encoding -> encoding.equalsIgnoreCase("gzip"))
+                .orElse(false);
+    }
+
+    private static String decodeBody(boolean gzipped, byte[] body) {
+        if (gzipped) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                body = in.readAllBytes();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return new String(body, StandardCharsets.UTF_8);
     }
 
-    private String handleHttpError(HttpURLConnection connection) {
-        InputStream errorStream = connection.getErrorStream();
-        if (errorStream == null) {
-            return "No error stream available.";
+    /**
+     * Parses a response straight from the connection's input stream and keeps only what the agent uses:
+     * the candidates' content and finish reason, usage metadata and errors. Safety ratings, citations and
+     * other metadata are dropped.
+     */
+    static JSONObject parseTrimmed(InputStream in) throws IOException {
+        JSONObject full;
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            full = new JSONObject(new JSONTokener(reader));
+        } catch (JSONException e) {
+            // The tokenizer wraps read errors; the body stream wraps the idle timeout once more
+            if (e.getCause() instanceof IOException) {
+                IOException cause = (IOException) e.getCause();
+                throw cause.getCause() instanceof IOException ? (IOException) cause.getCause() : cause;
+            }
+            throw e;
+        }
+        JSONObject trimmed = new JSONObject();
+        JSONArray candidates = full.optJSONArray("candidates");
+        if (candidates != null) {
+            JSONArray kept = new JSONArray();
+            for (int i = 0; i < candidates.length(); i++) {
+                JSONObject candidate = candidates.getJSONObject(i);
+                JSONObject keptCandidate = new JSONObject();
+                if (candidate.has("content")) {
+                    keptCandidate.put("content", candidate.get("content"));
+                }
+                if (candidate.has("finishReason")) {
+                    keptCandidate.put("finishReason", candidate.get("finishReason"));
+                }
+                kept.put(keptCandidate);
+            }
+            trimmed.put("candidates", kept);
         }
-        StringBuilder errorBuilder = new StringBuilder();
-        try (Scanner scanner = new Scanner(errorStream, StandardCharsets.UTF_8)) {
-            while (scanner.hasNextLine()) {
-                errorBuilder.append(scanner.nextLine());
+        for (String key : new String[] {"usageMetadata", "error", "promptFeedback"}) {
+            if (full.has(key)) {
+                trimmed.put(key, full.get(key));
             }
         }
-        return errorBuilder.toString();
+        return trimmed;
+    }
+
+    private static byte[] gzip(List<byte[]> chunks, long size) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) (size / 4) + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(buffer)) {
+            for (byte[] chunk : chunks) {
+                out.write(chunk);
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    private static Exception unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof UncheckedIOException)
+                && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error instanceof Exception ? (Exception) error : new IOException(error);
     }
 
     public JSONObject parseResponse(String response) {
-        JSONObject jsonResponse = new JSONObject(response);
+        return parseResponse(new JSONObject(response));
+    }
+
+    /**
+     * @return all parts of the first candidate, e.g. several function calls; a single error part like
+     *         {@link #parseResponse(JSONObject)} returns if there is no usable candidate
+     */
+    public List<JSONObject> parseParts(JSONObject jsonResponse) {
+        List<JSONObject> parts = new ArrayList<>();
+        JSONArray candidates = jsonResponse.optJSONArray("candidates");
+        JSONObject content = candidates == null || candidates.isEmpty() ? null
+                : candidates.getJSONObject(0).optJSONObject("content");
+        JSONArray candidateParts = content == null ? null : content.optJSONArray("parts");
+        for (int i = 0; candidateParts != null && i < candidateParts.length(); i++) {
+            parts.add(candidateParts.getJSONObject(i));
+        }
+        if (parts.isEmpty()) {
+            parts.add(parseResponse(jsonResponse));
+        }
+        return parts;
+    }
+
+    /**
+     * @return all parts of every candidate, in the order returned; a single candidate with the error part
+     *         {@link #parseResponse(JSONObject)} returns if there are no usable candidates
+     */
+    public List<List<JSONObject>> parseCandidates(JSONObject jsonResponse) {
+        List<List<JSONObject>> result = new ArrayList<>();
+        JSONArray candidates = jsonResponse.optJSONArray("candidates");
+        for (int i = 0; candidates != null && i < candidates.length(); i++) {
+            JSONObject content = candidates.getJSONObject(i).optJSONObject("content");
+            JSONArray candidateParts = content == null ? null : content.optJSONArray("parts");
+            if (candidateParts == null || candidateParts.isEmpty()) {
+                continue;
+            }
+            List<JSONObject> parts = new ArrayList<>();
+            for (int j = 0; j < candidateParts.length(); j++) {
+                parts.add(candidateParts.getJSONObject(j));
+            }
+            result.add(parts);
+        }
+        if (result.isEmpty()) {
+            result.add(List.of(parseResponse(jsonResponse)));
+        }
+        return result;
+    }
+
+    public JSONObject parseResponse(JSONObject jsonResponse) {
         // Check if the API returned an error instead of candidates
         if (!jsonResponse.has("candidates")) {
             System.err.println("Error: API response did not contain 'candidates'. Full response:");
@@ -120,4 +723,171 @@ public class GeminiApiClient {
         }
     }
 
+    /**
+     * A request body as a list of UTF-8 chunks. Encoded messages are shared with the conversation history,
+     * so assembling a request allocates only the chunk list, regardless of how long the history is.
+     */
+    public static final class EncodedRequest {
+        private final List<byte[]> messages;
+        private final List<byte[]> chunks;
+        private final CachedContent cachedContent;
+        private final EncodedRequest full;
+        private final long size;
+
+        EncodedRequest(List<byte[]> messages, List<byte[]> chunks, CachedContent cachedContent, EncodedRequest full) {
+            this.messages = messages;
+            this.chunks = chunks;
+            this.cachedContent = cachedContent;
+            this.full = full == null ? this : full;
+            long total = 0;
+            for (byte[] chunk : chunks) {
+                total += chunk.length;
+            }
+            this.size = total;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getMessageCount() {
+            return messages.size();
+        }
+
+        /**
+         * @return the number of messages referenced from cached content instead of being sent
+         */
+        public int getCachedMessageCount() {
+            return cachedContent == null ? 0 : cachedContent.getMessageCount();
+        }
+
+        public boolean usesCachedContent() {
+            return cachedContent != null;
+        }
+    }
+
+    /**
+     * A {@code cachedContents} resource holding the tool declarations and the first messages of a conversation.
+     */
+    public static final class CachedContent {
+        private final String name;
+        private final List<byte[]> messages;
+        private final long tokenCount;
+        private final long bytes;
+        private volatile boolean valid = true;
+
+        CachedContent(String name, List<byte[]> messages, long tokenCount, long bytes) {
+            this.name = name;
+            this.messages = List.copyOf(messages);
+            this.tokenCount = tokenCount;
+            this.bytes = bytes;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMessageCount() {
+            return messages.size();
+        }
+
+        public long getTokenCount() {
+            return tokenCount;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return whether the content can still be referenced by a request for these messages: it has not been
+         *         rejected or deleted, and its messages are the unchanged start of the conversation
+         */
+        public boolean covers(List<byte[]> contents) {
+            if (!valid || contents.size() <= messages.size()) {
+                return false;
+            }
+            for (int i = 0; i < messages.size(); i++) {
+                if (!Arrays.equals(messages.get(i), contents.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+
+        public void invalidate() {
+            valid = false;
+        }
+    }
+
+    private static final class ResponseBody {
+        private final InputStream stream;
+        private final boolean gzipped;
+        private final JSONObject json;
+        private final String error;
+        // Bytes received on the wire, known once the body has been read
+        private long bytes;
+
+        private ResponseBody(InputStream stream, boolean gzipped, JSONObject json, String error, long bytes) {
+            this.stream = stream;
+            this.gzipped = gzipped;
+            this.json = json;
+            this.error = error;
+            this.bytes = bytes;
+        }
+
+        static ResponseBody pending(InputStream stream, boolean gzipped) {
+            return new ResponseBody(stream, gzipped, null, null, 0);
+        }
+
+        static ResponseBody parsed(JSONObject json, long bytes) {
+            return new ResponseBody(null, false, json, null, bytes);
+        }
+
+        static ResponseBody error(String error, long bytes) {
+            return new ResponseBody(null, false, null, error, bytes);
+        }
+
+        JSONObject toJson() throws IOException {
+            if (json != null) {
+                return json;
+            }
+            CountingInputStream counted = new CountingInputStream(stream);
+            try {
+                return parseTrimmed(gzipped ? new GZIPInputStream(counted) : counted);
+            } finally {
+                bytes = counted.count;
+            }
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
 }
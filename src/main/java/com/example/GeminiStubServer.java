@@ -0,0 +1,536 @@
+package com.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local stand-in for the Gemini API, used to run the full agent loop offline and to load-test it.
+ *
+ * <p>Responses come from a recording made with {@code -Dtdd.recordFile=...} (JSONL, matched by session and
+ * turn) or from a script: a JSON array with one entry per model turn, each a full response, a single part
+ * or an array of parts. The turn is the number of model messages already in the request, so any number of
+ * concurrent sessions can be served without server-side state. Latency, 429/5xx faults and a request rate
+ * cap can be injected.
+ *
+ * <p>The {@code cachedContents} endpoints (create, get, update TTL, delete) are implemented as well. A request
+ * referencing cached content is answered as if the cached messages preceded its own; creation can be
+ * rejected below a minimum size like the real API does ({@code --cache-min-tokens}).
+ *
+ * <p>Start it with {@code mvn exec:java -Dexec.args="--stub-server --port 8089 --script session.json"} and
+ * point the agent at it with {@code -Dtdd.apiBaseUrl=http://localhost:8089/v1beta}.
+ */
+public class GeminiStubServer {
+
+    private int port = 8089;
+    private int threads = 64;
+    private long latencyMs;
+    private long jitterMs;
+    private long chunkDelayMs;
+    private double fault429Rate;
+    private double fault5xxRate;
+    private double maxRequestsPerSecond;
+    private long cacheMinTokens;
+
+    // "session#turn" -> response, plus turn -> response for scripts and as fallback for unknown sessions
+    private final Map<String, JSONObject> sessionResponses = new HashMap<>();
+    private final Map<Integer, JSONObject> turnResponses = new HashMap<>();
+    private final Map<String, CachedContent> cachedContents = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedFaults = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong cacheIds = new AtomicLong();
+    private final AtomicLong cachedRequests = new AtomicLong();
+    private final AtomicLong cachedTokens = new AtomicLong();
+    private long nextRequestSlotNanos;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public static void main(String[] args) throws Exception {
+        GeminiStubServer stub = new GeminiStubServer();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            if (value == null) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            i++;
+            switch (option) {
+                case "--port":          stub.setPort(Integer.parseInt(value)); break;
+                case "--threads":       stub.setThreads(Integer.parseInt(value)); break;
+                case "--replay":        stub.loadRecording(Paths.get(value)); break;
+                case "--script":        stub.loadScript(Paths.get(value)); break;
+                case "--latency-ms":    stub.setLatencyMs(Long.parseLong(value)); break;
+                case "--jitter-ms":     stub.setJitterMs(Long.parseLong(value)); break;
+                case "--chunk-delay-ms": stub.setChunkDelayMs(Long.parseLong(value)); break;
+                case "--fault-429":     stub.setFault429Rate(Double.parseDouble(value)); break;
+                case "--fault-5xx":     stub.setFault5xxRate(Double.parseDouble(value)); break;
+                case "--max-rps":       stub.setMaxRequestsPerSecond(Double.parseDouble(value)); break;
+                case "--cache-min-tokens": stub.setCacheMinTokens(Long.parseLong(value)); break;
+                default:                throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        stub.start();
+        System.out.println("STUB: Gemini stand-in listening on http://localhost:" + stub.getPort() + "/v1beta");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(stub.formatStats())));
+    }
+
+    public GeminiStubServer setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    public GeminiStubServer setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public GeminiStubServer setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+        return this;
+    }
+
+    public GeminiStubServer setJitterMs(long jitterMs) {
+        this.jitterMs = jitterMs;
+        return this;
+    }
+
+    public GeminiStubServer setChunkDelayMs(long chunkDelayMs) {
+        this.chunkDelayMs = chunkDelayMs;
+        return this;
+    }
+
+    public GeminiStubServer setFault429Rate(double fault429Rate) {
+        this.fault429Rate = fault429Rate;
+        return this;
+    }
+
+    public GeminiStubServer setFault5xxRate(double fault5xxRate) {
+        this.fault5xxRate = fault5xxRate;
+        return this;
+    }
+
+    public GeminiStubServer setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+        return this;
+    }
+
+    public GeminiStubServer setCacheMinTokens(long cacheMinTokens) {
+        this.cacheMinTokens = cacheMinTokens;
+        return this;
+    }
+
+    public GeminiStubServer loadRecording(Path recordFile) throws IOException {
+        for (String line : Files.readAllLines(recordFile, StandardCharsets.UTF_8)) {
+            if (line.isBlank()) {
+                continue;
+            }
+            JSONObject entry = new JSONObject(line);
+            int turn = entry.getInt("turn");
+            JSONObject response = entry.getJSONObject("response");
+            sessionResponses.put(entry.getString("session") + "#" + turn, response);
+            turnResponses.putIfAbsent(turn, response);
+        }
+        return this;
+    }
+
+    public GeminiStubServer loadScript(Path scriptFile) throws IOException {
+        JSONArray script = new JSONArray(new String(Files.readAllBytes(scriptFile), StandardCharsets.UTF_8));
+        for (int turn = 0; turn < script.length(); turn++) {
+            turnResponses.put(turn, toResponse(script.get(turn)));
+        }
+        return this;
+    }
+
+    private static JSONObject toResponse(Object entry) {
+        if (entry instanceof JSONObject && ((JSONObject) entry).has("candidates")) {
+            return (JSONObject) entry;
+        }
+        JSONArray parts = entry instanceof JSONArray ? (JSONArray) entry : new JSONArray().put(entry);
+        JSONObject content = new JSONObject().put("role", "model").put("parts", parts);
+        return new JSONObject().put("candidates",
+                new JSONArray().put(new JSONObject().put("content", content).put("finishReason", "STOP")));
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    public int getPort() {
+        return server == null ? port : server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            if ("GET".equals(exchange.getRequestMethod()) && path.endsWith("/stats")) {
+                send(exchange, 200, statsJson().toString(), false);
+                return;
+            }
+
+            if (path.contains("/cachedContents")) {
+                handleCachedContents(exchange, path);
+                return;
+            }
+
+            boolean streaming = path.endsWith(":streamGenerateContent");
+            if (!"POST".equals(exchange.getRequestMethod())
+                    || !(streaming || path.endsWith(":generateContent"))) {
+                send(exchange, 404, error(404, "Unknown endpoint " + path), false);
+                return;
+            }
+
+            JSONObject request = new JSONObject(new String(readBody(exchange), StandardCharsets.UTF_8));
+            requests.incrementAndGet();
+            awaitRequestSlot();
+            sleep(latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0));
+
+            double dice = ThreadLocalRandom.current().nextDouble();
+            if (dice < fault429Rate) {
+                injectedFaults.incrementAndGet();
+                send(exchange, 429, error(429, "Resource has been exhausted (injected by stub)."), false);
+                return;
+            }
+            if (dice < fault429Rate + fault5xxRate) {
+                injectedFaults.incrementAndGet();
+                send(exchange, 503, error(503, "The model is overloaded (injected by stub)."), false);
+                return;
+            }
+
+            CachedContent cached = null;
+            if (request.has("cachedContent")) {
+                cached = liveCachedContent(request.getString("cachedContent"));
+                if (cached == null) {
+                    send(exchange, 403, error(403, "CachedContent not found (or permission denied)"), false);
+                    return;
+                }
+                if (request.has("tools") || request.has("systemInstruction") || request.has("toolConfig")) {
+                    send(exchange, 400, error(400, "CachedContent can not be used with GenerateContent request " +
+                            "setting system_instruction, tools or tool_config."), false);
+                    return;
+                }
+            }
+
+            JSONObject response = responseFor(request, cached);
+            if (streaming) {
+                sendStream(exchange, response);
+            } else {
+                boolean gzip = exchange.getRequestHeaders().getOrDefault("Accept-Encoding", List.of()).stream()
+                        .anyMatch(value -> value.contains("gzip"));
+                send(exchange, 200, response.toString(), gzip);
+            }
+        } catch (Exception e) {
+            send(exchange, 500, error(500, "Stub failure: " + e), false);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private JSONObject responseFor(JSONObject request, CachedContent cached) {
+        JSONArray contents = request.optJSONArray("contents");
+        if (contents == null) {
+            contents = new JSONArray();
+        }
+        if (cached != null) {
+            JSONArray combined = new JSONArray(cached.contents.toList());
+            contents.forEach(combined::put);
+            contents = combined;
+        }
+        int turn = turnIndex(contents);
+        JSONObject response = sessionResponses.get(sessionKey(contents) + "#" + turn);
+        if (response == null) {
+            response = turnResponses.get(turn);
+        }
+        if (response == null) {
+            response = toResponse(new JSONObject().put("text", "Stub has no response for turn " + turn + "."));
+        }
+
+        response = new JSONObject(response.toString());
+        if (!response.has("usageMetadata")) {
+            // Rough estimate (4 bytes per token) so token accounting can be exercised offline
+            long cachedTokenCount = cached == null ? 0 : cached.tokens;
+            long promptTokens = request.toString().length() / 4 + cachedTokenCount;
+            long candidateTokens = response.toString().length() / 4;
+            JSONObject usage = new JSONObject()
+                    .put("promptTokenCount", promptTokens)
+                    .put("candidatesTokenCount", candidateTokens)
+                    .put("totalTokenCount", promptTokens + candidateTokens);
+            if (cached != null) {
+                usage.put("cachedContentTokenCount", cachedTokenCount);
+            }
+            response.put("usageMetadata", usage);
+        }
+        if (cached != null) {
+            cachedRequests.incrementAndGet();
+            cachedTokens.addAndGet(cached.tokens);
+        }
+        return response;
+    }
+
+    private void handleCachedContents(HttpExchange exchange, String path) throws IOException {
+        String method = exchange.getRequestMethod();
+        String name = path.substring(path.indexOf("cachedContents"));
+        if ("POST".equals(method) && name.equals("cachedContents")) {
+            byte[] body = readBody(exchange);
+            JSONObject request = new JSONObject(new String(body, StandardCharsets.UTF_8));
+            requests.incrementAndGet();
+            long tokens = body.length / 4;
+            if (tokens < cacheMinTokens) {
+                send(exchange, 400, error(400, "Cached content is too small. total_token_count=" + tokens +
+                        ", min_total_token_count=" + cacheMinTokens), false);
+                return;
+            }
+            CachedContent cached = new CachedContent("cachedContents/stub-" + cacheIds.incrementAndGet(),
+                    request.optString("model"), request.optJSONArray("contents") == null ? new JSONArray()
+                    : request.getJSONArray("contents"), tokens, ttlMillis(request));
+            cachedContents.put(cached.name, cached);
+            send(exchange, 200, cached.toJson().toString(), false);
+            return;
+        }
+
+        requests.incrementAndGet();
+        CachedContent cached = liveCachedContent(name);
+        if (cached == null) {
+            send(exchange, 404, error(404, "CachedContent not found (or permission denied)"), false);
+        } else if ("GET".equals(method)) {
+            send(exchange, 200, cached.toJson().toString(), false);
+        } else if ("PATCH".equals(method)) {
+            cached.expireMillis = System.currentTimeMillis() +
+                    ttlMillis(new JSONObject(new String(readBody(exchange), StandardCharsets.UTF_8)));
+            send(exchange, 200, cached.toJson().toString(), false);
+        } else if ("DELETE".equals(method)) {
+            cachedContents.remove(name);
+            send(exchange, 200, "{}", false);
+        } else {
+            send(exchange, 404, error(404, "Unknown endpoint " + path), false);
+        }
+    }
+
+    private CachedContent liveCachedContent(String name) {
+        CachedContent cached = cachedContents.get(name);
+        if (cached != null && cached.expireMillis < System.currentTimeMillis()) {
+            cachedContents.remove(name);
+            return null;
+        }
+        return cached;
+    }
+
+    // "300s" or "1.5s"; the API's default is one hour
+    private static long ttlMillis(JSONObject request) {
+        String ttl = request.optString("ttl", "3600s");
+        return (long) (Double.parseDouble(ttl.substring(0, ttl.length() - 1)) * 1000);
+    }
+
+    // Session identity is the task prompt, the first message of every conversation
+    static String sessionKey(JSONArray contents) {
+        JSONObject first = contents.optJSONObject(0);
+        JSONArray parts = first == null ? null : first.optJSONArray("parts");
+        JSONObject part = parts == null ? null : parts.optJSONObject(0);
+        return ContentHashes.sha256Hex(part == null ? "" : part.optString("text", part.toString()));
+    }
+
+    static int turnIndex(JSONArray contents) {
+        int turn = 0;
+        for (int i = 0; i < contents.length(); i++) {
+            JSONObject message = contents.optJSONObject(i);
+            if (message != null && "model".equals(message.optString("role"))) {
+                turn++;
+            }
+        }
+        return turn;
+    }
+
+    // Simple throughput cap: requests are spaced 1/maxRequestsPerSecond apart
+    private void awaitRequestSlot() {
+        if (maxRequestsPerSecond <= 0) {
+            return;
+        }
+        long intervalNanos = (long) (1_000_000_000L / maxRequestsPerSecond);
+        long slot;
+        synchronized (this) {
+            long now = System.nanoTime();
+            slot = Math.max(now, nextRequestSlotNanos);
+            nextRequestSlotNanos = slot + intervalNanos;
+        }
+        sleep((slot - System.nanoTime()) / 1_000_000);
+    }
+
+    private void sendStream(HttpExchange exchange, JSONObject response) throws IOException {
+        JSONObject candidate = response.getJSONArray("candidates").getJSONObject(0);
+        JSONArray parts = candidate.getJSONObject("content").getJSONArray("parts");
+
+        List<JSONObject> chunkParts = new ArrayList<>();
+        for (int i = 0; i < parts.length(); i++) {
+            JSONObject part = parts.getJSONObject(i);
+            if (part.has("text") && part.length() == 1) {
+                // Text is streamed in a few pieces, function calls always arrive whole
+                String text = part.getString("text");
+                int pieceLength = Math.max(1, text.length() / 3);
+                for (int start = 0; start < text.length(); start += pieceLength) {
+                    String piece = text.substring(start, Math.min(text.length(), start + pieceLength));
+                    chunkParts.add(new JSONObject().put("text", piece));
+                }
+            } else {
+                chunkParts.add(part);
+            }
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            for (int i = 0; i < chunkParts.size(); i++) {
+                JSONObject chunkCandidate = new JSONObject().put("content", new JSONObject().put("role", "model")
+                        .put("parts", new JSONArray().put(chunkParts.get(i))));
+                JSONObject chunk = new JSONObject().put("candidates", new JSONArray().put(chunkCandidate));
+                if (i == chunkParts.size() - 1) {
+                    chunkCandidate.put("finishReason", candidate.optString("finishReason", "STOP"));
+                    chunk.put("usageMetadata", response.get("usageMetadata"));
+                }
+                byte[] event = ("data: " + chunk + "\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+                out.write(event);
+                out.flush();
+                bytesOut.addAndGet(event.length);
+                if (i < chunkParts.size() - 1) {
+                    sleep(chunkDelayMs);
+                }
+            }
+        }
+    }
+
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readAllBytes();
+        }
+        bytesIn.addAndGet(body.length);
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                body = in.readAllBytes();
+            }
+        }
+        return body;
+    }
+
+    private void send(HttpExchange exchange, int status, String body, boolean gzip) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            exchange.sendResponseHeaders(status, 0);
+            try (OutputStream out = new GZIPOutputStream(exchange.getResponseBody())) {
+                out.write(bytes);
+            }
+        } else {
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        bytesOut.addAndGet(bytes.length);
+    }
+
+    private static String error(int code, String message) {
+        JSONObject error = new JSONObject()
+                .put("code", code)
+                .put("message", message)
+                .put("status", code == 429 ? "RESOURCE_EXHAUSTED" : code == 404 ? "NOT_FOUND"
+                        : code == 403 ? "PERMISSION_DENIED" : code == 400 ? "INVALID_ARGUMENT" : "UNAVAILABLE");
+        if (code == 429) {
+            // Quota errors of the real API say when to retry
+            error.put("details", new JSONArray().put(new JSONObject()
+                    .put("@type", "type.googleapis.com/google.rpc.RetryInfo")
+                    .put("retryDelay", "1s")));
+        }
+        return new JSONObject().put("error", error).toString();
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public JSONObject statsJson() {
+        return new JSONObject()
+                .put("requests", requests.get())
+                .put("injectedFaults", injectedFaults.get())
+                .put("bytesIn", bytesIn.get())
+                .put("bytesOut", bytesOut.get())
+                .put("cachedContents", cachedContents.size())
+                .put("cachedRequests", cachedRequests.get())
+                .put("cachedTokens", cachedTokens.get());
+    }
+
+    public String formatStats() {
+        return "STUB: " + requests.get() + " request(s), " + injectedFaults.get() + " injected fault(s), " +
+                bytesIn.get() / 1024 + " KB in, " + bytesOut.get() / 1024 + " KB out, " + cachedRequests.get() +
+                " request(s) with cached content (" + cachedTokens.get() + " tokens), " + cachedContents.size() +
+                " cached content(s) left";
+    }
+
+    private static final class CachedContent {
+        private final String name;
+        private final String model;
+        private final JSONArray contents;
+        private final long tokens;
+        private volatile long expireMillis;
+
+        CachedContent(String name, String model, JSONArray contents, long tokens, long ttlMillis) {
+            this.name = name;
+            this.model = model;
+            this.contents = contents;
+            this.tokens = tokens;
+            this.expireMillis = System.currentTimeMillis() + ttlMillis;
+        }
+
+        JSONObject toJson() {
+            return new JSONObject()
+                    .put("name", name)
+                    .put("model", model)
+                    .put("expireTime", Instant.ofEpochMilli(expireMillis).toString())
+                    .put("usageMetadata", new JSONObject().put("totalTokenCount", tokens));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example;
+
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fails a response body that stops arriving. The request timeout only covers the wait for the response
+ * headers, so a server that stalls in the middle of a body or a stream that goes quiet would otherwise hold
+ * the call, and its rate limiter permit, forever.
+ *
+ * <p>The clock restarts with every chunk received. When it runs out, the connection's subscription is
+ * cancelled and the wrapped subscriber fails with an {@link HttpTimeoutException}; that completes the body
+ * future, and a thread blocked reading an {@code ofInputStream} body gets the exception from {@code read}.
+ */
+final class IdleTimeoutSubscriber<T> implements HttpResponse.BodySubscriber<T> {
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "gemini-read-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HttpResponse.BodySubscriber<T> delegate;
+    private final long timeoutNanos;
+    private Flow.Subscription subscription;
+    private ScheduledFuture<?> check;
+    private long lastChunkNanos;
+    private boolean done;
+
+    IdleTimeoutSubscriber(HttpResponse.BodySubscriber<T> delegate, Duration timeout) {
+        this.delegate = delegate;
+        this.timeoutNanos = timeout.toNanos();
+    }
+
+    @Override
+    public CompletionStage<T> getBody() {
+        return delegate.getBody();
+    }
+
+    // Signals to the delegate are serialized with a timeout that may fire on the timer thread
+    @Override
+    public synchronized void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        lastChunkNanos = System.nanoTime();
+        check = TIMER.schedule(this::check, timeoutNanos, TimeUnit.NANOSECONDS);
+        delegate.onSubscribe(subscription);
+    }
+
+    @Override
+    public synchronized void onNext(List<ByteBuffer> item) {
+        if (done) {
+            return;
+        }
+        lastChunkNanos = System.nanoTime();
+        delegate.onNext(item);
+    }
+
+    @Override
+    public synchronized void onError(Throwable throwable) {
+        if (finish()) {
+            delegate.onError(throwable);
+        }
+    }
+
+    @Override
+    public synchronized void onComplete() {
+        if (finish()) {
+            delegate.onComplete();
+        }
+    }
+
+    private boolean finish() {
+        if (done) {
+            return false;
+        }
+        done = true;
+        if (check != null) {
+            check.cancel(false);
+        }
+        return true;
+    }
+
+    private synchronized void check() {
+        if (done) {
+            return;
+        }
+        long idleNanos = System.nanoTime() - lastChunkNanos;
+        if (idleNanos < timeoutNanos) {
+            check = TIMER.schedule(this::check, timeoutNanos - idleNanos, TimeUnit.NANOSECONDS);
+            return;
+        }
+        finish();
+        subscription.cancel();
+        delegate.onError(new HttpTimeoutException("No response data received for " +
+                TimeUnit.NANOSECONDS.toSeconds(idleNanos) + " s"));
+    }
+}
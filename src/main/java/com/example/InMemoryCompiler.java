@@ -0,0 +1,406 @@
+package com.example;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles Java sources held in memory with {@link javax.tools.JavaCompiler} and keeps the
+ * resulting class files in memory as well, so no build directory is touched.
+ *
+ * <p>Compilation is incremental: class files are cached per source file and keyed by the SHA-256 of
+ * its content. Only changed sources and the sources that reference types declared in them are handed
+ * to javac; every other type is served to the compiler from the cache.
+ */
+public class InMemoryCompiler {
+
+    private static final Pattern TYPE_DECLARATION =
+            Pattern.compile("\\b(?:class|interface|enum|record)\\s+([A-Za-z_$][A-Za-z0-9_$]*)");
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*");
+    // <maven.compiler.release>, the compiler plugin's <release>, or the older source/target pair
+    private static final Pattern POM_RELEASE = Pattern.compile(
+            "<(?:maven\\.compiler\\.)?(release|target|source)>\\s*(?:1\\.)?(\\d+)\\s*</");
+    static final int DEFAULT_RELEASE = 11;
+
+    private final JavaCompiler compiler;
+    private final List<String> options;
+
+    // Relative source path -> last successfully compiled state of that source
+    private final Map<String, CachedSource> cache = new HashMap<>();
+
+    /**
+     * @param projectDir sandbox whose {@code pom.xml} gives the Java release to compile for; the classpath is
+     *                   still the agent's own, not the project's dependencies
+     */
+    public InMemoryCompiler(Path projectDir) {
+        this.compiler = ToolProvider.getSystemJavaCompiler();
+        if (this.compiler == null) {
+            throw new IllegalStateException("No system Java compiler available. The agent must run on a JDK.");
+        }
+        this.options = Arrays.asList("--release", String.valueOf(releaseOf(projectDir)),
+                "-classpath", agentClassPath(), "-proc:none", "-g");
+    }
+
+    /**
+     * @return the Java release the project's pom compiles for, {@value #DEFAULT_RELEASE} if it names none, and
+     * at most the release of the JDK the agent runs on
+     */
+    static int releaseOf(Path projectDir) {
+        int release = DEFAULT_RELEASE;
+        try {
+            String pom = Files.readString(projectDir.resolve("pom.xml"));
+            Matcher matcher = POM_RELEASE.matcher(pom);
+            String found = null;
+            while (matcher.find()) {
+                // A release setting wins over source/target
+                if (found == null || matcher.group(1).equals("release")) {
+                    found = matcher.group(2);
+                }
+            }
+            if (found != null) {
+                release = Integer.parseInt(found);
+            }
+        } catch (IOException | NumberFormatException e) {
+            // No readable pom: keep the default
+        }
+        return Math.min(release, Runtime.version().feature());
+    }
+
+    /**
+     * @param sources relative source path (used in diagnostics) -> source code
+     * @return the class files of all given sources, freshly compiled or taken from the cache
+     */
+    public synchronized CompilationResult compile(Map<String, String> sources) throws IOException {
+        Map<String, String> hashes = new HashMap<>();
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, String> entry : sources.entrySet()) {
+            String hash = ContentHashes.sha256Hex(entry.getValue());
+            hashes.put(entry.getKey(), hash);
+            CachedSource cached = cache.get(entry.getKey());
+            if (cached == null || !cached.hash.equals(hash)) {
+                changed.add(entry.getKey());
+            }
+        }
+
+        Set<String> removed = new HashSet<>(cache.keySet());
+        removed.removeAll(sources.keySet());
+        for (String path : removed) {
+            cache.remove(path);
+        }
+
+        Set<String> toCompile = withDependents(sources, changed, removed);
+        if (toCompile.isEmpty()) {
+            return new CompilationResult(allCachedClasses(), new ArrayList<>());
+        }
+
+        List<JavaFileObject> units = new ArrayList<>();
+        for (String path : toCompile) {
+            units.add(new SourceFile(path, sources.get(path)));
+        }
+
+        // Everything not being recompiled is provided to javac from the cache
+        Map<String, byte[]> classPathClasses = new HashMap<>();
+        for (Map.Entry<String, CachedSource> entry : cache.entrySet()) {
+            if (!toCompile.contains(entry.getKey())) {
+                classPathClasses.putAll(entry.getValue().classes);
+            }
+        }
+
+        Map<String, Map<String, byte[]>> outputBySource = new HashMap<>();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        StandardJavaFileManager standardManager = compiler.getStandardFileManager(diagnostics, Locale.ROOT,
+                StandardCharsets.UTF_8);
+
+        try (MemoryFileManager fileManager = new MemoryFileManager(standardManager, classPathClasses,
+                outputBySource)) {
+            compiler.getTask(null, fileManager, diagnostics, options, null, units).call();
+        }
+
+        List<String> errors = formatErrors(diagnostics);
+        if (!errors.isEmpty()) {
+            // Leave the cache untouched so the failing sources are compiled again next time
+            return new CompilationResult(new HashMap<>(), errors);
+        }
+
+        for (String path : toCompile) {
+            String source = sources.get(path);
+            Map<String, byte[]> classes = outputBySource.getOrDefault(path, new HashMap<>());
+            cache.put(path, new CachedSource(hashes.get(path), declaredTypes(source), identifiers(source), classes));
+        }
+        return new CompilationResult(allCachedClasses(), errors);
+    }
+
+    // Changed sources plus, transitively, every source mentioning a type declared in one of them
+    private Set<String> withDependents(Map<String, String> sources, Set<String> changed, Set<String> removed) {
+        Set<String> result = new HashSet<>(changed);
+        Set<String> dirtyTypes = new HashSet<>();
+        for (String path : changed) {
+            dirtyTypes.addAll(declaredTypes(sources.get(path)));
+            CachedSource previous = cache.get(path);
+            if (previous != null) {
+                dirtyTypes.addAll(previous.declaredTypes);
+            }
+        }
+        // Types of removed sources are gone from the cache already; any cached source might have used them
+        boolean anyRemoved = !removed.isEmpty();
+
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (Map.Entry<String, CachedSource> entry : cache.entrySet()) {
+                String path = entry.getKey();
+                if (result.contains(path)) {
+                    continue;
+                }
+                CachedSource cached = entry.getValue();
+                if (anyRemoved || !disjoint(cached.identifiers, dirtyTypes)) {
+                    result.add(path);
+                    dirtyTypes.addAll(cached.declaredTypes);
+                    grown = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean disjoint(Set<String> a, Set<String> b) {
+        for (String s : b) {
+            if (a.contains(s)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Map<String, byte[]> allCachedClasses() {
+        Map<String, byte[]> classes = new HashMap<>();
+        for (CachedSource cached : cache.values()) {
+            classes.putAll(cached.classes);
+        }
+        return classes;
+    }
+
+    private static Set<String> declaredTypes(String source) {
+        Set<String> types = new HashSet<>();
+        Matcher matcher = TYPE_DECLARATION.matcher(source);
+        while (matcher.find()) {
+            types.add(matcher.group(1));
+        }
+        return types;
+    }
+
+    private static Set<String> identifiers(String source) {
+        Set<String> identifiers = new HashSet<>();
+        Matcher matcher = IDENTIFIER.matcher(source);
+        while (matcher.find()) {
+            identifiers.add(matcher.group());
+        }
+        return identifiers;
+    }
+
+    private static List<String> formatErrors(DiagnosticCollector<JavaFileObject> diagnostics) {
+        List<String> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
+            if (d.getKind() != Diagnostic.Kind.ERROR) {
+                continue;
+            }
+            String file = d.getSource() instanceof SourceFile
+                    ? ((SourceFile) d.getSource()).relativePath
+                    : String.valueOf(d.getSource());
+            errors.add(file + ":" + d.getLineNumber() + ": " + d.getMessage(Locale.ROOT));
+        }
+        return errors;
+    }
+
+    /**
+     * Reads all {@code .java} files below the given source roots of the sandbox.
+     *
+     * @return relative source path -> source code
+     */
+    public static Map<String, String> readSources(Path sandboxPath, String... sourceRoots) throws IOException {
+        Map<String, String> sources = new TreeMap<>();
+        for (String root : sourceRoots) {
+            Path rootPath = sandboxPath.resolve(root);
+            if (!Files.isDirectory(rootPath)) {
+                continue;
+            }
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(rootPath)) {
+                files = walk.filter(p -> p.toString().endsWith(".java")).collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                String relativePath = sandboxPath.relativize(file).toString().replace('\\', '/');
+                sources.put(relativePath, new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            }
+        }
+        return sources;
+    }
+
+    // Class path of the agent itself, which already contains the JUnit API the sandbox tests compile against.
+    // Under 'mvn exec:java' the project dependencies live in a URLClassLoader, not on java.class.path.
+    static String agentClassPath() {
+        Set<String> entries = new LinkedHashSet<>();
+        for (ClassLoader cl = InMemoryCompiler.class.getClassLoader(); cl != null; cl = cl.getParent()) {
+            if (cl instanceof URLClassLoader) {
+                for (URL url : ((URLClassLoader) cl).getURLs()) {
+                    if ("file".equals(url.getProtocol())) {
+                        try {
+                            entries.add(Paths.get(url.toURI()).toString());
+                        } catch (Exception e) {
+                            // Not a plain file URL, skip it
+                        }
+                    }
+                }
+            }
+        }
+        String classPath = System.getProperty("java.class.path", "");
+        if (!classPath.isEmpty()) {
+            entries.addAll(Arrays.asList(classPath.split(File.pathSeparator)));
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private static class CachedSource {
+        private final String hash;
+        private final Set<String> declaredTypes;
+        private final Set<String> identifiers;
+        private final Map<String, byte[]> classes;
+
+        CachedSource(String hash, Set<String> declaredTypes, Set<String> identifiers, Map<String, byte[]> classes) {
+            this.hash = hash;
+            this.declaredTypes = declaredTypes;
+            this.identifiers = identifiers;
+            this.classes = classes;
+        }
+    }
+
+    private static class SourceFile extends SimpleJavaFileObject {
+        private final String relativePath;
+        private final String code;
+
+        SourceFile(String relativePath, String code) {
+            super(URI.create("string:///" + relativePath.replace('\\', '/')), Kind.SOURCE);
+            this.relativePath = relativePath;
+            this.code = code;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return code;
+        }
+    }
+
+    private static class ClassFile extends SimpleJavaFileObject {
+        private final String className;
+        private final Map<String, byte[]> classes;
+
+        ClassFile(String className, Map<String, byte[]> classes) {
+            super(URI.create("mem:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            this.className = className;
+            this.classes = classes;
+        }
+
+        @Override
+        public InputStream openInputStream() {
+            return new ByteArrayInputStream(classes.get(className));
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    classes.put(className, toByteArray());
+                }
+            };
+        }
+    }
+
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, byte[]> classPathClasses;
+        private final Map<String, Map<String, byte[]>> outputBySource;
+
+        MemoryFileManager(StandardJavaFileManager fileManager, Map<String, byte[]> classPathClasses,
+                          Map<String, Map<String, byte[]>> outputBySource) {
+            super(fileManager);
+            this.classPathClasses = classPathClasses;
+            this.outputBySource = outputBySource;
+        }
+
+        @Override
+        public Iterable<JavaFileObject> list(JavaFileManager.Location location, String packageName,
+                                             Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+            Iterable<JavaFileObject> standard = super.list(location, packageName, kinds, recurse);
+            if (location != StandardLocation.CLASS_PATH || !kinds.contains(JavaFileObject.Kind.CLASS)) {
+                return standard;
+            }
+
+            // Cached sandbox classes come first so they shadow anything with the same name on the agent class path
+            List<JavaFileObject> result = new ArrayList<>();
+            String prefix = packageName.isEmpty() ? "" : packageName + ".";
+            for (String className : classPathClasses.keySet()) {
+                if (!className.startsWith(prefix)) {
+                    continue;
+                }
+                String rest = className.substring(prefix.length());
+                if (recurse || rest.indexOf('.') < 0) {
+                    result.add(new ClassFile(className, classPathClasses));
+                }
+            }
+            for (JavaFileObject file : standard) {
+                result.add(file);
+            }
+            return result;
+        }
+
+        @Override
+        public String inferBinaryName(JavaFileManager.Location location, JavaFileObject file) {
+            if (file instanceof ClassFile) {
+                return ((ClassFile) file).className;
+            }
+            return super.inferBinaryName(location, file);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(JavaFileManager.Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) {
+            String sourcePath = sibling instanceof SourceFile ? ((SourceFile) sibling).relativePath : "";
+            return new ClassFile(className, outputBySource.computeIfAbsent(sourcePath, k -> new HashMap<>()));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.example;
+
+import org.junit.platform.launcher.Launcher;
+import org.junit.platform.launcher.LauncherDiscoveryRequest;
+import org.junit.platform.launcher.core.LauncherFactory;
+import org.junit.platform.launcher.listeners.SummaryGeneratingListener;
+import org.junit.platform.launcher.listeners.TestExecutionSummary;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.platform.engine.discovery.DiscoverySelectors.selectClass;
+import static org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder.request;
+
+/**
+ * Compiles the sandbox in memory and runs the task's test class through the JUnit Platform Launcher
+ * inside the agent's JVM, avoiding a Maven fork per iteration.
+ */
+public class InProcessTestRunner implements TestRunner {
+
+    static final String[] SOURCE_ROOTS = {"src/main/java", "src/test/java"};
+    private static final int MAX_STACK_FRAMES = 3;
+
+    private final Path sandboxPath;
+    private final String testClassName;
+    private final InMemoryCompiler compiler;
+    private final int testMethodTimeoutSeconds;
+    private Launcher launcher;
+
+    /**
+     * @param testMethodTimeoutSeconds a test running longer fails with a timeout. Its thread cannot be stopped
+     *                                 and is abandoned, so the Maven runner is the safer choice for code that hangs.
+     */
+    public InProcessTestRunner(Path sandboxPath, String testFilePath, InMemoryCompiler compiler,
+                               int testMethodTimeoutSeconds) {
+        this.sandboxPath = sandboxPath;
+        this.testClassName = TestRunner.testClassNameOf(testFilePath);
+        this.compiler = compiler;
+        this.testMethodTimeoutSeconds = testMethodTimeoutSeconds;
+    }
+
+    @Override
+    public String getName() {
+        return "in-process";
+    }
+
+    @Override
+    public TestRunResult runTests() throws Exception {
+        System.out.println("AGENT: Compiling sandbox and running " + testClassName + " in-process...");
+        CompilationResult compilation = compiler.compile(InMemoryCompiler.readSources(sandboxPath, SOURCE_ROOTS));
+        if (!compilation.isSuccess()) {
+            return new TestRunResult(false, "BUILD FAILED. The AI must fix the compile errors.\n\n" +
+                    compilation.formatErrors());
+        }
+
+        MemoryClassLoader classLoader = new MemoryClassLoader(compilation.getClasses(), getClass().getClassLoader());
+        Thread currentThread = Thread.currentThread();
+        ClassLoader previousClassLoader = currentThread.getContextClassLoader();
+        currentThread.setContextClassLoader(classLoader);
+        try {
+            Class<?> testClass;
+            try {
+                testClass = classLoader.loadClass(testClassName);
+            } catch (ClassNotFoundException | LinkageError e) {
+                return new TestRunResult(false, "Could not load test class " + testClassName + ": " + e);
+            }
+
+            // In a separate thread a looping test fails at the timeout instead of blocking the session
+            LauncherDiscoveryRequest discoveryRequest = request().selectors(selectClass(testClass))
+                    .configurationParameter("junit.jupiter.execution.timeout.default",
+                            testMethodTimeoutSeconds + "s")
+                    .configurationParameter("junit.jupiter.execution.timeout.thread.mode.default", "SEPARATE_THREAD")
+                    .build();
+            SummaryGeneratingListener listener = new SummaryGeneratingListener();
+            getLauncher().execute(discoveryRequest, listener);
+            return buildReport(listener.getSummary(), compilation.getClasses());
+        } finally {
+            currentThread.setContextClassLoader(previousClassLoader);
+        }
+    }
+
+    private synchronized Launcher getLauncher() {
+        if (launcher == null) {
+            launcher = LauncherFactory.create();
+        }
+        return launcher;
+    }
+
+    private TestRunResult buildReport(TestExecutionSummary summary, Map<String, byte[]> userClasses) {
+        boolean success = summary.getTotalFailureCount() == 0 && summary.getTestsFoundCount() > 0;
+
+        StringBuilder report = new StringBuilder();
+        report.append(success ? "TESTS PASSED" : "TESTS FAILED").append(" for ").append(testClassName).append("\n");
+        report.append("Tests found: ").append(summary.getTestsFoundCount())
+                .append(", succeeded: ").append(summary.getTestsSucceededCount())
+                .append(", failed: ").append(summary.getTestsFailedCount())
+                .append(", aborted: ").append(summary.getTestsAbortedCount())
+                .append(", skipped: ").append(summary.getTestsSkippedCount()).append("\n");
+
+        if (summary.getTestsFoundCount() == 0) {
+            report.append("No tests were found in ").append(testClassName).append(".\n");
+        }
+
+        for (TestExecutionSummary.Failure failure : summary.getFailures()) {
+            Throwable exception = failure.getException();
+            report.append("\nFAILED: ").append(failure.getTestIdentifier().getDisplayName()).append("\n");
+            report.append("  ").append(exception.getClass().getName()).append(": ")
+                    .append(exception.getMessage()).append("\n");
+
+            int frames = 0;
+            for (StackTraceElement frame : exception.getStackTrace()) {
+                if (frames >= MAX_STACK_FRAMES) {
+                    break;
+                }
+                if (userClasses.containsKey(frame.getClassName())) {
+                    report.append("    at ").append(frame).append("\n");
+                    frames++;
+                }
+            }
+        }
+
+        return new TestRunResult(success, report.toString(), (int) summary.getTestsFoundCount(),
+                (int) summary.getTotalFailureCount());
+    }
+}
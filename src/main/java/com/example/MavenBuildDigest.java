@@ -0,0 +1,205 @@
+package com.example;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Condenses a Maven test run into what the model needs: compile errors by file:line, test counts,
+ * failing tests with their assertion messages and the top stack frames in user code. Test results
+ * come from the surefire XML reports rather than from scraping the console output.
+ */
+public class MavenBuildDigest {
+
+    // [ERROR] /abs/path/src/main/java/com/example/Foo.java:[12,5] cannot find symbol
+    private static final Pattern COMPILE_ERROR =
+            Pattern.compile("^\\[ERROR\\] (.+\\.java):\\[(\\d+),(\\d+)\\] (.*)$");
+    private static final Pattern COMPILE_ERROR_DETAIL =
+            Pattern.compile("^(?:\\[ERROR\\]\\s+)?(symbol|location):\\s*(.*)$");
+    private static final String[] FRAMEWORK_PREFIXES = {"org.junit.", "org.opentest4j.", "org.apache.maven.",
+            "java.", "javax.", "jdk.", "sun."};
+    private static final int MAX_STACK_FRAMES = 3;
+    private static final int FALLBACK_LOG_LINES = 40;
+
+    private final List<String> compileErrors = new ArrayList<>();
+    private final List<String> failures = new ArrayList<>();
+    private int testsRun;
+    private int testsFailed;
+    private int testsErrored;
+    private int testsSkipped;
+    private int reportCount;
+
+    /**
+     * @param runStartMillis reports older than this (with 1 s slack for coarse file times) belong to an
+     *                       earlier run and are ignored
+     */
+    public static TestRunResult create(Path sandboxPath, String log, int exitCode, long runStartMillis,
+                                       Path logFile) {
+        MavenBuildDigest digest = new MavenBuildDigest();
+        digest.parseCompileErrors(sandboxPath, log);
+        digest.parseSurefireReports(sandboxPath.resolve("target/surefire-reports"), runStartMillis);
+        return digest.toResult(sandboxPath, log, exitCode, logFile);
+    }
+
+    private void parseCompileErrors(Path sandboxPath, String log) {
+        // Maven repeats every compiler error in its failure summary, a set drops the duplicates
+        Set<String> errors = new LinkedHashSet<>();
+        String current = null;
+        for (String line : log.split("\n")) {
+            Matcher error = COMPILE_ERROR.matcher(line.trim());
+            if (error.matches()) {
+                if (current != null) {
+                    errors.add(current);
+                }
+                current = relativize(sandboxPath, error.group(1)) + ":" + error.group(2) + ": " + error.group(4);
+                continue;
+            }
+            Matcher detail = COMPILE_ERROR_DETAIL.matcher(line.trim());
+            if (current != null && detail.matches()) {
+                current += "\n  " + detail.group(1) + ": " + detail.group(2);
+            } else if (current != null) {
+                errors.add(current);
+                current = null;
+            }
+        }
+        if (current != null) {
+            errors.add(current);
+        }
+        compileErrors.addAll(errors);
+    }
+
+    private static String relativize(Path sandboxPath, String file) {
+        Path path = Paths.get(file);
+        return path.startsWith(sandboxPath) ? sandboxPath.relativize(path).toString().replace(File.separatorChar, '/')
+                : file;
+    }
+
+    private void parseSurefireReports(Path reportsDir, long runStartMillis) {
+        if (!Files.isDirectory(reportsDir)) {
+            return;
+        }
+        try (DirectoryStream<Path> reports = Files.newDirectoryStream(reportsDir, "TEST-*.xml")) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            for (Path report : reports) {
+                if (Files.getLastModifiedTime(report).toMillis() < runStartMillis - 1000) {
+                    continue;
+                }
+                parseReport(builder.parse(report.toFile()));
+                reportCount++;
+            }
+        } catch (Exception e) {
+            System.err.println("AGENT: Could not parse surefire reports: " + e.getMessage());
+        }
+    }
+
+    private void parseReport(Document document) {
+        Element suite = document.getDocumentElement();
+        testsRun += intAttribute(suite, "tests");
+        testsFailed += intAttribute(suite, "failures");
+        testsErrored += intAttribute(suite, "errors");
+        testsSkipped += intAttribute(suite, "skipped");
+
+        NodeList testCases = suite.getElementsByTagName("testcase");
+        for (int i = 0; i < testCases.getLength(); i++) {
+            Element testCase = (Element) testCases.item(i);
+            Element problem = firstChild(testCase, "failure");
+            if (problem == null) {
+                problem = firstChild(testCase, "error");
+            }
+            if (problem == null) {
+                continue;
+            }
+
+            StringBuilder failure = new StringBuilder();
+            failure.append("FAILED: ").append(testCase.getAttribute("classname")).append('.')
+                    .append(testCase.getAttribute("name")).append('\n');
+            failure.append("  ").append(problem.getAttribute("type")).append(": ")
+                    .append(problem.getAttribute("message")).append('\n');
+            int frames = 0;
+            for (String line : problem.getTextContent().split("\n")) {
+                String trimmed = line.trim();
+                if (frames < MAX_STACK_FRAMES && trimmed.startsWith("at ") && isUserFrame(trimmed.substring(3))) {
+                    failure.append("    ").append(trimmed).append('\n');
+                    frames++;
+                }
+            }
+            failures.add(failure.toString());
+        }
+    }
+
+    private static boolean isUserFrame(String frame) {
+        for (String prefix : FRAMEWORK_PREFIXES) {
+            if (frame.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Element firstChild(Element parent, String tagName) {
+        NodeList children = parent.getElementsByTagName(tagName);
+        return children.getLength() == 0 ? null : (Element) children.item(0);
+    }
+
+    private static int intAttribute(Element element, String name) {
+        String value = element.getAttribute(name);
+        return value.isEmpty() ? 0 : Integer.parseInt(value);
+    }
+
+    private TestRunResult toResult(Path sandboxPath, String log, int exitCode, Path logFile) {
+        // Agent state is not readable with read_file; the path is for whoever inspects the session
+        String logNote = logFile == null ? "" : "\nFull Maven log (not readable with read_file): " +
+                sandboxPath.relativize(logFile).toString().replace(File.separatorChar, '/') + "\n";
+
+        if (!compileErrors.isEmpty()) {
+            StringBuilder report = new StringBuilder();
+            report.append("BUILD FAILED with ").append(compileErrors.size()).append(" compile error(s):\n");
+            for (String error : compileErrors) {
+                report.append(error).append('\n');
+            }
+            return new TestRunResult(false, report + logNote);
+        }
+
+        if (reportCount == 0) {
+            // Neither compiler errors nor test reports, e.g. dependency resolution failed: show the end of the log
+            String[] lines = log.split("\n");
+            StringBuilder tail = new StringBuilder();
+            for (int i = Math.max(0, lines.length - FALLBACK_LOG_LINES); i < lines.length; i++) {
+                tail.append(lines[i]).append('\n');
+            }
+            return new TestRunResult(false, "BUILD FAILED (exit code " + exitCode + ") without test results. " +
+                    "Last lines of the Maven log:\n" + tail + logNote);
+        }
+
+        boolean success = exitCode == 0 && testsRun > 0 && testsFailed == 0 && testsErrored == 0;
+        StringBuilder report = new StringBuilder();
+        report.append(success ? "TESTS PASSED" : "TESTS FAILED")
+                .append("\nTests run: ").append(testsRun)
+                .append(", failures: ").append(testsFailed)
+                .append(", errors: ").append(testsErrored)
+                .append(", skipped: ").append(testsSkipped).append('\n');
+        for (String failure : failures) {
+            report.append('\n').append(failure);
+        }
+        if (!success && failures.isEmpty()) {
+            report.append("\nMaven exited with code ").append(exitCode).append(".\n");
+        }
+        return new TestRunResult(success, report + logNote, testsRun, testsFailed + testsErrored);
+    }
+}
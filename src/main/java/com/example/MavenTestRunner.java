@@ -0,0 +1,109 @@
+package com.example;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+public class MavenTestRunner implements TestRunner {
+
+    private final Path sandboxPath;
+    private final String testClassName;
+    private final String mode;
+    private final boolean regressionOnGreen;
+    private final ProcessRunner processRunner;
+    private final long timeoutSeconds;
+    private final long testMethodTimeoutSeconds;
+    private final String maxHeap;
+    private final int cpus;
+    private int buildNumber;
+
+    public MavenTestRunner(Path sandboxPath, String testFilePath, AgentConfig config) {
+        this.sandboxPath = sandboxPath;
+        this.testClassName = TestRunner.testClassNameOf(testFilePath);
+        this.mode = config.getMavenMode();
+        this.regressionOnGreen = config.isMavenRegression();
+        this.timeoutSeconds = config.getTestTimeoutSeconds();
+        this.testMethodTimeoutSeconds = config.getTestMethodTimeoutSeconds();
+        this.maxHeap = config.getTestJvmMaxHeap();
+        this.cpus = config.getTestJvmCpus();
+        this.processRunner = new ProcessRunner(TimeUnit.SECONDS.toMillis(timeoutSeconds),
+                config.getTestOutputLimitKb() * 1024);
+    }
+
+    @Override
+    public String getName() {
+        return "maven-" + mode;
+    }
+
+    @Override
+    public TestRunResult runTests() throws Exception {
+        if (!AgentConfig.MAVEN_MODE_TARGETED.equals(mode)) {
+            return runMaven("mvn clean test");
+        }
+
+        // Incremental build of the task's test class only, without dependency resolution against remote repos
+        TestRunResult targeted = runMaven("mvn -o -B test -Dtest=" + testClassName +
+                " -Dsurefire.skipAfterFailureCount=1");
+        if (!targeted.isSuccess() || !regressionOnGreen) {
+            return targeted;
+        }
+
+        System.out.println("AGENT: Targeted test passed, running full regression...");
+        TestRunResult regression = runMaven("mvn -o -B test");
+        return new TestRunResult(regression.isSuccess(), "Targeted run of " + testClassName + " passed. " +
+                "Full regression run:\n\n" + regression.getOutput(), regression.getTestsRun(),
+                regression.getTestsFailed());
+    }
+
+    private TestRunResult runMaven(String command) throws Exception {
+        command += " \"-DargLine=" + forkedJvmArgs() + "\"";
+        System.out.println("AGENT: Running '" + command + "'...");
+        String os =  System.getProperty("os.name").toLowerCase();
+        ProcessBuilder pb;
+        if (os.contains("win")) {
+            pb = new ProcessBuilder("cmd.exe", "/c", command);
+        } else {
+            pb = new ProcessBuilder("sh", "-c", command);
+        }
+
+        // Set the working directory for the Maven command
+        pb.directory(this.sandboxPath.toFile());
+        String mavenOpts = pb.environment().get("MAVEN_OPTS");
+        pb.environment().put("MAVEN_OPTS", (mavenOpts == null ? "" : mavenOpts + " ") + jvmLimits());
+
+        long startMillis = System.currentTimeMillis();
+        // The model only gets the digest, the raw log is kept for humans
+        buildNumber++;
+        Path logFile = sandboxPath.resolve(".agent/logs/build-" + buildNumber + ".log");
+        ProcessRunner.Result run = processRunner.run(pb, logFile);
+
+        TestRunResult digest = MavenBuildDigest.create(sandboxPath, run.getOutput(), run.getExitCode(), startMillis,
+                logFile);
+        if (!run.isTimedOut() && !run.isTruncated()) {
+            return digest;
+        }
+        String report = digest.getOutput();
+        if (run.isTruncated()) {
+            report += "Note: the build printed " + run.getTotalLines() + " lines; " + run.getOmittedLines() +
+                    " lines in the middle were not analyzed.\n";
+        }
+        if (run.isTimedOut()) {
+            report = "TIMED OUT: the build was killed after " + run.getElapsedMillis() / 1000 + " s (limit " +
+                    timeoutSeconds + " s). Look for an infinite loop or a blocking call in the code under test.\n\n" +
+                    report;
+        }
+        return new TestRunResult(digest.isSuccess() && !run.isTimedOut(), report, digest.getTestsRun(),
+                digest.getTestsFailed());
+    }
+
+    // Heap and CPU limits for the Maven JVM itself
+    private String jvmLimits() {
+        String limits = "-Xmx" + maxHeap;
+        return cpus > 0 ? limits + " -XX:ActiveProcessorCount=" + cpus : limits;
+    }
+
+    // The same limits for the forked test JVM, plus a per-test timeout that fails a looping test on its own
+    private String forkedJvmArgs() {
+        return jvmLimits() + " -Djunit.jupiter.execution.timeout.default=" + testMethodTimeoutSeconds + "s" +
+                " -Djunit.jupiter.execution.timeout.thread.mode.default=SEPARATE_THREAD";
+    }
+}
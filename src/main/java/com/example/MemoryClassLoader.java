@@ -0,0 +1,44 @@
+package com.example;
+
+import java.util.Map;
+
+/**
+ * Throwaway class loader for classes compiled by {@link InMemoryCompiler}. A new instance is created
+ * per test run, so every run sees freshly loaded classes and nothing leaks into the next iteration.
+ */
+public class MemoryClassLoader extends ClassLoader {
+
+    private final Map<String, byte[]> classes;
+
+    public MemoryClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+        super(parent);
+        this.classes = classes;
+    }
+
+    // Child-first for sandbox classes, so they win over any same-named class on the agent class path
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!classes.containsKey(name)) {
+            return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                loaded = findClass(name);
+            }
+            if (resolve) {
+                resolveClass(loaded);
+            }
+            return loaded;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] bytes = classes.get(name);
+        if (bytes == null) {
+            throw new ClassNotFoundException(name);
+        }
+        return defineClass(name, bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,439 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Run metrics: latency histograms and counters, written as a JSON run report and optionally as a
+ * Prometheus text-format file at the end of the run.
+ *
+ * <p>When no report file is configured the shared {@link #DISABLED} instance is used, whose methods return
+ * right away without reading the clock or allocating.
+ */
+public class Metrics {
+
+    public static final Metrics DISABLED = new Metrics(null, null);
+
+    private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+    // One instance per report, so all sessions of a batch are aggregated
+    private static final Map<String, Metrics> INSTANCES = new ConcurrentHashMap<>();
+
+    private final boolean enabled;
+    private final Path reportFile;
+    private final Path prometheusFile;
+    private final long startNanos = System.nanoTime();
+    private final Map<Series, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<Series, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<Series, AtomicLong> gauges = new ConcurrentHashMap<>();
+
+    private Metrics(Path reportFile, Path prometheusFile) {
+        this.enabled = reportFile != null || prometheusFile != null;
+        this.reportFile = reportFile;
+        this.prometheusFile = prometheusFile;
+    }
+
+    public static Metrics forConfig(AgentConfig config) {
+        if (config.getMetricsReport() == null && config.getMetricsPrometheus() == null) {
+            return DISABLED;
+        }
+        return INSTANCES.computeIfAbsent(config.getMetricsReport() + "|" + config.getMetricsPrometheus(),
+                key -> new Metrics(config.getMetricsReport(), config.getMetricsPrometheus()));
+    }
+
+    public static List<Metrics> instances() {
+        return new ArrayList<>(INSTANCES.values());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return a start time for {@link #recordSince(String, long)}, or 0 when disabled
+     */
+    public long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public void recordSince(String name, long startNanos) {
+        if (enabled) {
+            recordNanos(name, null, null, System.nanoTime() - startNanos);
+        }
+    }
+
+    public void recordSince(String name, String label, String labelValue, long startNanos) {
+        if (enabled) {
+            recordNanos(name, label, labelValue, System.nanoTime() - startNanos);
+        }
+    }
+
+    public void recordNanos(String name, String label, String labelValue, long nanos) {
+        if (enabled) {
+            histograms.computeIfAbsent(new Series(name, label, labelValue), series -> new Histogram()).record(nanos);
+        }
+    }
+
+    public void increment(String name) {
+        add(name, null, null, 1);
+    }
+
+    public void increment(String name, String label, String labelValue) {
+        add(name, label, labelValue, 1);
+    }
+
+    public void add(String name, long value) {
+        add(name, null, null, value);
+    }
+
+    public void add(String name, String label, String labelValue, long value) {
+        if (enabled) {
+            counters.computeIfAbsent(new Series(name, label, labelValue), series -> new LongAdder()).add(value);
+        }
+    }
+
+    // Current values such as limits and queue depths; the report shows the value at the time it is written
+    public void setGauge(String name, long value) {
+        if (enabled) {
+            gauges.computeIfAbsent(new Series(name, null, null), series -> new AtomicLong()).set(value);
+        }
+    }
+
+    public long getCounter(String name, String label, String labelValue) {
+        LongAdder counter = counters.get(new Series(name, label, labelValue));
+        return counter == null ? 0 : counter.sum();
+    }
+
+    public JSONObject toJson() {
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        long tasks = getCounter("tasks_total", "result", "passed") + getCounter("tasks_total", "result", "failed");
+        JSONObject report = new JSONObject()
+                .put("elapsedSeconds", elapsedSeconds)
+                .put("tasksPerMinute", elapsedSeconds > 0 ? tasks * 60 / elapsedSeconds : 0);
+
+        JSONArray counterList = new JSONArray();
+        for (Map.Entry<Series, LongAdder> entry : sorted(counters).entrySet()) {
+            counterList.put(entry.getKey().toJson().put("value", entry.getValue().sum()));
+        }
+        JSONArray timerList = new JSONArray();
+        for (Map.Entry<Series, Histogram> entry : sorted(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            JSONObject timer = entry.getKey().toJson()
+                    .put("count", histogram.count())
+                    .put("sumSeconds", histogram.sumNanos() / 1e9)
+                    .put("minSeconds", histogram.minNanos() / 1e9)
+                    .put("maxSeconds", histogram.maxNanos() / 1e9);
+            for (double quantile : QUANTILES) {
+                timer.put("p" + Math.round(quantile * 100) + "Seconds", histogram.quantileNanos(quantile) / 1e9);
+            }
+            timerList.put(timer);
+        }
+        JSONArray gaugeList = new JSONArray();
+        for (Map.Entry<Series, AtomicLong> entry : sorted(gauges).entrySet()) {
+            gaugeList.put(entry.getKey().toJson().put("value", entry.getValue().get()));
+        }
+        return report.put("counters", counterList).put("gauges", gaugeList).put("timers", timerList);
+    }
+
+    /**
+     * Everything recorded so far, with the histogram buckets, so another process can add it to its own
+     * metrics with {@link #merge(JSONObject)}.
+     */
+    public JSONObject snapshot() {
+        JSONArray counterList = new JSONArray();
+        for (Map.Entry<Series, LongAdder> entry : counters.entrySet()) {
+            counterList.put(entry.getKey().toJson().put("value", entry.getValue().sum()));
+        }
+        JSONArray histogramList = new JSONArray();
+        for (Map.Entry<Series, Histogram> entry : histograms.entrySet()) {
+            histogramList.put(entry.getValue().toJson(entry.getKey().toJson()));
+        }
+        JSONArray gaugeList = new JSONArray();
+        for (Map.Entry<Series, AtomicLong> entry : gauges.entrySet()) {
+            gaugeList.put(entry.getKey().toJson().put("value", entry.getValue().get()));
+        }
+        return new JSONObject().put("counters", counterList).put("histograms", histogramList)
+                .put("gauges", gaugeList);
+    }
+
+    /**
+     * Adds a {@link #snapshot()} of another process. Gauges are added up as well, which suits the ones
+     * measuring load, e.g. requests in flight, across all processes.
+     */
+    public void merge(JSONObject snapshot) {
+        if (!enabled) {
+            return;
+        }
+        JSONArray counterList = snapshot.getJSONArray("counters");
+        for (int i = 0; i < counterList.length(); i++) {
+            JSONObject counter = counterList.getJSONObject(i);
+            counters.computeIfAbsent(Series.fromJson(counter), series -> new LongAdder())
+                    .add(counter.getLong("value"));
+        }
+        JSONArray histogramList = snapshot.getJSONArray("histograms");
+        for (int i = 0; i < histogramList.length(); i++) {
+            JSONObject histogram = histogramList.getJSONObject(i);
+            histograms.computeIfAbsent(Series.fromJson(histogram), series -> new Histogram()).merge(histogram);
+        }
+        JSONArray gaugeList = snapshot.getJSONArray("gauges");
+        for (int i = 0; i < gaugeList.length(); i++) {
+            JSONObject gauge = gaugeList.getJSONObject(i);
+            gauges.computeIfAbsent(Series.fromJson(gauge), series -> new AtomicLong())
+                    .addAndGet(gauge.getLong("value"));
+        }
+    }
+
+    // Histograms are exposed as summaries, since the buckets are an implementation detail
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        String lastName = null;
+        for (Map.Entry<Series, LongAdder> entry : sorted(counters).entrySet()) {
+            Series series = entry.getKey();
+            if (!series.name.equals(lastName)) {
+                text.append("# TYPE tdd_").append(series.name).append(" counter\n");
+                lastName = series.name;
+            }
+            text.append("tdd_").append(series.name).append(series.labels(null)).append(' ')
+                    .append(entry.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<Series, AtomicLong> entry : sorted(gauges).entrySet()) {
+            Series series = entry.getKey();
+            text.append("# TYPE tdd_").append(series.name).append(" gauge\n");
+            text.append("tdd_").append(series.name).append(series.labels(null)).append(' ')
+                    .append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<Series, Histogram> entry : sorted(histograms).entrySet()) {
+            Series series = entry.getKey();
+            Histogram histogram = entry.getValue();
+            if (!series.name.equals(lastName)) {
+                text.append("# TYPE tdd_").append(series.name).append(" summary\n");
+                lastName = series.name;
+            }
+            for (double quantile : QUANTILES) {
+                text.append("tdd_").append(series.name).append(series.labels("quantile=\"" + quantile + "\""))
+                        .append(' ').append(histogram.quantileNanos(quantile) / 1e9).append('\n');
+            }
+            text.append("tdd_").append(series.name).append("_sum").append(series.labels(null)).append(' ')
+                    .append(histogram.sumNanos() / 1e9).append('\n');
+            text.append("tdd_").append(series.name).append("_count").append(series.labels(null)).append(' ')
+                    .append(histogram.count()).append('\n');
+        }
+        return text.toString();
+    }
+
+    public void writeReports() throws IOException {
+        if (reportFile != null) {
+            write(reportFile, toJson().toString(2));
+        }
+        if (prometheusFile != null) {
+            write(prometheusFile, toPrometheus());
+        }
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String formatSummary() {
+        StringBuilder summary = new StringBuilder("METRICS:");
+        for (Map.Entry<Series, Histogram> entry : sorted(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            summary.append(String.format("%n %-45s n=%-5d p50=%8.1f ms  p95=%8.1f ms  p99=%8.1f ms",
+                    entry.getKey().name + entry.getKey().labels(null), histogram.count(),
+                    histogram.quantileNanos(0.5) / 1e6, histogram.quantileNanos(0.95) / 1e6,
+                    histogram.quantileNanos(0.99) / 1e6));
+        }
+        for (Map.Entry<Series, LongAdder> entry : sorted(counters).entrySet()) {
+            summary.append(String.format("%n %-45s %d", entry.getKey().name + entry.getKey().labels(null),
+                    entry.getValue().sum()));
+        }
+        for (Map.Entry<Series, AtomicLong> entry : sorted(gauges).entrySet()) {
+            summary.append(String.format("%n %-45s %d", entry.getKey().name, entry.getValue().get()));
+        }
+        if (reportFile != null) {
+            summary.append(String.format("%n Run report: %s", reportFile));
+        }
+        return summary.toString();
+    }
+
+    private static <T> Map<Series, T> sorted(Map<Series, T> map) {
+        Map<Series, T> sorted = new TreeMap<>(Comparator.comparing((Series series) -> series.name)
+                .thenComparing(Series::toString));
+        sorted.putAll(map);
+        return sorted;
+    }
+
+    private static final class Series {
+        private final String name;
+        private final String label;
+        private final String labelValue;
+
+        Series(String name, String label, String labelValue) {
+            this.name = name;
+            this.label = label;
+            this.labelValue = labelValue;
+        }
+
+        String labels(String extra) {
+            if (label == null) {
+                return extra == null ? "" : "{" + extra + "}";
+            }
+            String own = label + "=\"" + labelValue + "\"";
+            return "{" + own + (extra == null ? "" : "," + extra) + "}";
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject().put("name", name);
+            if (label != null) {
+                json.put("labels", new JSONObject().put(label, labelValue));
+            }
+            return json;
+        }
+
+        static Series fromJson(JSONObject json) {
+            JSONObject labels = json.optJSONObject("labels");
+            if (labels == null || labels.isEmpty()) {
+                return new Series(json.getString("name"), null, null);
+            }
+            String label = labels.keys().next();
+            return new Series(json.getString("name"), label, labels.getString(label));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Series)) {
+                return false;
+            }
+            Series series = (Series) other;
+            return name.equals(series.name) && Objects.equals(label, series.label)
+                    && Objects.equals(labelValue, series.labelValue);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, label, labelValue);
+        }
+
+        @Override
+        public String toString() {
+            return name + labels(null);
+        }
+    }
+
+    /**
+     * Lock-free log-linear histogram: bucket bounds grow by 10%, so quantiles are accurate to within 10%
+     * from a microsecond up to several hours.
+     */
+    static final class Histogram {
+        private static final double GROWTH = 1.1;
+        private static final double LOG_GROWTH = Math.log(GROWTH);
+        private static final int BUCKETS = 256;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            min.accumulateAndGet(value, Math::min);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        // Only the buckets in use, as an object of index to count
+        JSONObject toJson(JSONObject json) {
+            JSONObject used = new JSONObject();
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucketCount = buckets.get(i);
+                if (bucketCount > 0) {
+                    used.put(String.valueOf(i), bucketCount);
+                }
+            }
+            return json.put("buckets", used)
+                    .put("count", count())
+                    .put("sumNanos", sumNanos())
+                    .put("minNanos", minNanos())
+                    .put("maxNanos", maxNanos());
+        }
+
+        void merge(JSONObject json) {
+            long mergedCount = json.getLong("count");
+            if (mergedCount == 0) {
+                return;
+            }
+            JSONObject used = json.getJSONObject("buckets");
+            for (String index : used.keySet()) {
+                buckets.addAndGet(Integer.parseInt(index), used.getLong(index));
+            }
+            count.add(mergedCount);
+            sum.add(json.getLong("sumNanos"));
+            min.accumulateAndGet(json.getLong("minNanos"), Math::min);
+            max.accumulateAndGet(json.getLong("maxNanos"), Math::max);
+        }
+
+        private static int bucketOf(long nanos) {
+            double micros = nanos / 1000.0;
+            if (micros <= 1) {
+                return 0;
+            }
+            return Math.min(BUCKETS - 1, (int) Math.ceil(Math.log(micros) / LOG_GROWTH));
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long sumNanos() {
+            return sum.sum();
+        }
+
+        long minNanos() {
+            return count() == 0 ? 0 : min.get();
+        }
+
+        long maxNanos() {
+            return count() == 0 ? 0 : max.get();
+        }
+
+        // Upper bound of the bucket holding the quantile, clamped to the observed range
+        long quantileNanos(double quantile) {
+            long total = count();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    long upperBound = (long) (Math.pow(GROWTH, i) * 1000);
+                    return Math.max(minNanos(), Math.min(maxNanos(), upperBound));
+                }
+            }
+            return maxNanos();
+        }
+    }
+}
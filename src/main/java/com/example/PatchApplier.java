@@ -0,0 +1,257 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies an edit from the model to the current content of a file. Two formats are accepted:
+ * <ul>
+ *   <li>a unified diff with one or more {@code @@ -l,n +l,n @@} hunks; file headers are optional, and a hunk
+ *       whose line numbers are off is still applied if its context and removed lines occur exactly once</li>
+ *   <li>search/replace blocks:
+ *       {@code <<<<<<< SEARCH}, the exact text to replace, {@code =======}, the new text,
+ *       {@code >>>>>>> REPLACE}; the search text must occur exactly once</li>
+ * </ul>
+ * The edit is all or nothing: on the first mismatch an {@link IllegalArgumentException} explains which hunk
+ * or block did not match and what the file contains there.
+ */
+public final class PatchApplier {
+
+    private static final Pattern HUNK_HEADER = Pattern.compile("^@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*");
+    private static final String SEARCH_MARKER = "<<<<<<< SEARCH";
+    private static final String DIVIDER = "=======";
+    private static final String REPLACE_MARKER = ">>>>>>> REPLACE";
+    private static final int MISMATCH_CONTEXT_LINES = 3;
+
+    private PatchApplier() {
+    }
+
+    public static String apply(String original, String patch) {
+        String normalizedPatch = patch.replace("\r\n", "\n");
+        if (normalizedPatch.contains(SEARCH_MARKER)) {
+            return applySearchReplace(original, normalizedPatch);
+        }
+        if (HUNK_HEADER.matcher(firstHunkLine(normalizedPatch)).matches()) {
+            return applyUnifiedDiff(original, normalizedPatch);
+        }
+        throw new IllegalArgumentException("The patch is neither a unified diff (no '@@ -l,n +l,n @@' hunk " +
+                "header) nor search/replace blocks ('" + SEARCH_MARKER + "' ... '" + DIVIDER + "' ... '" +
+                REPLACE_MARKER + "').");
+    }
+
+    private static String firstHunkLine(String patch) {
+        for (String line : patch.split("\n")) {
+            if (line.startsWith("@@")) {
+                return line;
+            }
+        }
+        return "";
+    }
+
+    private static String applySearchReplace(String original, String patch) {
+        String content = original.replace("\r\n", "\n");
+        // Blocks are matched as whole lines, so the last line needs its terminator too
+        boolean endsWithNewline = content.isEmpty() || content.endsWith("\n");
+        if (!endsWithNewline) {
+            content += "\n";
+        }
+        String[] lines = patch.split("\n", -1);
+        int block = 0;
+        int i = 0;
+        while (i < lines.length) {
+            if (!lines[i].trim().equals(SEARCH_MARKER)) {
+                i++;
+                continue;
+            }
+            block++;
+            StringBuilder search = new StringBuilder();
+            StringBuilder replace = new StringBuilder();
+            i++;
+            for (; i < lines.length && !lines[i].trim().equals(DIVIDER); i++) {
+                search.append(lines[i]).append('\n');
+            }
+            if (i == lines.length) {
+                throw new IllegalArgumentException("Block " + block + ": missing '" + DIVIDER + "' line.");
+            }
+            i++;
+            for (; i < lines.length && !lines[i].trim().equals(REPLACE_MARKER); i++) {
+                replace.append(lines[i]).append('\n');
+            }
+            if (i == lines.length) {
+                throw new IllegalArgumentException("Block " + block + ": missing '" + REPLACE_MARKER + "' line.");
+            }
+            i++;
+
+            if (search.length() == 0) {
+                throw new IllegalArgumentException("Block " + block + ": the SEARCH section is empty.");
+            }
+            int at = indexOfLines(content, search.toString(), 0);
+            if (at < 0) {
+                throw new IllegalArgumentException("Block " + block + ": the SEARCH text was not found in the " +
+                        "file. It must match the current content exactly, including indentation. " +
+                        "Read the file again if unsure.");
+            }
+            if (indexOfLines(content, search.toString(), at + 1) >= 0) {
+                throw new IllegalArgumentException("Block " + block + ": the SEARCH text occurs more than " +
+                        "once. Include more surrounding lines to make it unique.");
+            }
+            content = content.substring(0, at) + replace + content.substring(at + search.length());
+        }
+        if (block == 0) {
+            throw new IllegalArgumentException("No complete search/replace block found.");
+        }
+        return endsWithNewline || !content.endsWith("\n") ? content : content.substring(0, content.length() - 1);
+    }
+
+    private static int indexOfLines(String content, String lines, int from) {
+        for (int at = content.indexOf(lines, from); at >= 0; at = content.indexOf(lines, at + 1)) {
+            if (at == 0 || content.charAt(at - 1) == '\n') {
+                return at;
+            }
+        }
+        return -1;
+    }
+
+    private static String applyUnifiedDiff(String original, String patch) {
+        boolean endsWithNewline = original.isEmpty() || original.endsWith("\n");
+        List<String> lines = new ArrayList<>(Arrays.asList(original.replace("\r\n", "\n").split("\n", -1)));
+        if (endsWithNewline) {
+            lines.remove(lines.size() - 1);
+        }
+
+        List<Hunk> hunks = parseHunks(patch);
+        // Lines added or removed by earlier hunks shift the positions of later ones
+        int offset = 0;
+        for (Hunk hunk : hunks) {
+            int expected = Math.max(0, hunk.oldStart - 1 + offset);
+            int at = locate(lines, hunk.oldLines, expected);
+            if (at < 0) {
+                throw new IllegalArgumentException(describeMismatch(hunk, lines, expected));
+            }
+            for (int k = 0; k < hunk.oldLines.size(); k++) {
+                lines.remove(at);
+            }
+            lines.addAll(at, hunk.newLines);
+            offset = at - (hunk.oldStart - 1) + hunk.newLines.size() - hunk.oldLines.size();
+        }
+
+        String result = String.join("\n", lines);
+        return endsWithNewline && !lines.isEmpty() ? result + "\n" : result;
+    }
+
+    private static List<Hunk> parseHunks(String patch) {
+        List<Hunk> hunks = new ArrayList<>();
+        Hunk current = null;
+        for (String line : patch.split("\n", -1)) {
+            Matcher header = HUNK_HEADER.matcher(line);
+            if (header.matches()) {
+                current = new Hunk(hunks.size() + 1, Integer.parseInt(header.group(1)));
+                hunks.add(current);
+            } else if (current == null || line.startsWith("\\")) {
+                // File headers before the first hunk, "\ No newline at end of file"
+            } else if (line.startsWith("-")) {
+                current.oldLines.add(line.substring(1));
+            } else if (line.startsWith("+")) {
+                current.newLines.add(line.substring(1));
+            } else if (line.startsWith(" ") || line.isEmpty()) {
+                // Some models drop the space in front of empty context lines
+                String context = line.isEmpty() ? "" : line.substring(1);
+                current.oldLines.add(context);
+                current.newLines.add(context);
+            } else {
+                throw new IllegalArgumentException("Hunk " + current.number + ": unexpected line '" + line +
+                        "'. Every line must start with ' ', '-' or '+'.");
+            }
+        }
+        // A trailing empty line of the patch text is not a context line
+        for (Hunk hunk : hunks) {
+            hunk.trimTrailingEmptyContext();
+        }
+        return hunks;
+    }
+
+    // Exact position first, then the only other place where the lines occur
+    private static int locate(List<String> lines, List<String> block, int expected) {
+        if (matchesAt(lines, block, expected)) {
+            return expected;
+        }
+        int found = -1;
+        for (int at = 0; at + block.size() <= lines.size(); at++) {
+            if (matchesAt(lines, block, at)) {
+                if (found >= 0) {
+                    return -1;
+                }
+                found = at;
+            }
+        }
+        return found;
+    }
+
+    private static boolean matchesAt(List<String> lines, List<String> block, int at) {
+        if (at < 0 || at + block.size() > lines.size()) {
+            return false;
+        }
+        for (int k = 0; k < block.size(); k++) {
+            if (!lines.get(at + k).equals(block.get(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String describeMismatch(Hunk hunk, List<String> lines, int expected) {
+        int occurrences = 0;
+        for (int at = 0; at + hunk.oldLines.size() <= lines.size(); at++) {
+            if (matchesAt(lines, hunk.oldLines, at)) {
+                occurrences++;
+            }
+        }
+        if (occurrences > 1) {
+            return "Hunk " + hunk.number + " does not match at line " + hunk.oldStart + " and its lines occur " +
+                    occurrences + " times elsewhere. Fix the line numbers or add context lines.";
+        }
+
+        StringBuilder message = new StringBuilder("Hunk " + hunk.number + " does not match the file. ");
+        for (int k = 0; k < hunk.oldLines.size(); k++) {
+            int lineIndex = expected + k;
+            String actual = lineIndex < lines.size() ? lines.get(lineIndex) : null;
+            if (!hunk.oldLines.get(k).equals(actual)) {
+                message.append("At line ").append(lineIndex + 1).append(" the patch expects\n  ")
+                        .append(hunk.oldLines.get(k)).append("\nbut the file has\n  ")
+                        .append(actual == null ? "<end of file>" : actual).append('\n');
+                break;
+            }
+        }
+        message.append("File lines ").append(Math.max(1, expected + 1 - MISMATCH_CONTEXT_LINES)).append('-')
+                .append(Math.min(lines.size(), expected + hunk.oldLines.size() + MISMATCH_CONTEXT_LINES))
+                .append(":\n");
+        for (int i = Math.max(0, expected - MISMATCH_CONTEXT_LINES);
+             i < Math.min(lines.size(), expected + hunk.oldLines.size() + MISMATCH_CONTEXT_LINES); i++) {
+            message.append(String.format("%4d| %s%n", i + 1, lines.get(i)));
+        }
+        return message.toString();
+    }
+
+    private static final class Hunk {
+        private final int number;
+        private final int oldStart;
+        private final List<String> oldLines = new ArrayList<>();
+        private final List<String> newLines = new ArrayList<>();
+
+        Hunk(int number, int oldStart) {
+            this.number = number;
+            this.oldStart = oldStart;
+        }
+
+        void trimTrailingEmptyContext() {
+            while (!oldLines.isEmpty() && !newLines.isEmpty()
+                    && oldLines.get(oldLines.size() - 1).isEmpty() && newLines.get(newLines.size() - 1).isEmpty()) {
+                oldLines.remove(oldLines.size() - 1);
+                newLines.remove(newLines.size() - 1);
+            }
+        }
+    }
+}
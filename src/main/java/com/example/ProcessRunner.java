@@ -0,0 +1,262 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Runs an external process with a wall-clock timeout and bounded output capture. Lines are streamed to a
+ * log file as they arrive; in memory only the head and the tail of the output are kept, so a chatty or
+ * looping build cannot exhaust the heap. On timeout the whole process tree is killed, including forked
+ * test JVMs.
+ */
+public class ProcessRunner {
+
+    // After the process is gone, its output pipe should close right away
+    private static final long READER_JOIN_MILLIS = 5_000;
+    private static final int CHUNK_CHARS = 8192;
+    private static final int MAX_LINE_CHARS = 8192;
+
+    private final long timeoutMillis;
+    private final int headChars;
+    private final int tailChars;
+
+    /**
+     * @param maxOutputChars characters kept in memory: the first quarter of the output and the last three quarters
+     */
+    public ProcessRunner(long timeoutMillis, int maxOutputChars) {
+        this.timeoutMillis = timeoutMillis;
+        this.headChars = maxOutputChars / 4;
+        this.tailChars = maxOutputChars - headChars;
+    }
+
+    /**
+     * @param logFile receives the complete output, or null to keep only the bounded capture
+     */
+    public Result run(ProcessBuilder builder, Path logFile) throws IOException, InterruptedException {
+        builder.redirectErrorStream(true);
+        Writer log = null;
+        if (logFile != null) {
+            Files.createDirectories(logFile.getParent());
+            log = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8);
+        }
+
+        long startNanos = System.nanoTime();
+        Process process;
+        try {
+            process = builder.start();
+        } catch (IOException e) {
+            closeQuietly(log);
+            throw e;
+        }
+
+        OutputBuffer output = new OutputBuffer(headChars, tailChars);
+        Writer logWriter = log;
+        Thread reader = new Thread(() -> pump(process, output, logWriter), "process-output-" + process.pid());
+        reader.setDaemon(true);
+        reader.start();
+
+        boolean timedOut = false;
+        try {
+            if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                timedOut = true;
+                System.err.println("AGENT: Process " + process.pid() + " exceeded " + timeoutMillis +
+                        " ms, killing it and its children");
+                killTree(process);
+            }
+            process.waitFor();
+        } catch (InterruptedException e) {
+            killTree(process);
+            throw e;
+        } finally {
+            reader.join(READER_JOIN_MILLIS);
+            // Grandchildren that detached from the tree may still hold the pipe open
+            if (reader.isAlive()) {
+                process.getInputStream().close();
+            }
+            closeQuietly(log);
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        return new Result(timedOut ? -1 : process.exitValue(), output, timedOut, elapsedMillis, logFile);
+    }
+
+    // Read in fixed-size chunks rather than with readLine(), which would buffer an endless line in full
+    private static void pump(Process process, OutputBuffer output, Writer log) {
+        try (Reader reader = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)) {
+            char[] chunk = new char[CHUNK_CHARS];
+            StringBuilder line = new StringBuilder();
+            boolean afterCarriageReturn = false;
+            int read;
+            while ((read = reader.read(chunk)) >= 0) {
+                for (int i = 0; i < read; i++) {
+                    char c = chunk[i];
+                    if (c == '\n' && afterCarriageReturn) {
+                        afterCarriageReturn = false;
+                        continue;
+                    }
+                    afterCarriageReturn = c == '\r';
+                    if (c == '\n' || c == '\r') {
+                        output.append(line.toString());
+                        line.setLength(0);
+                    } else {
+                        line.append(c);
+                        // Over-long lines are kept as several lines
+                        if (line.length() == MAX_LINE_CHARS) {
+                            output.append(line.toString());
+                            line.setLength(0);
+                        }
+                    }
+                }
+                if (log != null) {
+                    log.write(chunk, 0, read);
+                    // Flush once the process pauses, so the file can be tailed without a syscall per chunk
+                    if (!reader.ready()) {
+                        log.flush();
+                    }
+                }
+            }
+            if (line.length() > 0) {
+                output.append(line.toString());
+            }
+        } catch (IOException e) {
+            // The stream is closed when the process is killed
+        }
+    }
+
+    // Descendants are collected while the parent is alive: once it dies they are re-parented and not found anymore
+    static void killTree(Process process) {
+        List<ProcessHandle> descendants = process.descendants().collect(Collectors.toList());
+        process.destroyForcibly();
+        descendants.forEach(ProcessHandle::destroyForcibly);
+    }
+
+    private static void closeQuietly(Writer writer) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.err.println("AGENT: Could not close process log: " + e.getMessage());
+        }
+    }
+
+    public static class Result {
+        private final int exitCode;
+        private final OutputBuffer output;
+        private final boolean timedOut;
+        private final long elapsedMillis;
+        private final Path logFile;
+
+        Result(int exitCode, OutputBuffer output, boolean timedOut, long elapsedMillis, Path logFile) {
+            this.exitCode = exitCode;
+            this.output = output;
+            this.timedOut = timedOut;
+            this.elapsedMillis = elapsedMillis;
+            this.logFile = logFile;
+        }
+
+        /**
+         * @return the exit code, or -1 if the process was killed after the timeout
+         */
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        /**
+         * @return head and tail of the output, joined by a marker stating how much was left out
+         */
+        public String getOutput() {
+            return output.toString();
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public boolean isTruncated() {
+            return output.omittedChars > 0;
+        }
+
+        public long getOmittedLines() {
+            return output.omittedLines;
+        }
+
+        public long getTotalLines() {
+            return output.totalLines;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public Path getLogFile() {
+            return logFile;
+        }
+    }
+
+    /**
+     * The first lines up to a character budget, and a ring of the most recent lines up to another.
+     */
+    static final class OutputBuffer {
+        private final int headLimit;
+        private final int tailLimit;
+        private final StringBuilder head = new StringBuilder();
+        private final Deque<String> tail = new ArrayDeque<>();
+        private boolean headFull;
+        private int tailSize;
+        private long totalLines;
+        private long omittedLines;
+        private long omittedChars;
+
+        OutputBuffer(int headLimit, int tailLimit) {
+            this.headLimit = headLimit;
+            this.tailLimit = tailLimit;
+        }
+
+        synchronized void append(String line) {
+            totalLines++;
+            if (!headFull) {
+                if (head.length() + line.length() + 1 <= headLimit) {
+                    head.append(line).append('\n');
+                    return;
+                }
+                headFull = true;
+            }
+            if (line.length() + 1 > tailLimit) {
+                omittedChars += line.length() - (tailLimit - 1);
+                line = line.substring(line.length() - (tailLimit - 1));
+            }
+            tail.addLast(line);
+            tailSize += line.length() + 1;
+            while (tailSize > tailLimit) {
+                String dropped = tail.removeFirst();
+                tailSize -= dropped.length() + 1;
+                omittedLines++;
+                omittedChars += dropped.length() + 1;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder text = new StringBuilder(head.length() + tailSize + 100).append(head);
+            if (omittedChars > 0) {
+                text.append("... [").append(omittedLines).append(" of ").append(totalLines)
+                        .append(" lines (").append(omittedChars / 1024).append(" KB) omitted] ...\n");
+            }
+            for (String line : tail) {
+                text.append(line).append('\n');
+            }
+            return text.toString();
+        }
+    }
+}
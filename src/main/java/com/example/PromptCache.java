@@ -0,0 +1,225 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side caching of the part of every request that stays the same for a whole task, so it is not sent
+ * and processed again on each turn.
+ *
+ * <ul>
+ *   <li>The tool declarations are cached once per process and shared by all sessions, e.g. of a batch.
+ *       Requests reference them until the task's own prefix is cached.</li>
+ *   <li>Once the test file has been read, the tool declarations, the task prompt and the conversation up to
+ *       that read are cached once per task.</li>
+ * </ul>
+ * The TTL of live caches is extended in the background; they are deleted when the session (or batch) ends.
+ * Whenever the API rejects caching, e.g. because the prefix is below the model's minimum size, requests
+ * are sent in full.
+ */
+public class PromptCache implements AutoCloseable {
+
+    // Guarded by PromptCache.class
+    private static final Map<String, Shared> SHARED = new HashMap<>();
+    private static int holds;
+    // Prefixes up to this size were rejected as too small; smaller ones would be too
+    private static long rejectedBytes;
+
+    private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "prompt-cache-ttl");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final GeminiApiClient client;
+    private final byte[] tools;
+    private final long ttlSeconds;
+    private final Shared shared;
+    private GeminiApiClient.CachedContent taskContent;
+    private ScheduledFuture<?> taskRefresh;
+    private boolean taskAttempted;
+
+    public PromptCache(GeminiApiClient client, byte[] tools, AgentConfig config) {
+        this.client = client;
+        this.tools = tools;
+        this.ttlSeconds = config.getPromptCacheTtlSeconds();
+        String key = config.getApiBaseUrl() + "/models/" + config.getModel() + "#" +
+                ContentHashes.sha256Hex(new String(tools, StandardCharsets.UTF_8));
+        synchronized (PromptCache.class) {
+            this.shared = SHARED.computeIfAbsent(key, k -> new Shared(client));
+            shared.sessions++;
+        }
+    }
+
+    /**
+     * Keeps the shared tool declaration caches alive between sessions until {@link #releaseShared()}, so a
+     * batch creates them only once.
+     */
+    public static synchronized void holdShared() {
+        holds++;
+    }
+
+    public static void releaseShared() {
+        List<Shared> unused = new ArrayList<>();
+        synchronized (PromptCache.class) {
+            if (--holds > 0) {
+                return;
+            }
+            for (Iterator<Shared> it = SHARED.values().iterator(); it.hasNext(); ) {
+                Shared entry = it.next();
+                if (entry.sessions == 0) {
+                    it.remove();
+                    unused.add(entry);
+                }
+            }
+        }
+        unused.forEach(Shared::delete);
+    }
+
+    /**
+     * @param stablePrefixLength leading messages that will not change for the rest of the task
+     * @return the cached content to reference in a request with these messages, or {@code null} to send it in full
+     */
+    public GeminiApiClient.CachedContent prefixFor(List<byte[]> messages, int stablePrefixLength) {
+        if (!taskAttempted && stablePrefixLength > 0 && stablePrefixLength < messages.size()) {
+            taskAttempted = true;
+            taskContent = create(client, messages.subList(0, stablePrefixLength), tools, ttlSeconds,
+                    "tool declarations and task prefix (" + stablePrefixLength + " messages)");
+            if (taskContent != null) {
+                taskRefresh = scheduleRefresh(client, taskContent, ttlSeconds);
+            }
+        }
+        if (taskContent != null && taskContent.covers(messages)) {
+            return taskContent;
+        }
+        GeminiApiClient.CachedContent toolsContent = shared.get(tools, ttlSeconds);
+        return toolsContent != null && toolsContent.covers(messages) ? toolsContent : null;
+    }
+
+    /**
+     * Deletes the task's cached content and releases the shared one.
+     */
+    @Override
+    public void close() {
+        if (taskRefresh != null) {
+            taskRefresh.cancel(false);
+        }
+        if (taskContent != null) {
+            delete(client, taskContent);
+            taskContent = null;
+        }
+        boolean unused;
+        synchronized (PromptCache.class) {
+            unused = --shared.sessions == 0 && holds == 0 && SHARED.values().remove(shared);
+        }
+        if (unused) {
+            shared.delete();
+        }
+    }
+
+    private static GeminiApiClient.CachedContent create(GeminiApiClient client, List<byte[]> messages,
+                                                        byte[] tools, long ttlSeconds, String description) {
+        long bytes = tools.length;
+        for (byte[] message : messages) {
+            bytes += message.length;
+        }
+        synchronized (PromptCache.class) {
+            if (bytes <= rejectedBytes) {
+                return null;
+            }
+        }
+        try {
+            GeminiApiClient.CachedContent content = client.createCachedContent(messages, tools, ttlSeconds);
+            if (content == null) {
+                synchronized (PromptCache.class) {
+                    rejectedBytes = Math.max(rejectedBytes, bytes);
+                }
+                System.out.println("AGENT: Not caching the " + description + ", sending them in full");
+                return null;
+            }
+            System.out.println("AGENT: Cached the " + description + " as " + content.getName() + ", " +
+                    content.getTokenCount() + " tokens, TTL " + ttlSeconds + " s");
+            return content;
+        } catch (IOException e) {
+            System.err.println("AGENT: Could not cache the " + description + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    // Extended at half the TTL, so a long test run or model turn does not let the content expire
+    private static ScheduledFuture<?> scheduleRefresh(GeminiApiClient client, GeminiApiClient.CachedContent content,
+                                                      long ttlSeconds) {
+        long period = Math.max(1, ttlSeconds / 2);
+        return REFRESHER.scheduleAtFixedRate(() -> {
+            if (!content.isValid()) {
+                return;
+            }
+            try {
+                if (!client.updateCachedContentTtl(content, ttlSeconds)) {
+                    content.invalidate();
+                }
+            } catch (IOException e) {
+                // Requests fall back to the full prefix if the content expires after all
+                System.err.println("AGENT: Could not extend the TTL of " + content.getName() + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, period, period, TimeUnit.SECONDS);
+    }
+
+    private static void delete(GeminiApiClient client, GeminiApiClient.CachedContent content) {
+        try {
+            client.deleteCachedContent(content);
+        } catch (IOException e) {
+            System.err.println("AGENT: Could not delete " + content.getName() + ", it expires with its TTL: " +
+                    e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Shared {
+        private final GeminiApiClient client;
+        private int sessions;
+        private boolean attempted;
+        private GeminiApiClient.CachedContent content;
+        private ScheduledFuture<?> refresh;
+
+        Shared(GeminiApiClient client) {
+            this.client = client;
+        }
+
+        // Sessions that ask at the same time wait for a single creation
+        synchronized GeminiApiClient.CachedContent get(byte[] tools, long ttlSeconds) {
+            if (!attempted) {
+                attempted = true;
+                content = create(client, List.of(), tools, ttlSeconds, "tool declarations");
+                if (content != null) {
+                    refresh = scheduleRefresh(client, content, ttlSeconds);
+                }
+            }
+            return content;
+        }
+
+        synchronized void delete() {
+            if (refresh != null) {
+                refresh.cancel(false);
+            }
+            if (content != null) {
+                PromptCache.delete(client, content);
+                content = null;
+            }
+        }
+    }
+}
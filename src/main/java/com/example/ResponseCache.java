@@ -0,0 +1,225 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-addressed cache for Gemini responses. The key is the SHA-256 of the endpoint plus the serialized
+ * request body, so only byte-identical requests (same model, contents and tools) hit. Entries are stored
+ * gzip-compressed on disk with size-bounded LRU eviction, fronted by a small in-memory tier.
+ */
+public class ResponseCache {
+
+    private static final int HOT_TIER_ENTRIES = 256;
+    private static final String FILE_SUFFIX = ".json.gz";
+
+    // One instance per cache directory, so all sessions of a batch share statistics and the size budget
+    private static final Map<Path, ResponseCache> INSTANCES = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final boolean writable;
+    private final long maxBytes;
+    private final Map<String, String> hotTier = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > HOT_TIER_ENTRIES;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private long diskBytes = -1;
+
+    private ResponseCache(Path directory, boolean writable, long maxBytes) {
+        this.directory = directory;
+        this.writable = writable;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the shared cache for the configured directory, or {@code null} when caching is off
+     */
+    public static ResponseCache forConfig(AgentConfig config) {
+        if (AgentConfig.CACHE_MODE_OFF.equals(config.getCacheMode())) {
+            return null;
+        }
+        Path directory = config.getCacheDir().toAbsolutePath().normalize();
+        boolean writable = AgentConfig.CACHE_MODE_READ_WRITE.equals(config.getCacheMode());
+        return INSTANCES.computeIfAbsent(directory, dir -> new ResponseCache(dir, writable, config.getCacheMaxBytes()));
+    }
+
+    public static List<ResponseCache> instances() {
+        return new ArrayList<>(INSTANCES.values());
+    }
+
+    public String key(String endpoint, byte[] requestBody) {
+        return key(endpoint, List.of(requestBody));
+    }
+
+    /**
+     * Same key as for the concatenated chunks, computed without joining them.
+     */
+    public String key(String endpoint, List<byte[]> requestChunks) {
+        MessageDigest digest = ContentHashes.newSha256();
+        digest.update(endpoint.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        for (byte[] chunk : requestChunks) {
+            digest.update(chunk);
+        }
+        return ContentHashes.toHex(digest.digest());
+    }
+
+    /**
+     * @param requestBytes size of the request that does not need to be sent on a hit
+     * @return the cached response, or {@code null} on a miss
+     */
+    public String get(String key, long requestBytes) {
+        String response;
+        synchronized (hotTier) {
+            response = hotTier.get(key);
+        }
+        if (response == null) {
+            response = readFromDisk(key);
+            if (response != null) {
+                synchronized (hotTier) {
+                    hotTier.put(key, response);
+                }
+            }
+        }
+
+        if (response == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(requestBytes + response.getBytes(StandardCharsets.UTF_8).length);
+        return response;
+    }
+
+    public void put(String key, String response) {
+        if (!writable) {
+            return;
+        }
+        synchronized (hotTier) {
+            hotTier.put(key, response);
+        }
+        try {
+            writeToDisk(key, response);
+        } catch (IOException e) {
+            System.err.println("CACHE: Could not store response " + key + ": " + e.getMessage());
+        }
+    }
+
+    private String readFromDisk(String key) {
+        Path file = directory.resolve(key + FILE_SUFFIX);
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            String response = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            if (writable) {
+                // The modification time doubles as the LRU access time
+                Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            }
+            return response;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("CACHE: Ignoring unreadable entry " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized void writeToDisk(String key, String response) throws IOException {
+        Files.createDirectories(directory);
+        if (diskBytes < 0) {
+            diskBytes = 0;
+            for (Path file : listEntries()) {
+                diskBytes += Files.size(file);
+            }
+        }
+
+        Path file = directory.resolve(key + FILE_SUFFIX);
+        Path temp = Files.createTempFile(directory, key, ".tmp");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp))) {
+            out.write(response.getBytes(StandardCharsets.UTF_8));
+        }
+        long previousSize = Files.exists(file) ? Files.size(file) : 0;
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        diskBytes += Files.size(file) - previousSize;
+
+        if (diskBytes > maxBytes) {
+            evict();
+        }
+    }
+
+    // Removes least recently used entries until the cache is back under 90% of its budget
+    private void evict() throws IOException {
+        List<Path> entries = listEntries();
+        entries.sort(Comparator.comparing(ResponseCache::lastModified));
+        long target = maxBytes / 10 * 9;
+        for (Path file : entries) {
+            if (diskBytes <= target) {
+                break;
+            }
+            long size = Files.size(file);
+            Files.deleteIfExists(file);
+            diskBytes -= size;
+            String key = file.getFileName().toString().replace(FILE_SUFFIX, "");
+            synchronized (hotTier) {
+                hotTier.remove(key);
+            }
+        }
+    }
+
+    private List<Path> listEntries() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+            for (Path file : stream) {
+                entries.add(file);
+            }
+        }
+        return entries;
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public String formatStats() {
+        return "CACHE: " + directory + ": " + hits.get() + " hit(s), " + misses.get() + " miss(es), " +
+                String.format("%.1f KB", bytesSaved.get() / 1024.0) + " saved";
+    }
+}
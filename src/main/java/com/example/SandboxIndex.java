@@ -0,0 +1,547 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * An index of the sandbox behind the {@code list_files}, {@code find_symbol} and {@code grep} tools: every file
+ * with its size, modification time and SHA-256, and for Java sources the declared types, constructors and
+ * methods. Before each search only files whose size or modification time changed are read again; the agent's
+ * own writes are recorded as they happen.
+ *
+ * <p>The content of text files is kept too, so a {@code read_file} of an unchanged file is answered from
+ * memory. Like {@link ContentHashes}, a file counts as unchanged while its size and modification time are.
+ * Directories named {@code target}, {@code .agent} and {@code .git} are not indexed.
+ */
+public class SandboxIndex {
+
+    static final int MAX_RESULTS = 100;
+    private static final int MAX_LINE_LENGTH = 200;
+    // Larger files are listed, but neither hashed, searched nor cached
+    private static final int MAX_INDEXED_FILE_BYTES = 1024 * 1024;
+    private static final Set<String> SKIPPED_DIRECTORIES = Set.of("target", ".agent", ".git");
+
+    private static final Pattern TYPE_DECLARATION = Pattern.compile(
+            "(?:^|\\s)(class|interface|enum|record|@interface)\\s+([A-Za-z_$][\\w$]*)");
+    private static final Pattern MEMBER_DECLARATION = Pattern.compile("([A-Za-z_$][\\w$]*)\\s*\\(");
+    private static final Pattern LEADING_ANNOTATIONS = Pattern.compile(
+            "^(\\s*@(?!interface\\b)[\\w.$]+(\\([^)]*\\))?)+");
+    private static final Set<String> STATEMENT_KEYWORDS = Set.of("return", "new", "throw", "if", "else", "for",
+            "while", "do", "switch", "case", "try", "catch", "synchronized", "assert", "yield", "super", "this");
+
+    private final Path root;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private boolean built;
+
+    // Savings of the session, guarded by this
+    private final Set<String> readPaths = new HashSet<>();
+    private final Map<String, Long> matchedFiles = new HashMap<>();
+    private final Set<Integer> searchTurns = new HashSet<>();
+    private int searches;
+    private long searchResultBytes;
+    private int memoryReads;
+    private long memoryReadBytes;
+    private int diskReads;
+
+    public SandboxIndex(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Reads a file of the sandbox, from memory if it has not changed since it was last read, written or
+     * indexed. The returned array must not be modified.
+     */
+    public byte[] read(Path file) throws IOException {
+        String key = keyOf(file);
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        Entry entry = key == null ? null : entries.get(key);
+        if (entry != null && entry.content != null && entry.matches(attributes)) {
+            synchronized (this) {
+                readPaths.add(key);
+                memoryReads++;
+                memoryReadBytes += entry.content.length;
+            }
+            return entry.content;
+        }
+        byte[] content = Files.readAllBytes(file);
+        if (key != null) {
+            entries.put(key, index(key, content, attributes, entry));
+        }
+        synchronized (this) {
+            if (key != null) {
+                readPaths.add(key);
+            }
+            diskReads++;
+        }
+        return content;
+    }
+
+    public void recordWrite(Path file, byte[] content) throws IOException {
+        String key = keyOf(file);
+        if (key != null) {
+            entries.put(key, index(key, content, Files.readAttributes(file, BasicFileAttributes.class),
+                    entries.get(key)));
+        }
+    }
+
+    /**
+     * @param pattern glob matched against the whole path if it contains a '/', otherwise against the file name
+     */
+    public String listFiles(String directory, String pattern, int turn) throws IOException {
+        refresh();
+        String prefix = normalizeDirectory(directory);
+        PathMatcher matcher = globMatcher(pattern);
+        List<String> lines = new ArrayList<>();
+        int total = 0;
+        for (Map.Entry<String, Entry> file : sortedEntries().entrySet()) {
+            if (!file.getKey().startsWith(prefix) || !matches(matcher, pattern, file.getKey())) {
+                continue;
+            }
+            if (++total <= MAX_RESULTS) {
+                lines.add(file.getKey() + " (" + file.getValue().size + " bytes)");
+            }
+        }
+        String result = total == 0 ? "No files match." : total + " file(s):\n" + String.join("\n", lines) +
+                truncationNote(total, "files");
+        return recordSearch(turn, List.of(), result);
+    }
+
+    /**
+     * Finds declared types, constructors and methods by name: exact matches first, then names containing it,
+     * ignoring case.
+     */
+    public String findSymbol(String name, int turn) throws IOException {
+        refresh();
+        List<String[]> exact = new ArrayList<>();
+        List<String[]> partial = new ArrayList<>();
+        String lowerName = name.toLowerCase();
+        for (Map.Entry<String, Entry> file : sortedEntries().entrySet()) {
+            for (Symbol symbol : file.getValue().symbols) {
+                if (symbol.name.equals(name)) {
+                    exact.add(new String[] {file.getKey(), symbol.line + ": " + symbol.signature});
+                } else if (symbol.name.toLowerCase().contains(lowerName)) {
+                    partial.add(new String[] {file.getKey(), symbol.line + ": " + symbol.signature});
+                }
+            }
+        }
+        List<String[]> found = new ArrayList<>(exact);
+        found.addAll(partial);
+        List<String> lines = new ArrayList<>();
+        Set<String> files = new HashSet<>();
+        for (String[] symbol : found.subList(0, Math.min(found.size(), MAX_RESULTS))) {
+            lines.add(symbol[0] + ":" + symbol[1]);
+            files.add(symbol[0]);
+        }
+        String result = found.isEmpty() ? "No type, constructor or method named like '" + name + "' found."
+                : String.join("\n", lines) + truncationNote(found.size(), "symbols");
+        return recordSearch(turn, files, result);
+    }
+
+    /**
+     * Searches the text files for lines matching a regular expression.
+     *
+     * @param filePattern optional glob restricting the files, as for {@link #listFiles(String, String, int)}
+     */
+    public String grep(String regex, String filePattern, int turn) throws IOException {
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            return "Invalid regular expression: " + e.getDescription();
+        }
+        refresh();
+        PathMatcher matcher = globMatcher(filePattern);
+        List<String> lines = new ArrayList<>();
+        Set<String> files = new HashSet<>();
+        int total = 0;
+        for (Map.Entry<String, Entry> file : sortedEntries().entrySet()) {
+            byte[] content = file.getValue().content;
+            if (content == null || !matches(matcher, filePattern, file.getKey())) {
+                continue;
+            }
+            String[] fileLines = new String(content, StandardCharsets.UTF_8).split("\n", -1);
+            for (int i = 0; i < fileLines.length; i++) {
+                if (!pattern.matcher(fileLines[i]).find()) {
+                    continue;
+                }
+                if (++total <= MAX_RESULTS) {
+                    lines.add(file.getKey() + ":" + (i + 1) + ": " + abbreviate(fileLines[i].trim()));
+                    files.add(file.getKey());
+                }
+            }
+        }
+        String result = total == 0 ? "No line matches." : String.join("\n", lines) + truncationNote(total, "lines");
+        return recordSearch(turn, files, result);
+    }
+
+    /**
+     * Estimated read turns saved: files found by searches that the model never had to read, beyond the one
+     * turn each search took.
+     */
+    public synchronized int getReadTurnsSaved() {
+        return Math.max(0, unreadMatchedFiles().size() - searchTurns.size());
+    }
+
+    /**
+     * Estimated bytes of file content kept out of the conversation: the files found by searches that the
+     * model never read, less the search results themselves.
+     */
+    public synchronized long getBytesSaved() {
+        long unread = 0;
+        for (String path : unreadMatchedFiles()) {
+            unread += matchedFiles.get(path);
+        }
+        return Math.max(0, unread - searchResultBytes);
+    }
+
+    public synchronized int getSearches() {
+        return searches;
+    }
+
+    public synchronized int getMemoryReads() {
+        return memoryReads;
+    }
+
+    public synchronized int getDiskReads() {
+        return diskReads;
+    }
+
+    public synchronized String formatSummary() {
+        return "Sandbox index: " + searches + " search(es) in " + searchTurns.size() + " turn(s), ~" +
+                getReadTurnsSaved() + " read turn(s) and ~" + getBytesSaved() + " B of file content saved; " +
+                memoryReads + " of " + (memoryReads + diskReads) + " read(s) served from memory (" +
+                memoryReadBytes + " B)";
+    }
+
+    private List<String> unreadMatchedFiles() {
+        List<String> unread = new ArrayList<>();
+        for (String path : matchedFiles.keySet()) {
+            if (!readPaths.contains(path)) {
+                unread.add(path);
+            }
+        }
+        return unread;
+    }
+
+    private synchronized String recordSearch(int turn, Iterable<String> files, String result) {
+        for (String path : files) {
+            Entry entry = entries.get(path);
+            matchedFiles.putIfAbsent(path, entry == null ? 0 : entry.size);
+        }
+        searchTurns.add(turn);
+        searches++;
+        searchResultBytes += result.getBytes(StandardCharsets.UTF_8).length;
+        return result;
+    }
+
+    // Incremental: unchanged files are only stat'ed, deleted ones dropped
+    private synchronized void refresh() throws IOException {
+        long startNanos = System.nanoTime();
+        Set<String> seen = new HashSet<>();
+        int[] indexed = new int[1];
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                return !dir.equals(root) && SKIPPED_DIRECTORIES.contains(dir.getFileName().toString())
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String key = keyOf(file);
+                seen.add(key);
+                Entry entry = entries.get(key);
+                if (entry == null || !entry.matches(attrs)) {
+                    byte[] content = attrs.size() <= MAX_INDEXED_FILE_BYTES ? Files.readAllBytes(file) : null;
+                    entries.put(key, index(key, content, attrs, entry));
+                    indexed[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                // Deleted while walking
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        entries.keySet().retainAll(seen);
+        if (!built) {
+            built = true;
+            int symbols = 0;
+            for (Entry entry : entries.values()) {
+                symbols += entry.symbols.size();
+            }
+            System.out.println("AGENT: Indexed " + entries.size() + " files, " + symbols + " symbols in " +
+                    (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+        } else if (indexed[0] > 0) {
+            System.out.println("AGENT: Re-indexed " + indexed[0] + " changed file(s)");
+        }
+    }
+
+    private static Entry index(String key, byte[] content, BasicFileAttributes attributes, Entry previous) {
+        if (content == null) {
+            return new Entry(null, null, List.of(), attributes);
+        }
+        byte[] hash = ContentHashes.sha256(content);
+        if (!isText(content)) {
+            return new Entry(hash, null, List.of(), attributes);
+        }
+        // Touched or restored with the same content: the symbols are still valid
+        List<Symbol> symbols = previous != null && Arrays.equals(previous.hash, hash) ? previous.symbols
+                : key.endsWith(".java") ? parseSymbols(new String(content, StandardCharsets.UTF_8)) : List.of();
+        return new Entry(hash, content.length <= MAX_INDEXED_FILE_BYTES ? content : null, symbols, attributes);
+    }
+
+    private static boolean isText(byte[] content) {
+        for (int i = 0; i < Math.min(content.length, 8000); i++) {
+            if (content[i] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Files outside the sandbox or in a skipped directory are read, but not indexed
+    private String keyOf(Path file) {
+        if (!file.startsWith(root) || file.equals(root)) {
+            return null;
+        }
+        Path relative = root.relativize(file);
+        for (int i = 0; i < relative.getNameCount() - 1; i++) {
+            if (SKIPPED_DIRECTORIES.contains(relative.getName(i).toString())) {
+                return null;
+            }
+        }
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    private TreeMap<String, Entry> sortedEntries() {
+        return new TreeMap<>(entries);
+    }
+
+    private static String normalizeDirectory(String directory) {
+        String prefix = directory == null ? "" : directory.trim().replace('\\', '/');
+        while (prefix.startsWith("./")) {
+            prefix = prefix.substring(2);
+        }
+        if (prefix.equals(".") || prefix.equals("/")) {
+            prefix = "";
+        }
+        return prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+    }
+
+    private static PathMatcher globMatcher(String pattern) {
+        return pattern == null || pattern.isEmpty() ? null : FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+    }
+
+    private static boolean matches(PathMatcher matcher, String pattern, String key) {
+        if (matcher == null) {
+            return true;
+        }
+        Path path = Paths.get(key);
+        return matcher.matches(pattern.contains("/") ? path : path.getFileName());
+    }
+
+    private static String truncationNote(int total, String what) {
+        return total <= MAX_RESULTS ? "" : "\n... " + (total - MAX_RESULTS) + " more " + what +
+                ", narrow the search.";
+    }
+
+    private static String abbreviate(String line) {
+        return line.length() <= MAX_LINE_LENGTH ? line : line.substring(0, MAX_LINE_LENGTH) + "...";
+    }
+
+    /**
+     * Types and their members, found by brace depth after blanking comments and literals: a declaration
+     * directly in a type body is a member, anything deeper is code. Good enough for well-formatted sources,
+     * which is what the search needs.
+     */
+    static List<Symbol> parseSymbols(String source) {
+        List<Symbol> symbols = new ArrayList<>();
+        Deque<Scope> scopes = new ArrayDeque<>();
+        String[] lines = stripCommentsAndLiterals(source).split("\n", -1);
+        int depth = 0;
+        String pendingType = null;
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            boolean memberLevel = scopes.isEmpty() ? depth == 0 : depth == scopes.peek().bodyDepth;
+            String code = memberLevel ? line.trim() : "";
+            if (code.startsWith("@")) {
+                code = LEADING_ANNOTATIONS.matcher(code).replaceFirst("").trim();
+            }
+            if (!code.isEmpty()) {
+                // The regular expressions only run on lines that can match
+                Matcher type = mayDeclareType(code) ? TYPE_DECLARATION.matcher(code) : null;
+                Matcher member = code.indexOf('(') > 0 ? MEMBER_DECLARATION.matcher(code) : null;
+                if (type != null && type.find() && !code.startsWith("new ")) {
+                    pendingType = type.group(2);
+                    symbols.add(new Symbol(pendingType, i + 1, signatureOf(code)));
+                } else if (!scopes.isEmpty() && member != null && member.find()
+                        && isMemberDeclaration(code.substring(0, member.start()).trim(), member.group(1),
+                        scopes.peek().name)) {
+                    symbols.add(new Symbol(member.group(1), i + 1, signatureOf(code)));
+                }
+            }
+            for (int k = 0; k < line.length(); k++) {
+                char c = line.charAt(k);
+                if (c == '{') {
+                    depth++;
+                    if (pendingType != null) {
+                        scopes.push(new Scope(pendingType, depth));
+                        pendingType = null;
+                    }
+                } else if (c == '}') {
+                    if (!scopes.isEmpty() && scopes.peek().bodyDepth == depth) {
+                        scopes.pop();
+                    }
+                    depth = Math.max(0, depth - 1);
+                }
+            }
+        }
+        return symbols;
+    }
+
+    private static boolean mayDeclareType(String code) {
+        return code.contains("class ") || code.contains("interface ") || code.contains("enum ")
+                || code.contains("record ");
+    }
+
+    // A field initializer, a statement or an enum constant is not; a constructor needs no return type
+    private static boolean isMemberDeclaration(String before, String name, String typeName) {
+        if (before.contains("=") || STATEMENT_KEYWORDS.contains(name)) {
+            return false;
+        }
+        if (name.equals(typeName)) {
+            return true;
+        }
+        String firstWord = before.split("\\s+")[0];
+        return !before.isEmpty() && !before.endsWith("@") && !before.endsWith(".")
+                && !STATEMENT_KEYWORDS.contains(firstWord);
+    }
+
+    private static String signatureOf(String code) {
+        String signature = code.replaceAll("\\s+", " ").trim();
+        int body = signature.indexOf('{');
+        if (body >= 0) {
+            signature = signature.substring(0, body).trim();
+        }
+        if (signature.endsWith(";")) {
+            signature = signature.substring(0, signature.length() - 1).trim();
+        }
+        if (signature.indexOf('(') >= 0 && signature.indexOf(')') < 0) {
+            signature += " ...";
+        }
+        return abbreviate(signature);
+    }
+
+    // Keeps the line structure; string, text block and char literals become empty
+    private static String stripCommentsAndLiterals(String source) {
+        StringBuilder code = new StringBuilder(source.length());
+        int i = 0;
+        int n = source.length();
+        while (i < n) {
+            char c = source.charAt(i);
+            if (source.startsWith("//", i)) {
+                while (i < n && source.charAt(i) != '\n') {
+                    i++;
+                }
+            } else if (source.startsWith("/*", i)) {
+                int end = source.indexOf("*/", i + 2);
+                end = end < 0 ? n : end + 2;
+                appendNewlines(code, source, i, end);
+                i = end;
+            } else if (source.startsWith("\"\"\"", i)) {
+                int end = source.indexOf("\"\"\"", i + 3);
+                end = end < 0 ? n : end + 3;
+                code.append("\"\"");
+                appendNewlines(code, source, i, end);
+                i = end;
+            } else if (c == '"' || c == '\'') {
+                int end = i + 1;
+                while (end < n && source.charAt(end) != c && source.charAt(end) != '\n') {
+                    end += source.charAt(end) == '\\' ? 2 : 1;
+                }
+                code.append(c).append(c);
+                i = Math.min(n, end + 1);
+            } else {
+                code.append(c);
+                i++;
+            }
+        }
+        return code.toString();
+    }
+
+    private static void appendNewlines(StringBuilder code, String source, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (source.charAt(i) == '\n') {
+                code.append('\n');
+            }
+        }
+    }
+
+    static final class Symbol {
+        private final String name;
+        private final int line;
+        private final String signature;
+
+        Symbol(String name, int line, String signature) {
+            this.name = name;
+            this.line = line;
+            this.signature = signature;
+        }
+    }
+
+    private static final class Scope {
+        private final String name;
+        private final int bodyDepth;
+
+        Scope(String name, int bodyDepth) {
+            this.name = name;
+            this.bodyDepth = bodyDepth;
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] hash;
+        private final byte[] content;
+        private final List<Symbol> symbols;
+        private final long size;
+        private final long modifiedMillis;
+
+        Entry(byte[] hash, byte[] content, List<Symbol> symbols, BasicFileAttributes attributes) {
+            this.hash = hash;
+            this.content = content;
+            this.symbols = symbols;
+            this.size = attributes.size();
+            this.modifiedMillis = attributes.lastModifiedTime().toMillis();
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().toMillis() == modifiedMillis;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk record of a session: every message added to the conversation, every file the agent
+ * wrote and a marker at the end of every completed turn. A session interrupted by a crash can be resumed
+ * from its last completed turn with {@code --resume}.
+ *
+ * <p>Each record is framed as {@code [int length][int crc32][byte type][payload]}. Replay stops at the first
+ * torn or corrupt record, so a write interrupted by the crash is simply ignored. File contents are stored
+ * as raw bytes rather than JSON strings.
+ */
+public class SessionJournal implements Closeable {
+
+    public static final String FSYNC_ALWAYS = "always";
+    public static final String FSYNC_TURN = "turn";
+    public static final String FSYNC_NEVER = "never";
+
+    static final String DIRECTORY = ".agent/sessions";
+    private static final String EXTENSION = ".journal";
+
+    private static final byte HEADER = 1;
+    private static final byte USER_TEXT = 2;
+    private static final byte MODEL_PARTS = 3;
+    private static final byte FUNCTION_RESULTS = 4;
+    private static final byte FILE_WRITE = 5;
+    private static final byte FILE_ORIGINAL = 6;
+    private static final byte TURN_END = 7;
+
+    private static final int FRAME_HEADER_BYTES = 9;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final String fsyncPolicy;
+    private final Metrics metrics;
+    // Paths whose content before the session has been recorded
+    private final Map<String, Boolean> originalsRecorded = new LinkedHashMap<>();
+
+    private SessionJournal(Path file, FileChannel channel, String fsyncPolicy, Metrics metrics) {
+        this.file = file;
+        this.channel = channel;
+        this.fsyncPolicy = fsyncPolicy;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts the journal of a new session in the sandbox's {@value #DIRECTORY} directory.
+     */
+    public static SessionJournal create(Path sandbox, String testFile, AgentConfig config) throws IOException {
+        String className = TestRunner.testClassNameOf(testFile);
+        String sessionId = className.substring(className.lastIndexOf('.') + 1) + "-" +
+                LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + "-" +
+                Integer.toHexString(ThreadLocalRandom.current().nextInt(0x1000, 0x10000));
+        Path file = sandbox.resolve(DIRECTORY).resolve(sessionId + EXTENSION);
+        Files.createDirectories(file.getParent());
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        SessionJournal journal = new SessionJournal(file, channel, config.getJournalFsync(),
+                Metrics.forConfig(config));
+        journal.append(HEADER, utf8(new JSONObject()
+                .put("session", sessionId)
+                .put("testFile", testFile)
+                .put("started", System.currentTimeMillis())
+                .toString()));
+        journal.sync();
+        return journal;
+    }
+
+    /**
+     * Continues a replayed journal: the unfinished turn after the last completed one is cut off first.
+     */
+    public static SessionJournal reopen(Replay replay, AgentConfig config) throws IOException {
+        FileChannel channel = FileChannel.open(replay.file, StandardOpenOption.WRITE);
+        channel.truncate(replay.committedLength);
+        channel.position(replay.committedLength);
+        channel.force(true);
+        SessionJournal journal = new SessionJournal(replay.file, channel, config.getJournalFsync(),
+                Metrics.forConfig(config));
+        for (String path : replay.committedOriginals) {
+            journal.originalsRecorded.put(path, Boolean.TRUE);
+        }
+        return journal;
+    }
+
+    /**
+     * @param session a session id, resolved in the sandbox's journal directory, or the path of a journal file
+     */
+    public static Path locate(Path sandbox, String session) {
+        Path direct = Path.of(session);
+        if (Files.isRegularFile(direct)) {
+            return direct;
+        }
+        return sandbox.resolve(DIRECTORY).resolve(session.endsWith(EXTENSION) ? session : session + EXTENSION);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public String getSessionId() {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.length() - EXTENSION.length());
+    }
+
+    public void appendUserText(String text) throws IOException {
+        append(USER_TEXT, utf8(text));
+    }
+
+    public void appendModelParts(JSONArray parts) throws IOException {
+        append(MODEL_PARTS, utf8(parts.toString()));
+    }
+
+    public void appendFunctionResults(List<ToolCall> calls) throws IOException {
+        JSONArray results = new JSONArray();
+        for (ToolCall call : calls) {
+            results.put(new JSONObject()
+                    .put("name", call.getName())
+                    .put("args", call.getArgs() == null ? new JSONObject() : call.getArgs())
+                    .put("result", call.getResult())
+                    .put("testsPassed", call.isTestsPassed()));
+        }
+        append(FUNCTION_RESULTS, utf8(results.toString()));
+    }
+
+    /**
+     * Records new content of a file. The first time a path is written in the session, its previous content
+     * is recorded as well, so a write of an unfinished turn can be undone on resume.
+     *
+     * @param previous content before this write, or null if the file did not exist or {@link #needsOriginal}
+     *                 returned false
+     */
+    public synchronized void appendFileWrite(String path, byte[] previous, byte[] content) throws IOException {
+        if (originalsRecorded.putIfAbsent(path, Boolean.TRUE) == null) {
+            append(FILE_ORIGINAL, fileRecord(path, previous));
+        }
+        append(FILE_WRITE, fileRecord(path, content));
+    }
+
+    /**
+     * @return whether the next write of the path must pass its previous content to {@link #appendFileWrite}
+     */
+    public boolean needsOriginal(String path) {
+        return !originalsRecorded.containsKey(path);
+    }
+
+    /**
+     * Marks the end of a completed turn; everything before it is replayed on resume.
+     */
+    public void endTurn(int requestCount, int toolCallCount, boolean testsPassed) throws IOException {
+        append(TURN_END, utf8(new JSONObject()
+                .put("requests", requestCount)
+                .put("toolCalls", toolCallCount)
+                .put("testsPassed", testsPassed)
+                .toString()));
+        // With "always" the record has been synced already
+        if (FSYNC_TURN.equals(fsyncPolicy)) {
+            sync();
+        }
+    }
+
+    private synchronized void append(byte type, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER_BYTES + payload.length)
+                .putInt(payload.length)
+                .putInt((int) crc.getValue())
+                .put(type)
+                .put(payload);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        if (FSYNC_ALWAYS.equals(fsyncPolicy)) {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException {
+        long startNanos = metrics.startTimer();
+        channel.force(false);
+        metrics.recordSince("journal_fsync_seconds", startNanos);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // [int path length][path][byte exists][content]
+    private static byte[] fileRecord(String path, byte[] content) {
+        byte[] pathBytes = utf8(path);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + pathBytes.length + 1 + (content == null ? 0 : content.length))
+                .putInt(pathBytes.length)
+                .put(pathBytes)
+                .put((byte) (content == null ? 0 : 1));
+        if (content != null) {
+            buffer.put(content);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a journal up to its last intact record.
+     */
+    public static Replay replay(Path file) throws IOException {
+        Replay replay = new Replay(file);
+        // Turn-local state that only becomes part of the session once its TURN_END is read
+        List<Object[]> pending = new ArrayList<>();
+        Map<String, byte[]> pendingFiles = new LinkedHashMap<>();
+        List<String> pendingOriginals = new ArrayList<>();
+        long size = Files.size(file);
+        long position = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+             DataInputStream data = new DataInputStream(in)) {
+            while (true) {
+                int length;
+                int checksum;
+                byte type;
+                byte[] payload;
+                try {
+                    length = data.readInt();
+                    checksum = data.readInt();
+                    type = data.readByte();
+                    if (length < 0 || position + FRAME_HEADER_BYTES + length > size) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    data.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(type);
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    System.err.println("AGENT: Journal " + file + " has a corrupt record at byte " + position +
+                            ", replaying up to there");
+                    break;
+                }
+                position += FRAME_HEADER_BYTES + length;
+
+                switch (type) {
+                    case HEADER:
+                        JSONObject header = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+                        replay.sessionId = header.getString("session");
+                        replay.testFile = header.getString("testFile");
+                        replay.committedLength = position;
+                        break;
+                    case FILE_ORIGINAL:
+                        pendingOriginals.add(readFileRecord(payload, replay.originals));
+                        break;
+                    case FILE_WRITE:
+                        readFileRecord(payload, pendingFiles);
+                        break;
+                    case TURN_END:
+                        JSONObject end = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+                        replay.entries.addAll(pending);
+                        replay.files.putAll(pendingFiles);
+                        replay.committedOriginals.addAll(pendingOriginals);
+                        pending.clear();
+                        pendingFiles.clear();
+                        pendingOriginals.clear();
+                        replay.requestCount = end.getInt("requests");
+                        replay.toolCallCount = end.getInt("toolCalls");
+                        replay.testsPassed = end.getBoolean("testsPassed");
+                        replay.turns++;
+                        replay.committedLength = position;
+                        break;
+                    default:
+                        pending.add(new Object[] {type, new String(payload, StandardCharsets.UTF_8)});
+                }
+            }
+        }
+        if (replay.testFile == null) {
+            throw new IOException("Not a session journal: " + file);
+        }
+        replay.uncommittedFiles.addAll(pendingFiles.keySet());
+        return replay;
+    }
+
+    private static String readFileRecord(byte[] payload, Map<String, byte[]> target) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        byte[] pathBytes = new byte[buffer.getInt()];
+        buffer.get(pathBytes);
+        String path = new String(pathBytes, StandardCharsets.UTF_8);
+        boolean exists = buffer.get() != 0;
+        byte[] content = null;
+        if (exists) {
+            content = new byte[buffer.remaining()];
+            buffer.get(content);
+        }
+        target.put(path, content);
+        return path;
+    }
+
+    /**
+     * The completed part of a journaled session.
+     */
+    public static class Replay {
+        private final Path file;
+        private String sessionId;
+        private String testFile;
+        private final List<Object[]> entries = new ArrayList<>();
+        private final Map<String, byte[]> files = new LinkedHashMap<>();
+        private final Map<String, byte[]> originals = new LinkedHashMap<>();
+        private final List<String> committedOriginals = new ArrayList<>();
+        private final List<String> uncommittedFiles = new ArrayList<>();
+        private long committedLength;
+        private int turns;
+        private int requestCount;
+        private int toolCallCount;
+        private boolean testsPassed;
+
+        Replay(Path file) {
+            this.file = file;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public String getTestFile() {
+            return testFile;
+        }
+
+        /**
+         * @return the number of completed turns, counting the task prompt as the first
+         */
+        public int getTurns() {
+            return turns;
+        }
+
+        public int getRequestCount() {
+            return requestCount;
+        }
+
+        public int getToolCallCount() {
+            return toolCallCount;
+        }
+
+        public boolean isTestsPassed() {
+            return testsPassed;
+        }
+
+        /**
+         * Adds the completed messages to a conversation, in their original order.
+         */
+        public void replayHistory(ConversationHistory history) {
+            for (Object[] entry : entries) {
+                String payload = (String) entry[1];
+                switch ((Byte) entry[0]) {
+                    case USER_TEXT:
+                        history.addUserMessage(payload);
+                        break;
+                    case MODEL_PARTS:
+                        history.addModelParts(new JSONArray(payload));
+                        break;
+                    case FUNCTION_RESULTS:
+                        JSONArray results = new JSONArray(payload);
+                        List<ToolCall> calls = new ArrayList<>();
+                        for (int i = 0; i < results.length(); i++) {
+                            JSONObject result = results.getJSONObject(i);
+                            ToolCall call = new ToolCall(result.getString("name"), result.getJSONObject("args"));
+                            call.setResult(result.getString("result"), result.getBoolean("testsPassed"));
+                            calls.add(call);
+                        }
+                        history.addFunctionResults(calls);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        /**
+         * @return the content each file had after the last completed turn. Files written only by the unfinished
+         *         turn map to their content before the session, or to null if they did not exist.
+         */
+        public Map<String, byte[]> getFileStates() {
+            Map<String, byte[]> states = new LinkedHashMap<>();
+            for (String path : uncommittedFiles) {
+                if (!files.containsKey(path) && originals.containsKey(path)) {
+                    states.put(path, originals.get(path));
+                }
+            }
+            states.putAll(files);
+            return states;
+        }
+    }
+}
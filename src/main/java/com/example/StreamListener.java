@@ -0,0 +1,19 @@
+package com.example;
+
+import org.json.JSONObject;
+
+/**
+ * Receives parts of a streamed Gemini response while it is still being generated.
+ * Callbacks run on the HTTP client's thread and must not block for long.
+ */
+public interface StreamListener {
+
+    void onText(String text);
+
+    /**
+     * Called once the given {@code functionCall} part is complete.
+     *
+     * @param partIndex index of the part within the assembled response
+     */
+    void onFunctionCall(JSONObject part, int partIndex);
+}
@@ -0,0 +1,152 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.Flow;
+
+/**
+ * Incremental parser for the server-sent events of {@code streamGenerateContent?alt=sse}. Each event carries
+ * a partial {@code GenerateContentResponse}; text parts are merged as they arrive and every completed
+ * {@code functionCall} part is reported to the {@link StreamListener} immediately.
+ *
+ * <p>The assembled result has the same shape as a {@code generateContent} response, so it can be handed
+ * to {@link GeminiApiClient#parseResponse(JSONObject)} unchanged.
+ */
+public class StreamingResponseParser implements Flow.Subscriber<String> {
+
+    private final StreamListener listener;
+    private final StringBuilder eventData = new StringBuilder();
+    private final JSONArray parts = new JSONArray();
+    private JSONObject lastChunk;
+    private JSONObject error;
+    private long receivedBytes;
+
+    public StreamingResponseParser(StreamListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(String line) {
+        receivedBytes += line.length() + 1;
+        if (line.isEmpty()) {
+            dispatchEvent();
+        } else if (line.startsWith("data:")) {
+            eventData.append(line.substring("data:".length()).trim());
+        }
+        // Comments and other SSE fields are ignored
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        // The HTTP client completes the response future exceptionally, nothing to clean up here
+    }
+
+    @Override
+    public void onComplete() {
+        dispatchEvent();
+    }
+
+    private void dispatchEvent() {
+        if (eventData.length() == 0) {
+            return;
+        }
+        String data = eventData.toString();
+        eventData.setLength(0);
+
+        JSONObject chunk;
+        try {
+            chunk = new JSONObject(data);
+        } catch (JSONException e) {
+            System.err.println("Ignoring malformed stream event: " + e.getMessage());
+            return;
+        }
+        lastChunk = chunk;
+
+        if (chunk.has("error")) {
+            error = chunk;
+            return;
+        }
+
+        JSONArray candidates = chunk.optJSONArray("candidates");
+        if (candidates == null || candidates.isEmpty()) {
+            return;
+        }
+        JSONObject content = candidates.getJSONObject(0).optJSONObject("content");
+        JSONArray chunkParts = content == null ? null : content.optJSONArray("parts");
+        if (chunkParts == null) {
+            return;
+        }
+
+        for (int i = 0; i < chunkParts.length(); i++) {
+            addPart(chunkParts.getJSONObject(i));
+        }
+    }
+
+    private void addPart(JSONObject part) {
+        if (part.has("text") && part.length() == 1) {
+            String text = part.getString("text");
+            int last = parts.length() - 1;
+            if (last >= 0 && parts.getJSONObject(last).has("text") && parts.getJSONObject(last).length() == 1) {
+                JSONObject previous = parts.getJSONObject(last);
+                previous.put("text", previous.getString("text") + text);
+            } else {
+                parts.put(new JSONObject().put("text", text));
+            }
+            notifyListener(() -> listener.onText(text));
+            return;
+        }
+
+        parts.put(part);
+        if (part.has("functionCall")) {
+            int partIndex = parts.length() - 1;
+            notifyListener(() -> listener.onFunctionCall(part, partIndex));
+        }
+    }
+
+    private static void notifyListener(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            System.err.println("Stream listener failed: " + e);
+        }
+    }
+
+    // Characters plus line breaks, which matches the bytes received as long as the JSON is mostly ASCII
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     * @return the assembled response in {@code generateContent} format, or the error object the stream carried
+     */
+    public String getAggregatedResponse() {
+        return getAggregatedJson().toString();
+    }
+
+    public JSONObject getAggregatedJson() {
+        if (error != null) {
+            return error;
+        }
+        JSONObject candidate = new JSONObject()
+                .put("content", new JSONObject().put("role", "model").put("parts", parts));
+        JSONObject response = new JSONObject().put("candidates", new JSONArray().put(candidate));
+        if (lastChunk != null) {
+            JSONObject lastCandidate = lastChunk.optJSONArray("candidates") == null ? null
+                    : lastChunk.getJSONArray("candidates").optJSONObject(0);
+            if (lastCandidate != null && lastCandidate.has("finishReason")) {
+                candidate.put("finishReason", lastCandidate.get("finishReason"));
+            }
+            if (lastChunk.has("usageMetadata")) {
+                response.put("usageMetadata", lastChunk.get("usageMetadata"));
+            }
+        }
+        return response;
+    }
+}
@@ -9,30 +9,100 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 public class TDDAgentOrchestrator {
 
     private final GeminiApiClient geminiApiClient;
-    private final JSONArray conversationHistory;
-    private final JSONArray tddTools;
+    private final ConversationHistory conversationHistory;
+    private final byte[] encodedTools;
+    private final PromptCache promptCache;
 
     private static final int MAX_ATTEMPTS = 5;
 
+    private static final ExecutorService TOOL_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "tdd-tool");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final Path canonicalSandboxPath;
     private final String taskTestFile;
+    private final TestRunner testRunner;
+    private final Semaphore testPermits;
+    private final InMemoryCompiler compiler;
+    private final boolean compileCheck;
+    private final boolean streaming;
+    private final int candidates;
+    private final CandidateVerifier candidateVerifier;
+    private final Metrics metrics;
+    private boolean lastTestRunPassed;
+    // The API answered with an error instead of a model turn; the session ends without passing
+    private boolean aborted;
+    private int requestCount;
+    private int toolCallCount;
+    private CompilationResult lastCompileCheck;
+    private TestRunResult lastTestRun;
+    private TestRunResult bestTestRun;
+    private WorkspaceManager.Snapshot bestSnapshot;
+    private final AgentConfig config;
+    // Written to by file writes on tool threads as well
+    private volatile SessionJournal journal;
+    private int resumedAttempts;
+    private final ContentHashes writtenFiles = new ContentHashes();
+    private final SandboxIndex sandboxIndex;
 
     public TDDAgentOrchestrator(String apiKey, String sandboxPath, String testFilePath) throws IOException {
-        this.geminiApiClient = new GeminiApiClient(apiKey);
-        this.conversationHistory = new JSONArray();
-        this.tddTools = new JSONArray()
+        this(apiKey, sandboxPath, testFilePath, AgentConfig.fromSystemProperties());
+    }
+
+    public TDDAgentOrchestrator(String apiKey, String sandboxPath, String testFilePath, AgentConfig config)
+            throws IOException {
+        this(apiKey, sandboxPath, testFilePath, config, ConcurrencyLimits.unbounded());
+    }
+
+    public TDDAgentOrchestrator(String apiKey, String sandboxPath, String testFilePath, AgentConfig config,
+                                ConcurrencyLimits limits) throws IOException {
+        this.config = config;
+        this.geminiApiClient = new GeminiApiClient(apiKey, config);
+        JSONArray tools = new JSONArray()
                 .put(buildWriteFileDefinition())
+                .put(buildApplyPatchDefinition())
                 .put(buildReadFileDefinition())
                 .put(buildRunMavenTestDefinition());
+        if (config.isSandboxIndex()) {
+            tools.put(buildListFilesDefinition())
+                    .put(buildFindSymbolDefinition())
+                    .put(buildGrepDefinition());
+        }
+        this.encodedTools = GeminiApiClient.encodeTools(tools);
+        this.promptCache = config.isPromptCache() ? new PromptCache(geminiApiClient, encodedTools, config) : null;
         this.canonicalSandboxPath = Path.of(new File(sandboxPath).getCanonicalPath());
+        this.sandboxIndex = config.isSandboxIndex() ? new SandboxIndex(this.canonicalSandboxPath) : null;
         this.taskTestFile = testFilePath;
+        this.conversationHistory = new ConversationHistory(config.getHistoryTokenBudget(), testFilePath);
+        this.compiler = new InMemoryCompiler(this.canonicalSandboxPath);
+        this.testPermits = limits.getTestPermits();
+        this.compileCheck = config.isCompileCheck();
+        this.metrics = Metrics.forConfig(config);
+        this.candidates = config.getCandidates();
+        // The stream parser assembles a single candidate, so speculative mode uses plain requests
+        this.streaming = config.isStreaming() && this.candidates == 1;
+        this.candidateVerifier = new CandidateVerifier(this.canonicalSandboxPath, testFilePath, config,
+                this.testPermits, TOOL_EXECUTOR);
+        this.testRunner = TestRunner.forConfig(config, this.canonicalSandboxPath, testFilePath, this.compiler);
     }
 
-    public void runTDDWorkflow() throws Exception {
+    public boolean runTDDWorkflow() throws Exception {
         String startPrompt = "Your goal is to write Java code that passes the tests in '" + this.taskTestFile + "'.\n\n" +
                         "--- TASK ---\n" +
                 "You will work in a strict loop. You MUST only respond with tool calls.\n" +
@@ -41,71 +111,466 @@ public class TDDAgentOrchestrator {
                 "(e.g., 'src/main/java/com/example/ClassName.java').\n" +
                 "3. You MUST then call `write_file` to create the source code.\n" +
                 "4. After you receive the write confirmation, you MUST call `run_maven_test`.\n" +
-                "5. If the tests fail, analyze the error and go back to step 3. DO NOT just talk about it, " +
-                "call `write_file` with the fix.\n" +
+                "5. If the tests fail, analyze the error and fix it, then run the tests again. DO NOT just talk " +
+                "about it. For small fixes to an existing file prefer `apply_patch` over rewriting the whole " +
+                "file with `write_file`.\n" +
                 "6. If the tests pass, the task is complete.\n\n" +
                 "--- RULES ---\n" +
                 "1. You MUST NOT modify the test file at '" + this.taskTestFile + "'.\n" +
                 "2. You MUST ONLY write source code to the 'src/main/java/' directory.\n" +
-                "3. ALL file paths MUST be relative (e.g., 'src/main/java/MyClass.java').\n\n" +
+                "3. ALL file paths MUST be relative (e.g., 'src/main/java/MyClass.java').\n" +
+                "4. You MAY call several tools in one response, e.g. read several files or write several " +
+                "files at once. They are executed in the given order.\n" +
+                (sandboxIndex == null ? "" : "5. To find existing code, use `find_symbol`, `grep` and " +
+                "`list_files` instead of reading whole files.\n") +
+                "\n" +
                 "Start by calling `read_file`.";
 
-        addUserMessageToHistory(startPrompt);
-
+        long taskNanos = metrics.startTimer();
         boolean testsPassed = false;
-        int attempts = 0;
-
-        while (!testsPassed) {
-            if (attempts >= MAX_ATTEMPTS) {
-                System.err.println("Agent failed to pass tests after " + MAX_ATTEMPTS + " attempts. Aborting.");
-                break;
-            }
-            attempts++;
+        int attempts = resumedAttempts;
+        if (conversationHistory.size() == 0) {
+            openJournal();
+            addUserMessageToHistory(startPrompt);
+            journal(journal -> journal.endTurn(requestCount, toolCallCount, false));
+        } else {
+            testsPassed = lastTestRunPassed;
+        }
 
-            testsPassed = processModelResponse();
+        try {
+            while (!testsPassed && !aborted) {
+                if (attempts >= MAX_ATTEMPTS) {
+                    System.err.println("Agent failed to pass tests after " + MAX_ATTEMPTS + " attempts. Aborting.");
+                    break;
+                }
+                attempts++;
 
+                testsPassed = processModelResponse();
+                journal(journal -> journal.endTurn(requestCount, toolCallCount, lastTestRunPassed));
+            }
+            if (!testsPassed) {
+                rollBackToBest();
+            }
+        } finally {
+            closeJournal();
+            if (promptCache != null) {
+                promptCache.close();
+            }
         }
 
         if (testsPassed) {
             System.out.println("Workflow completed! Tests passed.");
         }
+        System.out.println("AGENT: " + requestCount + " round trip(s), " + toolCallCount + " tool call(s)");
+        if (sandboxIndex != null) {
+            System.out.println("AGENT: " + sandboxIndex.formatSummary());
+            metrics.add("index_searches_total", sandboxIndex.getSearches());
+            metrics.add("index_reads_total", "source", "memory", sandboxIndex.getMemoryReads());
+            metrics.add("index_reads_total", "source", "disk", sandboxIndex.getDiskReads());
+            metrics.add("index_read_turns_saved_total", sandboxIndex.getReadTurnsSaved());
+            metrics.add("index_bytes_saved_total", sandboxIndex.getBytesSaved());
+        }
+        String result = lastTestRunPassed ? "passed" : "failed";
+        metrics.recordSince("task_seconds", "result", result, taskNanos);
+        metrics.increment("tasks_total", "result", result);
+        metrics.add("round_trips_total", requestCount);
+        metrics.add("tool_calls_total", toolCallCount);
+        return testsPassed;
     }
 
-    private boolean processModelResponse() throws Exception {
-        String responseJson = geminiApiClient.callGeminiAPI(conversationHistory, tddTools);
-        JSONObject responsePart = geminiApiClient.parseResponse(responseJson);
-        addModelPartToHistory(responsePart);
+    /**
+     * Restores a journaled session: the conversation up to the last completed turn, the files as they were
+     * at that point and the turn counters. {@link #runTDDWorkflow()} then continues with the next turn.
+     */
+    public void resume(SessionJournal.Replay replay) throws IOException {
+        replay.replayHistory(conversationHistory);
+        int restored = 0;
+        for (Map.Entry<String, byte[]> file : replay.getFileStates().entrySet()) {
+            Path securePath = resolveSecurePath(file.getKey());
+            byte[] content = file.getValue();
+            if (content == null) {
+                if (Files.deleteIfExists(securePath)) {
+                    restored++;
+                }
+            } else if (!writtenFiles.isUnchanged(securePath, content)) {
+                WorkspaceManager.writeFile(securePath, content);
+                restored++;
+            }
+        }
+        requestCount = replay.getRequestCount();
+        toolCallCount = replay.getToolCallCount();
+        lastTestRunPassed = replay.isTestsPassed();
+        // The task prompt is the first completed turn
+        resumedAttempts = Math.max(0, replay.getTurns() - 1);
+        if (config.isJournal()) {
+            journal = SessionJournal.reopen(replay, config);
+        }
+        System.out.println("AGENT: Resumed session " + replay.getSessionId() + " after " + resumedAttempts +
+                " completed turn(s): " + conversationHistory.size() + " messages, " + restored +
+                " file(s) restored" + (lastTestRunPassed ? ", the tests already passed" : ""));
+    }
 
-        if (responsePart.has("functionCall")) {
-            JSONObject functionCall = responsePart.getJSONObject("functionCall");
-            String toolName = functionCall.getString("name");
-            JSONObject args = functionCall.getJSONObject("args");
+    private void openJournal() {
+        if (!config.isJournal()) {
+            return;
+        }
+        try {
+            journal = SessionJournal.create(canonicalSandboxPath, taskTestFile, config);
+            System.out.println("AGENT: Session journal " + journal.getFile() + " (resume with --resume " +
+                    journal.getSessionId() + ")");
+        } catch (IOException e) {
+            System.err.println("AGENT: Could not create session journal, continuing without it: " + e.getMessage());
+        }
+    }
 
-            String functionResult = executeTool(toolName, args);
+    // A failing journal must not end the session; it is dropped and the session goes on unjournaled
+    private void journal(JournalWrite write) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            write.write(journal);
+        } catch (IOException e) {
+            System.err.println("AGENT: Could not write session journal, continuing without it: " + e.getMessage());
+            closeJournal();
+        }
+    }
+
+    private void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("AGENT: Could not close session journal: " + e.getMessage());
+        }
+        journal = null;
+    }
+
+    private interface JournalWrite {
+        void write(SessionJournal journal) throws IOException;
+    }
+
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
 
-            addFunctionResultToHistory(toolName, functionResult);
+    public int getToolCallCount() {
+        return toolCallCount;
+    }
+
+    /**
+     * @return the index behind the search tools, or {@code null} if they are disabled
+     */
+    public SandboxIndex getSandboxIndex() {
+        return sandboxIndex;
+    }
 
-            return toolName.equals("run_maven_test") && functionResult.contains("BUILD SUCCESS");
+    private boolean processModelResponse() throws Exception {
+        long turnNanos = metrics.startTimer();
+        try {
+            return processModelTurn();
+        } finally {
+            metrics.recordSince("model_turn_seconds", turnNanos);
+        }
+    }
 
+    private boolean processModelTurn() throws Exception {
+        // May create the cached content first, which is not part of assembling the request
+        GeminiApiClient.CachedContent cachedPrefix = promptCache == null ? null : promptCache.prefixFor(
+                conversationHistory.encodedMessages(), conversationHistory.stablePrefixLength());
+        long allocatedBefore = AllocationProbe.allocatedBytes();
+        GeminiApiClient.EncodedRequest request = geminiApiClient.encodeRequest(conversationHistory.encodedMessages(),
+                encodedTools, candidates, cachedPrefix);
+        long assemblyBytes = AllocationProbe.allocatedBytes() - allocatedBefore;
+        requestCount++;
+        System.out.println("AGENT: Request #" + requestCount + ": " + request.getMessageCount() + " messages" +
+                (request.usesCachedContent() ? " (tools and " + request.getCachedMessageCount() + " cached)" : "") +
+                ", " +
+                request.getSize() / 1024 + " KB, ~" + conversationHistory.getEstimatedTokens() + " tokens (" +
+                conversationHistory.getCompactedParts() + " compacted)" +
+                (allocatedBefore < 0 ? "" : ", assembled with " + assemblyBytes + " B allocated"));
+
+        EarlyToolDispatch earlyDispatch = null;
+        JSONObject responseJson;
+        if (streaming) {
+            earlyDispatch = new EarlyToolDispatch();
+            try {
+                responseJson = geminiApiClient.streamGenerateContent(request, earlyDispatch);
+            } catch (Exception e) {
+                earlyDispatch.streamFailed();
+                throw e;
+            }
+            earlyDispatch.streamFinished();
         } else {
-            String aiText = responsePart.getString("text");
+            responseJson = geminiApiClient.generateContent(request);
+        }
+        List<JSONObject> parts = geminiApiClient.parseParts(responseJson);
+        if (candidates > 1 && writeCallOf(parts) != null) {
+            List<JSONObject> writeCandidates = distinctWriteCandidates(geminiApiClient.parseCandidates(responseJson));
+            if (writeCandidates.size() > 1) {
+                return processWriteCandidates(writeCandidates);
+            }
+        }
+        addModelPartsToHistory(parts);
+
+        List<ToolCall> calls = new ArrayList<>();
+        StringBuilder aiText = new StringBuilder();
+        for (JSONObject part : parts) {
+            if (part.has("functionCall")) {
+                calls.add(ToolCall.fromPart(part));
+            } else if (part.has("text")) {
+                aiText.append(part.getString("text"));
+            }
+        }
+        // Streamed text was already printed live, unless the response came from the cache without streaming
+        if (aiText.length() > 0 && (earlyDispatch == null || !earlyDispatch.hasStreamedText())) {
             System.out.println("AI: " + aiText);
+        }
 
-            if (aiText.contains("API Error:")) {
-                System.err.println("Stopping loop due to API error.");
-                return true;    // Stop the loop on error
-            }
+        if (!calls.isEmpty()) {
+            boolean testsPassed = executeToolCalls(calls, earlyDispatch);
+            addFunctionResultsToHistory(calls);
+            return testsPassed;
         }
 
+        if (aiText.indexOf("API Error:") >= 0) {
+            System.err.println("Stopping loop due to API error.");
+            aborted = true;
+        }
         return false;   // Continue the loop
     }
 
+    /**
+     * Runs all function calls of one model turn. Consecutive reads run concurrently; writes and test runs
+     * run one at a time in the order the model gave them, so a read after a write sees the new content.
+     *
+     * @return whether the turn ended with a passing test run
+     */
+    private boolean executeToolCalls(List<ToolCall> calls, EarlyToolDispatch earlyDispatch) throws Exception {
+        if (calls.size() > 1) {
+            System.out.println("AGENT: Executing " + calls.size() + " tool calls from one response");
+        }
+        toolCallCount += calls.size();
+        boolean testsPassed = false;
+        int index = 0;
+        while (index < calls.size()) {
+            if (calls.get(index).isReadOnly()) {
+                int end = index;
+                List<Future<String>> reads = new ArrayList<>();
+                for (; end < calls.size() && calls.get(end).isReadOnly(); end++) {
+                    reads.add(end == 0 && earlyDispatch != null && earlyDispatch.hasDispatched()
+                            ? earlyDispatch.result : submitTool(calls.get(end)));
+                }
+                for (int i = index; i < end; i++) {
+                    calls.get(i).setResult(await(reads.get(i - index)), false);
+                }
+                index = end;
+                continue;
+            }
+
+            ToolCall call = calls.get(index);
+            String result = index == 0 && earlyDispatch != null && earlyDispatch.hasDispatched()
+                    ? await(earlyDispatch.result)
+                    : executeTool(call.getName(), call.getArgs());
+            testsPassed = call.getName().equals("run_maven_test") && lastTestRunPassed;
+            call.setResult(result, testsPassed);
+            index++;
+        }
+        return testsPassed;
+    }
+
+    private Future<String> submitTool(ToolCall call) {
+        return TOOL_EXECUTOR.submit(() -> executeTool(call.getName(), call.getArgs()));
+    }
+
+    private static String await(Future<String> result) throws Exception {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private static boolean isWriteFileCall(JSONObject part) {
+        JSONObject functionCall = part.optJSONObject("functionCall");
+        return functionCall != null && "write_file".equals(functionCall.optString("name"));
+    }
+
+    /**
+     * @return the {@code write_file} call of a response that writes exactly one file, wherever it is among
+     * the parts, or {@code null}. Text parts and a test run, which verification does anyway, may accompany it.
+     */
+    private static JSONObject writeCallOf(List<JSONObject> parts) {
+        JSONObject write = null;
+        for (JSONObject part : parts) {
+            JSONObject functionCall = part.optJSONObject("functionCall");
+            if (functionCall == null || "run_maven_test".equals(functionCall.optString("name"))) {
+                continue;
+            }
+            if (write != null || !isWriteFileCall(part)) {
+                return null;
+            }
+            write = part;
+        }
+        return write;
+    }
+
+    // Candidates that write the same content, or that may not write where they want to, are not worth verifying
+    private List<JSONObject> distinctWriteCandidates(List<List<JSONObject>> candidateParts) throws IOException {
+        List<JSONObject> distinct = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (List<JSONObject> parts : candidateParts) {
+            JSONObject part = writeCallOf(parts);
+            if (part == null) {
+                continue;
+            }
+            JSONObject args = part.getJSONObject("functionCall").getJSONObject("args");
+            String writePath = args.optString("filePath");
+            try {
+                checkWritablePath(writePath);
+            } catch (SecurityException e) {
+                continue;
+            }
+            if (seen.add(writePath + "\0" + args.optString("fileContent"))) {
+                distinct.add(part);
+            }
+        }
+        return distinct;
+    }
+
+    /**
+     * Tests every candidate in its own scratch copy of the sandbox at once, then commits the first that
+     * passed, or else the best failing one together with its test report so the next turn can fix it.
+     */
+    private boolean processWriteCandidates(List<JSONObject> writeCandidates) throws Exception {
+        System.out.println("AGENT: Verifying " + writeCandidates.size() + " candidate implementations concurrently...");
+        long startNanos = System.nanoTime();
+        List<String[]> files = new ArrayList<>();
+        for (JSONObject part : writeCandidates) {
+            JSONObject args = part.getJSONObject("functionCall").getJSONObject("args");
+            files.add(new String[] {args.getString("filePath"), args.getString("fileContent")});
+        }
+        CandidateVerifier.Outcome outcome = candidateVerifier.verify(files);
+        int chosen = outcome.getChosen();
+        TestRunResult verified = outcome.getResult(chosen);
+        metrics.recordSince("candidate_verification_seconds", startNanos);
+        System.out.println("AGENT: Candidate verification took " + (System.nanoTime() - startNanos) / 1_000_000 +
+                " ms, committing candidate " + (chosen + 1));
+
+        JSONObject part = writeCandidates.get(chosen);
+        JSONObject args = part.getJSONObject("functionCall").getJSONObject("args");
+        addModelPartsToHistory(List.of(part));
+        toolCallCount++;
+        String result = executeWriteFile(args) + "\n\n" + (outcome.hasWinner()
+                ? "The tests were run on this version and passed:\n"
+                : "None of " + writeCandidates.size() + " alternative versions passed. The tests were run on " +
+                "this version, the closest one:\n") + verified.getOutput();
+        addFunctionResultToHistory("write_file", args, result);
+        // Same content as in the scratch copy, so a test run requested next would only repeat this one, and
+        // the sandbox is in the verified state
+        lastTestRun = verified;
+        snapshotIfBest(verified);
+
+        lastTestRunPassed = outcome.hasWinner();
+        return lastTestRunPassed;
+    }
+
+    // Runs the first function call of a streamed response while the rest of the response is still arriving;
+    // later calls of the same turn are executed once the response is complete
+    private class EarlyToolDispatch implements StreamListener {
+        private final long startNanos = System.nanoTime();
+        private volatile Future<String> result;
+        private volatile boolean printedText;
+        private volatile boolean streamedText;
+
+        @Override
+        public void onText(String text) {
+            streamedText = true;
+            if (!printedText) {
+                System.out.print("AI: ");
+                printedText = true;
+            }
+            System.out.print(text);
+            System.out.flush();
+        }
+
+        @Override
+        public void onFunctionCall(JSONObject part, int partIndex) {
+            if (result != null) {
+                return;
+            }
+            ToolCall call = ToolCall.fromPart(part);
+            if (printedText) {
+                System.out.println();
+                printedText = false;
+            }
+            System.out.println("AGENT: Dispatching " + call.getName() + " after " + elapsedMillis() +
+                    " ms while the response is still streaming");
+            result = submitTool(call);
+        }
+
+        void streamFinished() {
+            if (printedText) {
+                System.out.println();
+            }
+            System.out.println("AGENT: Response stream finished after " + elapsedMillis() + " ms");
+        }
+
+        // The result is lost with the response, but a tool already running must not outlive the turn: it could
+        // still write to the workspace while the session is cleaned up or retried
+        void streamFailed() {
+            if (printedText) {
+                System.out.println();
+            }
+            if (result == null) {
+                return;
+            }
+            System.out.println("AGENT: Response stream failed, waiting for the dispatched tool call to finish");
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                // Reported by the stream's own error
+            } catch (InterruptedException e) {
+                result.cancel(true);
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        boolean hasDispatched() {
+            return result != null;
+        }
+
+        boolean hasStreamedText() {
+            return streamedText;
+        }
+
+        private long elapsedMillis() {
+            return (System.nanoTime() - startNanos) / 1_000_000;
+        }
+    }
+
     private String executeTool(String toolName, JSONObject args) throws Exception {
-        switch (toolName) {
-            case "write_file":      return executeWriteFile(args);
-            case "read_file":       return executeReadFile(args);
-            case "run_maven_test" : return executeRunMavenTest(args);
-            default:                return "Unknown tool: " + toolName;
+        long startNanos = metrics.startTimer();
+        try {
+            switch (toolName) {
+                case "write_file":      return executeWriteFile(args);
+                case "apply_patch":     return executeApplyPatch(args);
+                case "read_file":       return executeReadFile(args);
+                case "run_maven_test" : return executeRunMavenTest(args);
+                case "list_files":
+                case "find_symbol":
+                case "grep":            return sandboxIndex == null ? "Unknown tool: " + toolName
+                                                : executeSearch(toolName, args);
+                default:                return "Unknown tool: " + toolName;
+            }
+        } finally {
+            metrics.recordSince("tool_seconds", "tool", toolName, startNanos);
         }
     }
 
@@ -114,29 +579,107 @@ public class TDDAgentOrchestrator {
         String content = args.getString("fileContent");
 
         try {
-            Path securePath = resolveSecurePath(writePath);
+            Path securePath = checkWritablePath(writePath);
+            return writeFile(writePath, securePath, content);
+        } catch (SecurityException e) {
+            return e.getMessage();
+        }
+    }
 
-            if (writePath.equals(this.taskTestFile)) {
-                System.err.println("AGENT: BLOCKED attempt to write to test file: " + writePath);
-                throw new SecurityException("Access denied: You are NOT allowed to modify the test file at " +
-                        this.taskTestFile);
-            }
+    private String executeApplyPatch(JSONObject args) throws Exception {
+        String patchPath = args.getString("filePath");
+        String patch = args.getString("patch");
 
-            if (!writePath.startsWith("src/main/java/")) {
-                System.err.println("AGENT: BLOCKED attempt to write outside 'src/main/java/': " + writePath);
-                throw new SecurityException("Access denied: You are ONLY allowed to write to files within " +
-                        "'src/main/java/' directory. Your Path '" + writePath + "' is invalid.");
+        try {
+            Path securePath = checkWritablePath(patchPath);
+            if (!Files.isRegularFile(securePath)) {
+                return "Cannot patch " + patchPath + ": the file does not exist. Create it with write_file.";
             }
-
-            Files.createDirectories(securePath.getParent());
-            System.out.println("AGENT: Writing to file " + writePath);
-            Files.write(securePath, content.getBytes((StandardCharsets.UTF_8)));
-            return "File written successfully to " + writePath;
+            String original = new String(Files.readAllBytes(securePath), StandardCharsets.UTF_8);
+            String patched;
+            try {
+                patched = PatchApplier.apply(original, patch);
+            } catch (IllegalArgumentException e) {
+                System.out.println("AGENT: Patch for " + patchPath + " rejected: " + e.getMessage().split("\n")[0]);
+                return "Patch NOT applied to " + patchPath + ", the file is unchanged. " + e.getMessage();
+            }
+            System.out.println("AGENT: Patching file " + patchPath + " (" + patch.length() + " chars of patch for " +
+                    patched.length() + " chars of content)");
+            return writeFile(patchPath, securePath, patched);
         } catch (SecurityException e) {
             return e.getMessage();
         }
     }
 
+    // Shared by write_file and apply_patch: identical content is neither written nor compiled again
+    private String writeFile(String writePath, Path securePath, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        if (writtenFiles.isUnchanged(securePath, bytes)) {
+            System.out.println("AGENT: Skipping write of " + writePath + ", the content is unchanged");
+            String result = "File " + writePath + " already has exactly this content; nothing was written.";
+            if (lastCompileCheck != null && !lastCompileCheck.isSuccess()) {
+                result += " It still does not compile:\n" + lastCompileCheck.formatErrors();
+            }
+            return result;
+        }
+
+        SessionJournal currentJournal = journal;
+        byte[] previous = currentJournal != null && currentJournal.needsOriginal(writePath)
+                && Files.isRegularFile(securePath) ? Files.readAllBytes(securePath) : null;
+        System.out.println("AGENT: Writing to file " + writePath);
+        WorkspaceManager.writeFile(securePath, bytes);
+        writtenFiles.recordWrite(securePath, bytes);
+        if (sandboxIndex != null) {
+            sandboxIndex.recordWrite(securePath, bytes);
+        }
+        journal(journal -> journal.appendFileWrite(writePath, previous, bytes));
+        lastTestRun = null;
+        String result = "File written successfully to " + writePath;
+        if (compileCheck && writePath.endsWith(".java")) {
+            result += "\n" + runCompileCheck();
+        }
+        return result;
+    }
+
+    private Path checkWritablePath(String writePath) throws IOException {
+        Path securePath = resolveSecurePath(writePath);
+
+        if (writePath.equals(this.taskTestFile)) {
+            System.err.println("AGENT: BLOCKED attempt to write to test file: " + writePath);
+            throw new SecurityException("Access denied: You are NOT allowed to modify the test file at " +
+                    this.taskTestFile);
+        }
+
+        if (!writePath.startsWith("src/main/java/")) {
+            System.err.println("AGENT: BLOCKED attempt to write outside 'src/main/java/': " + writePath);
+            throw new SecurityException("Access denied: You are ONLY allowed to write to files within " +
+                    "'src/main/java/' directory. Your Path '" + writePath + "' is invalid.");
+        }
+        return securePath;
+    }
+
+    // Fast javac gate: only the changed source and its dependents are recompiled, the rest comes from the cache
+    private String runCompileCheck() {
+        long startNanos = System.nanoTime();
+        try {
+            lastCompileCheck = compiler.compile(
+                    InMemoryCompiler.readSources(this.canonicalSandboxPath, InProcessTestRunner.SOURCE_ROOTS));
+        } catch (IOException e) {
+            lastCompileCheck = null;
+            return "Compile check skipped: " + e.getMessage();
+        }
+        metrics.recordSince("compile_check_seconds", startNanos);
+        long millis = (System.nanoTime() - startNanos) / 1_000_000;
+        System.out.println("AGENT: Compile check took " + millis + " ms, " + lastCompileCheck.getErrors().size() +
+                " error(s)");
+
+        if (lastCompileCheck.isSuccess()) {
+            return "Compile check passed.";
+        }
+        return "Compile check FAILED. Fix these errors before running the tests.\n" +
+                lastCompileCheck.formatErrors();
+    }
+
     private String executeReadFile(JSONObject args) throws Exception {
         String readPath = args.getString("filePath");
 
@@ -144,51 +687,121 @@ public class TDDAgentOrchestrator {
             Path securePath = resolveSecurePath(readPath);
 
             System.out.println("AGENT: Reading file " + readPath);
-            return new String(Files.readAllBytes(securePath));
+            return new String(sandboxIndex != null ? sandboxIndex.read(securePath) : Files.readAllBytes(securePath));
         } catch (SecurityException | IOException e) {
             return e.getMessage();
         }
     }
 
+    // Tools of the same turn share its number, which the index uses to estimate the turns saved
+    private String executeSearch(String toolName, JSONObject args) throws IOException {
+        int turn = requestCount;
+        String result;
+        switch (toolName) {
+            case "list_files":
+                result = sandboxIndex.listFiles(args.optString("directory"), args.optString("pattern"), turn);
+                break;
+            case "find_symbol":
+                result = sandboxIndex.findSymbol(args.getString("name"), turn);
+                break;
+            default:
+                result = sandboxIndex.grep(args.getString("pattern"), args.optString("filePattern"), turn);
+                break;
+        }
+        System.out.println("AGENT: " + toolName + " " + args + ": " + result.split("\n", 2)[0]);
+        return result;
+    }
+
     private String executeRunMavenTest(JSONObject args) throws Exception {
-        System.out.println("AGENT: Running 'mvn clean test'...");
-        try {
-            String os =  System.getProperty("os.name").toLowerCase();
-            ProcessBuilder pb;
-            if (os.contains("win")) {
-                pb = new ProcessBuilder("cmd.exe", "/c", "mvn clean test");
-            } else {
-                pb = new ProcessBuilder("sh", "-c", "mvn clean test");
+        lastTestRunPassed = false;
+        String compileErrors = "";
+        if (lastCompileCheck != null && !lastCompileCheck.isSuccess()) {
+            // The check compiles against the agent's classpath; Maven builds with the project's own dependencies
+            if (!AgentConfig.TEST_RUNNER_MAVEN.equals(config.getTestRunner())) {
+                System.out.println("AGENT: Skipping test run, the last compile check failed.");
+                return "Tests were not run because the code does not compile.\n\n" + lastCompileCheck.formatErrors();
             }
+            System.out.println("AGENT: The last compile check failed, running the Maven build anyway.");
+            compileErrors = "The in-memory compile check reported these errors:\n\n" +
+                    lastCompileCheck.formatErrors() + "\n\nMaven build:\n\n";
+        }
 
-            // Set the working directory for the Maven command
-            pb.directory(this.canonicalSandboxPath.toFile());
-
-            pb.redirectErrorStream(true);
-            Process process = pb.start();
+        if (lastTestRun != null) {
+            System.out.println("AGENT: No file changed since the last test run, reusing its result");
+            lastTestRunPassed = lastTestRun.isSuccess();
+            return "No file was changed since the last test run, so the tests were not run again. " +
+                    "The previous result still applies:\n\n" + lastTestRun.getOutput();
+        }
 
-            StringBuilder output = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    output.append(line).append("\n");
-                }
-            }
+        long waitNanos = metrics.startTimer();
+        testPermits.acquire();
+        metrics.recordSince("test_permit_wait_seconds", waitNanos);
+        long startNanos = System.nanoTime();
+        try {
+            TestRunResult result = testRunner.runTests();
+            lastTestRunPassed = result.isSuccess();
+            lastTestRun = result;
+            snapshotIfBest(result);
+            return compileErrors + result.getOutput();
+        } catch (Exception e) {
+            return compileErrors + "Failed to run tests (" + testRunner.getName() + "): " + e.getMessage();
+        } finally {
+            testPermits.release();
+            metrics.recordSince("test_run_seconds", "runner", testRunner.getName(), startNanos);
+            System.out.println("AGENT: Test run (" + testRunner.getName() + ") took " +
+                    (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+        }
+    }
 
-            process.waitFor();
-            String result = output.toString();
+    // A green state, or the tests ran and more of them passed than ever before in this session
+    private void snapshotIfBest(TestRunResult result) {
+        if (!config.isSnapshots() || (!result.isSuccess() && result.getTestsRun() <= 0)
+                || !result.isBetterThan(bestTestRun)) {
+            return;
+        }
+        try {
+            bestSnapshot = WorkspaceManager.snapshot(canonicalSandboxPath, "best");
+            bestTestRun = result;
+            System.out.println("AGENT: Snapshot of the " + (result.isSuccess() ? "green" : "best") + " state (" +
+                    describe(result) + ") taken in " + bestSnapshot.getElapsedMillis() + " ms, " +
+                    bestSnapshot.getFiles() + " files");
+        } catch (IOException e) {
+            System.err.println("AGENT: Could not snapshot the sandbox: " + e.getMessage());
+        }
+    }
 
-            if (result.contains("BUILD SUCCESS")) {
-                return "Maven command successful.\n\n" + result;
-            } else {
-                return "Maven command failed. The AI must analyze the compile or test errors.\n\n" + result;
+    // An unfinished session leaves the sandbox as it was at its best test run, not at its last write. The
+    // restored files are journaled as a turn of their own, so a resumed session continues from them.
+    private void rollBackToBest() {
+        if (bestSnapshot == null || lastTestRun == bestTestRun) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        try {
+            List<Path> changed = WorkspaceManager.restore(canonicalSandboxPath, bestSnapshot);
+            lastTestRun = bestTestRun;
+            lastTestRunPassed = bestTestRun.isSuccess();
+            System.out.println("AGENT: Rolled the sandbox back to its best state (" + describe(bestTestRun) +
+                    "), " + changed.size() + " file(s) restored in " + (System.nanoTime() - startNanos) / 1_000_000 +
+                    " ms");
+            for (Path relative : changed) {
+                Path restored = canonicalSandboxPath.resolve(relative);
+                byte[] content = Files.exists(restored) ? Files.readAllBytes(restored) : null;
+                // Only files the session wrote differ from the snapshot, and their originals are journaled
+                journal(journal -> journal.appendFileWrite(relative.toString().replace(File.separatorChar, '/'),
+                        content, content));
             }
-        } catch (Exception e) {
-            return "Failed to execute 'mvn clean test': " + e.getMessage();
+            journal(journal -> journal.endTurn(requestCount, toolCallCount, lastTestRunPassed));
+        } catch (IOException e) {
+            System.err.println("AGENT: Could not roll back to the best snapshot: " + e.getMessage());
         }
     }
 
-    private Path resolveSecurePath(String relativePathFromAI) throws IOException, SecurityException {
+    private static String describe(TestRunResult result) {
+        return (result.getTestsRun() - result.getTestsFailed()) + " of " + result.getTestsRun() + " tests passing";
+    }
+
+    Path resolveSecurePath(String relativePathFromAI) throws IOException, SecurityException {
         Path fullPath = this.canonicalSandboxPath.resolve(relativePathFromAI).normalize();
 
         Path canonicalFullPath = Path.of(fullPath.toFile().getCanonicalPath());
@@ -197,6 +810,11 @@ public class TDDAgentOrchestrator {
             System.err.println("AGENT: BLOCKED attempt to access file outside of sandbox: " + relativePathFromAI);
             throw new SecurityException("Access denied: Attempt to access file outside of sandbox.");
         }
+        if (canonicalFullPath.startsWith(this.canonicalSandboxPath.resolve(WorkspaceManager.AGENT_DIRECTORY))) {
+            System.err.println("AGENT: BLOCKED attempt to access agent state: " + relativePathFromAI);
+            throw new SecurityException("Access denied: '" + WorkspaceManager.AGENT_DIRECTORY + "/' holds the " +
+                    "agent's own logs, journals and snapshots, not project files.");
+        }
 
         return canonicalFullPath;
     }
@@ -225,6 +843,33 @@ public class TDDAgentOrchestrator {
                 .put("parameters", parameters);
     }
 
+    public JSONObject buildApplyPatchDefinition() {
+        JSONObject path = new JSONObject()
+                .put("type", "string")
+                .put("description", "The path of an existing file, e.g., 'src/main/java/com/example/MyService.java'");
+
+        JSONObject patch = new JSONObject()
+                .put("type", "string")
+                .put("description", "Either a unified diff with '@@ -l,n +l,n @@' hunks, or one or more blocks of " +
+                        "the form '<<<<<<< SEARCH', the exact lines to replace, '=======', the new lines, " +
+                        "'>>>>>>> REPLACE'. Search text must match the current file exactly and only once.");
+
+        JSONObject properties = new JSONObject()
+                .put("filePath", path)
+                .put("patch", patch);
+
+        JSONObject parameters = new JSONObject()
+                .put("type", "object")
+                .put("properties", properties)
+                .put("required", new JSONArray().put("filePath").put("patch"));
+
+        return new JSONObject()
+                .put("name", "apply_patch")
+                .put("description", "Edits part of an existing file. Much shorter than rewriting the file " +
+                        "with write_file; the whole patch is rejected with an explanation if it does not match.")
+                .put("parameters", parameters);
+    }
+
     public JSONObject buildReadFileDefinition() {
         JSONObject filePath = new JSONObject()
                 .put("type", "string")
@@ -244,6 +889,75 @@ public class TDDAgentOrchestrator {
                 .put("parameters", parameters);
     }
 
+    public JSONObject buildListFilesDefinition() {
+        JSONObject directory = new JSONObject()
+                .put("type", "string")
+                .put("description", "Optional directory to list, e.g. 'src/main/java'. Default: the whole project.");
+
+        JSONObject pattern = new JSONObject()
+                .put("type", "string")
+                .put("description", "Optional glob, e.g. '*.java' (file names) or 'src/**/*Service.java' (paths).");
+
+        JSONObject properties = new JSONObject()
+                .put("directory", directory)
+                .put("pattern", pattern);
+
+        JSONObject parameters = new JSONObject()
+                .put("type", "object")
+                .put("properties", properties)
+                .put("required", new JSONArray());
+
+        return new JSONObject()
+                .put("name", "list_files")
+                .put("description", "Lists the files of the project with their sizes. Build output is not listed.")
+                .put("parameters", parameters);
+    }
+
+    public JSONObject buildFindSymbolDefinition() {
+        JSONObject name = new JSONObject()
+                .put("type", "string")
+                .put("description", "A class, interface, enum, record, constructor or method name, e.g. 'multiply'.");
+
+        JSONObject properties = new JSONObject()
+                .put("name", name);
+
+        JSONObject parameters = new JSONObject()
+                .put("type", "object")
+                .put("properties", properties)
+                .put("required", new JSONArray().put("name"));
+
+        return new JSONObject()
+                .put("name", "find_symbol")
+                .put("description", "Finds Java declarations by name and returns 'path:line: signature' for each, " +
+                        "exact matches first, then names containing it.")
+                .put("parameters", parameters);
+    }
+
+    public JSONObject buildGrepDefinition() {
+        JSONObject pattern = new JSONObject()
+                .put("type", "string")
+                .put("description", "A Java regular expression searched in every line, e.g. 'multiply\\('.");
+
+        JSONObject filePattern = new JSONObject()
+                .put("type", "string")
+                .put("description", "Optional glob restricting the files, e.g. '*.java'.");
+
+        JSONObject properties = new JSONObject()
+                .put("pattern", pattern)
+                .put("filePattern", filePattern);
+
+        JSONObject parameters = new JSONObject()
+                .put("type", "object")
+                .put("properties", properties)
+                .put("required", new JSONArray().put("pattern"));
+
+        return new JSONObject()
+                .put("name", "grep")
+                .put("description", "Searches the project's text files and returns the matching lines as " +
+                        "'path:line: text', at most " + SandboxIndex.MAX_RESULTS + ".")
+                .put("parameters", parameters);
+    }
+
     public JSONObject buildRunMavenTestDefinition() {
         JSONObject properties = new JSONObject(); // No properties
 
@@ -254,26 +968,30 @@ public class TDDAgentOrchestrator {
 
         return new JSONObject()
                 .put("name", "run_maven_test")
-                .put("description", "Compiles all source code and runs the JUnit tests using Maven ('mvn clean test')." +
-                        "Returns the full console output from Maven, including compile errors or test failures.")
+                .put("description", "Compiles all source code and runs the JUnit tests for the task. " +
+                        "Returns the compile errors or the test report, including test failures.")
                 .put("parameters", parameters);
     }
 
-    private void addModelPartToHistory(JSONObject part) {
-        this.conversationHistory.put(new JSONObject().put("role", "model").put("parts", new JSONArray().put(part)));
+    private void addModelPartsToHistory(List<JSONObject> parts) {
+        JSONArray partArray = new JSONArray(parts);
+        journal(journal -> journal.appendModelParts(partArray));
+        this.conversationHistory.addModelParts(partArray);
     }
 
     private void addUserMessageToHistory(String content) {
-        JSONObject part = new JSONObject().put("text", content);
-        this.conversationHistory.put(new JSONObject().put("role", "user").put("parts", new JSONArray().put(part)));
+        journal(journal -> journal.appendUserText(content));
+        this.conversationHistory.addUserMessage(content);
     }
 
-    private void addFunctionResultToHistory(String toolName, String result) {
-        JSONObject resultPart = new JSONObject().put("functionResponse", new JSONObject()
-                .put("name", toolName)
-                .put("response", new JSONObject().put("content", result))
-        );
-        this.conversationHistory.put(new JSONObject().put("role", "user").put("parts", new JSONArray().put(resultPart)));
+    private void addFunctionResultsToHistory(List<ToolCall> calls) {
+        journal(journal -> journal.appendFunctionResults(calls));
+        this.conversationHistory.addFunctionResults(calls);
+    }
 
+    private void addFunctionResultToHistory(String toolName, JSONObject args, String result) {
+        ToolCall call = new ToolCall(toolName, args);
+        call.setResult(result, toolName.equals("run_maven_test") && lastTestRunPassed);
+        addFunctionResultsToHistory(List.of(call));
     }
 }
@@ -1,34 +1,172 @@
 package com.example;
 
-public class TddAgentMain {
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
 
-    private static final String SANDBOX_PATH = "code-sandbox";
+public class TddAgentMain {
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--stub-server")) {
+            runStubServer(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         String apiKey = System.getenv("GEMINI_API_KEY");
         if (apiKey == null || apiKey.isEmpty()) {
             System.err.println("Error: GEMINI_API_KEY environment variable is not set.");
             return;
         }
 
+        if (args.length == 2 && args[0].equals("--batch")) {
+            runBatch(apiKey, args[1]);
+            return;
+        }
+
+        if (args.length == 2 && args[0].equals("--coordinator")) {
+            runCoordinator(args[1]);
+            return;
+        }
+
+        if ((args.length == 2 || args.length == 3) && args[0].equals("--worker")) {
+            runWorker(apiKey, args[1], args.length == 3 ? args[2] : null);
+            return;
+        }
+
+        if (args.length == 2 && args[0].equals("--resume")) {
+            resume(apiKey, args[1]);
+            return;
+        }
+
         if (args.length != 1) {
             System.err.println("Error: Please provide test file path as an argument.");
             System.err.println("Usage: mvn exec:java -Dexec.args=\"<path/to/Test.java>\"");
+            System.err.println("       mvn exec:java -Dexec.args=\"--batch <tasks.txt|tasks.jsonl>\"");
+            System.err.println("       mvn exec:java -Dexec.args=\"--coordinator <tasks.txt|tasks.jsonl>\"");
+            System.err.println("       mvn exec:java -Dexec.args=\"--worker <host:port> [worker-id]\"");
+            System.err.println("       mvn exec:java -Dexec.args=\"--resume <session-id|path/to/session.journal>\"");
+            System.err.println("       mvn exec:java -Dexec.args=\"--stub-server [--port 8089] [--script|--replay <file>]\"");
             return;
         }
 
         String testFilePath = args[0];
 
-        System.out.println("Starting TDD Agent with Workspace:");
-        System.out.println(" Sandbox Path: " + SANDBOX_PATH + "/src/main/java/com/example");
-        System.out.println(" Task Test File: " + SANDBOX_PATH + "/" + testFilePath);
-
         try {
-            TDDAgentOrchestrator agent = new TDDAgentOrchestrator(apiKey, SANDBOX_PATH, testFilePath);
+            AgentConfig config = AgentConfig.fromSystemProperties();
+            Path sandbox = config.getSandbox();
+            if (config.isIsolateSession()) {
+                sandbox = createSessionWorkspace(config, testFilePath);
+            }
+
+            System.out.println("Starting TDD Agent with Workspace:");
+            System.out.println(" Sandbox Path: " + sandbox + "/src/main/java/com/example");
+            System.out.println(" Task Test File: " + sandbox + "/" + testFilePath);
+
+            TDDAgentOrchestrator agent = new TDDAgentOrchestrator(apiKey, sandbox.toString(), testFilePath, config);
             agent.runTDDWorkflow();
         } catch (Exception e) {
             System.err.println("An error occurred during the TDD workflow:");
             e.printStackTrace();
+        } finally {
+            printRunStatistics();
+        }
+    }
+
+    // Lets several single-task runs share the base sandbox at the same time
+    private static Path createSessionWorkspace(AgentConfig config, String testFilePath) throws IOException {
+        String className = TestRunner.testClassNameOf(testFilePath);
+        String name = className.substring(className.lastIndexOf('.') + 1) + "-" +
+                LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS"));
+        long startNanos = System.nanoTime();
+        Path workspace = new WorkspaceManager(config.getSandbox(), config.getBatchWorkDir()).createWorkspace(name);
+        System.out.println("AGENT: Workspace " + workspace + " created in " +
+                (System.nanoTime() - startNanos) / 1_000_000 + " ms");
+        return workspace;
+    }
+
+    private static void resume(String apiKey, String session) {
+        try {
+            AgentConfig config = AgentConfig.fromSystemProperties();
+            Path journalFile = SessionJournal.locate(config.getSandbox(), session);
+            // A journal lives in <sandbox>/.agent/sessions, which also finds sessions of batch workspaces
+            Path sandbox = journalFile.toAbsolutePath().getParent().getParent().getParent();
+            SessionJournal.Replay replay = SessionJournal.replay(journalFile);
+            System.out.println("Resuming TDD Agent session " + replay.getSessionId() + " in " + sandbox);
+            TDDAgentOrchestrator agent = new TDDAgentOrchestrator(apiKey, sandbox.toString(), replay.getTestFile(),
+                    config);
+            agent.resume(replay);
+            agent.runTDDWorkflow();
+        } catch (Exception e) {
+            System.err.println("An error occurred while resuming the TDD workflow:");
+            e.printStackTrace();
+        } finally {
+            printRunStatistics();
+        }
+    }
+
+    private static void runBatch(String apiKey, String taskFile) {
+        try {
+            AgentConfig config = AgentConfig.fromSystemProperties();
+            List<String> testFiles = BatchRunner.readTaskFile(Paths.get(taskFile));
+            new BatchRunner(apiKey, config, config.getSandbox(), config.getBatchWorkDir()).run(testFiles);
+        } catch (Exception e) {
+            System.err.println("An error occurred during the batch run:");
+            e.printStackTrace();
+        } finally {
+            printRunStatistics();
+        }
+    }
+
+    private static void runCoordinator(String taskFile) {
+        try {
+            new Coordinator(AgentConfig.fromSystemProperties(), Paths.get(taskFile)).run();
+        } catch (Exception e) {
+            System.err.println("An error occurred while coordinating the batch run:");
+            e.printStackTrace();
+        } finally {
+            printRunStatistics();
+        }
+    }
+
+    // The coordinator aggregates the metrics of its workers and writes the reports
+    private static void runWorker(String apiKey, String address, String id) {
+        try {
+            new Worker(apiKey, AgentConfig.fromSystemProperties(), address, id).run();
+        } catch (Exception e) {
+            System.err.println("An error occurred in the worker:");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void runStubServer(String[] args) {
+        try {
+            GeminiStubServer.main(args);
+            // The server runs on its own threads; keep 'mvn exec:java' from tearing it down
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("Could not start the stub server:");
+            e.printStackTrace();
+        }
+    }
+
+    private static void printRunStatistics() {
+        for (ResponseCache cache : ResponseCache.instances()) {
+            System.out.println(cache.formatStats());
+        }
+        for (Metrics metrics : Metrics.instances()) {
+            System.out.println(metrics.formatSummary());
+            try {
+                metrics.writeReports();
+            } catch (IOException e) {
+                System.err.println("Could not write metrics report: " + e.getMessage());
+            }
         }
     }
 }
@@ -0,0 +1,62 @@
+package com.example;
+
+public class TestRunResult {
+
+    private final boolean success;
+    private final String output;
+    private final int testsRun;
+    private final int testsFailed;
+
+    public TestRunResult(boolean success, String output) {
+        this(success, output, -1, -1);
+    }
+
+    /**
+     * @param testsRun number of tests executed, or -1 if the tests did not run, e.g. because the build failed
+     * @param testsFailed number of failed or errored tests, or -1 if the tests did not run
+     */
+    public TestRunResult(boolean success, String output, int testsRun, int testsFailed) {
+        this.success = success;
+        this.output = output;
+        this.testsRun = testsRun;
+        this.testsFailed = testsFailed;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getOutput() {
+        return output;
+    }
+
+    public int getTestsRun() {
+        return testsRun;
+    }
+
+    public int getTestsFailed() {
+        return testsFailed;
+    }
+
+    /**
+     * @return whether this run got further than the other: it passed, or the tests ran with a higher share passing
+     */
+    public boolean isBetterThan(TestRunResult other) {
+        if (other == null) {
+            return true;
+        }
+        if (success != other.success) {
+            return success;
+        }
+        boolean ran = testsRun > 0;
+        boolean otherRan = other.testsRun > 0;
+        if (ran != otherRan) {
+            return ran;
+        }
+        return ran && passRatio() > other.passRatio();
+    }
+
+    private double passRatio() {
+        return (testsRun - testsFailed) / (double) testsRun;
+    }
+}
@@ -0,0 +1,30 @@
+package com.example;
+
+import java.nio.file.Path;
+
+public interface TestRunner {
+
+    String getName();
+
+    TestRunResult runTests() throws Exception;
+
+    static TestRunner forConfig(AgentConfig config, Path sandboxPath, String testFilePath,
+                                InMemoryCompiler compiler) {
+        return AgentConfig.TEST_RUNNER_MAVEN.equals(config.getTestRunner())
+                ? new MavenTestRunner(sandboxPath, testFilePath, config)
+                : new InProcessTestRunner(sandboxPath, testFilePath, compiler,
+                        config.getTestMethodTimeoutSeconds());
+    }
+
+    // "src/test/java/com/example/MathServiceTest.java" -> "com.example.MathServiceTest"
+    static String testClassNameOf(String testFilePath) {
+        String name = testFilePath.replace('\\', '/');
+        if (name.startsWith("src/test/java/")) {
+            name = name.substring("src/test/java/".length());
+        }
+        if (name.endsWith(".java")) {
+            name = name.substring(0, name.length() - ".java".length());
+        }
+        return name.replace('/', '.');
+    }
+}
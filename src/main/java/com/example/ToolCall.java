@@ -0,0 +1,51 @@
+package com.example;
+
+import org.json.JSONObject;
+
+/**
+ * One {@code functionCall} part of a model turn, together with its result once it has been executed.
+ */
+public class ToolCall {
+
+    private final String name;
+    private final JSONObject args;
+    private String result;
+    private boolean testsPassed;
+
+    public ToolCall(String name, JSONObject args) {
+        this.name = name;
+        this.args = args;
+    }
+
+    public static ToolCall fromPart(JSONObject part) {
+        JSONObject functionCall = part.getJSONObject("functionCall");
+        return new ToolCall(functionCall.getString("name"), functionCall.optJSONObject("args", new JSONObject()));
+    }
+
+    // Reads have no side effects, so several of them can run at the same time
+    public boolean isReadOnly() {
+        return name.equals("read_file") || name.equals("list_files") || name.equals("find_symbol")
+                || name.equals("grep");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public JSONObject getArgs() {
+        return args;
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    public boolean isTestsPassed() {
+        return testsPassed;
+    }
+
+    public void setResult(String result, boolean testsPassed) {
+        this.result = result;
+        this.testsPassed = testsPassed;
+    }
+}
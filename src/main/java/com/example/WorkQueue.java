@@ -0,0 +1,343 @@
+package com.example;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The coordinator's durable task queue: an append-only JSONL log of tasks, leases, re-queues and results,
+ * forced to disk after every record. Its first record holds a hash of the task list. A coordinator resuming
+ * the queue replays it; finished tasks keep their result and tasks that were leased to a worker are queued
+ * again. A line torn by a crash is cut off.
+ *
+ * <p>Lease expiry times are kept in memory only, since heartbeats are far too frequent to log.
+ */
+public class WorkQueue implements Closeable {
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int maxAttempts;
+    private final List<Task> tasks = new ArrayList<>();
+    // Of the task list the queue was created for
+    private String tasksHash;
+
+    private WorkQueue(Path file, FileChannel channel, int maxAttempts) {
+        this.file = file;
+        this.channel = channel;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Creates a queue with one task per test file, replacing the queue of an earlier run. With {@code resume},
+     * the existing queue of the same task list is replayed instead, unless all of its tasks are done.
+     *
+     * @throws IOException also if the queue to resume was created for a different task list
+     */
+    public static WorkQueue open(Path file, List<String> testFiles, int maxAttempts, boolean resume)
+            throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        boolean exists = Files.exists(file);
+        String tasksHash = ContentHashes.sha256Hex(String.join("\n", testFiles));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        WorkQueue queue = new WorkQueue(file, channel, maxAttempts);
+        try {
+            if (exists && resume) {
+                queue.replay();
+                if (!tasksHash.equals(queue.tasksHash)) {
+                    throw new IOException(file + " was created for a different task list, it cannot be resumed. " +
+                            "Run without -Dtdd.resumeQueue=true to start over.");
+                }
+                if (!queue.isFinished()) {
+                    return queue;
+                }
+                System.out.println("COORDINATOR: All tasks of " + file + " are done already, starting over");
+            } else if (exists) {
+                System.out.println("COORDINATOR: Replacing the queue of an earlier run, " + file +
+                        " (-Dtdd.resumeQueue=true continues it instead)");
+            } else if (resume) {
+                System.out.println("COORDINATOR: No queue to resume at " + file + ", starting a new one");
+            }
+            queue.start(testFiles, tasksHash);
+            return queue;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void start(List<String> testFiles, String tasksHash) throws IOException {
+        tasks.clear();
+        channel.truncate(0);
+        channel.position(0);
+        this.tasksHash = tasksHash;
+        append(new JSONObject().put("type", "queue").put("tasksHash", tasksHash));
+        for (String testFile : testFiles) {
+            Task task = new Task(tasks.size(), testFile);
+            tasks.add(task);
+            append(new JSONObject().put("type", "task").put("id", task.id).put("testFile", testFile));
+        }
+        channel.force(false);
+    }
+
+    private void replay() throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        int lineStart = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] != '\n') {
+                continue;
+            }
+            try {
+                apply(new JSONObject(new String(content, lineStart, i - lineStart, StandardCharsets.UTF_8)));
+            } catch (JSONException e) {
+                break;
+            }
+            lineStart = i + 1;
+        }
+        if (lineStart < content.length) {
+            System.out.println("COORDINATOR: Dropping " + (content.length - lineStart) + " bytes of a torn record " +
+                    "at the end of " + file);
+        }
+        channel.truncate(lineStart);
+        channel.position(lineStart);
+        for (Task task : tasks) {
+            task.leasedTo = null;
+        }
+    }
+
+    private void apply(JSONObject record) {
+        String type = record.getString("type");
+        if (type.equals("queue")) {
+            tasksHash = record.getString("tasksHash");
+            return;
+        }
+        if (type.equals("task")) {
+            tasks.add(new Task(record.getInt("id"), record.getString("testFile")));
+            return;
+        }
+        Task task = tasks.get(record.getInt("id"));
+        switch (type) {
+            case "lease":
+                task.attempts = record.getInt("attempt");
+                task.leasedTo = record.getString("worker");
+                break;
+            case "requeue":
+                task.leasedTo = null;
+                break;
+            case "done":
+                task.leasedTo = null;
+                task.result = record.getJSONObject("result");
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return the next pending task, now leased to the worker, or {@code null} if none is pending
+     */
+    public synchronized Lease lease(String worker, long leaseMillis) throws IOException {
+        for (Task task : tasks) {
+            if (task.result == null && task.leasedTo == null) {
+                task.attempts++;
+                task.leasedTo = worker;
+                task.leaseExpiresAt = System.currentTimeMillis() + leaseMillis;
+                appendAndForce(new JSONObject().put("type", "lease").put("id", task.id).put("worker", worker)
+                        .put("attempt", task.attempts));
+                return new Lease(task.id, task.testFile, worker, task.attempts);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the task is no longer leased to this worker
+     */
+    public synchronized boolean heartbeat(int taskId, String worker, long leaseMillis) {
+        Task task = tasks.get(taskId);
+        if (!worker.equals(task.leasedTo)) {
+            return false;
+        }
+        task.leaseExpiresAt = System.currentTimeMillis() + leaseMillis;
+        return true;
+    }
+
+    /**
+     * Records a task's result. A result from a worker that lost the lease in the meantime is dropped.
+     */
+    public synchronized boolean complete(int taskId, String worker, JSONObject result) throws IOException {
+        Task task = tasks.get(taskId);
+        if (task.result != null || !worker.equals(task.leasedTo)) {
+            return false;
+        }
+        task.leasedTo = null;
+        task.result = result;
+        appendAndForce(new JSONObject().put("type", "done").put("id", taskId).put("worker", worker)
+                .put("result", result));
+        return true;
+    }
+
+    /**
+     * Takes a task back from a worker that died or stopped sending heartbeats. After the last attempt the
+     * task fails instead.
+     *
+     * @return whether the task was queued again
+     */
+    public synchronized boolean requeue(int taskId, String worker, String reason) throws IOException {
+        Task task = tasks.get(taskId);
+        if (task.result != null || !worker.equals(task.leasedTo)) {
+            return false;
+        }
+        if (task.attempts >= maxAttempts) {
+            task.leasedTo = null;
+            task.result = new JSONObject()
+                    .put("testFile", task.testFile)
+                    .put("passed", false)
+                    .put("error", "Gave up after " + task.attempts + " attempt(s), the last one: " + reason);
+            appendAndForce(new JSONObject().put("type", "done").put("id", taskId).put("worker", worker)
+                    .put("result", task.result));
+            return false;
+        }
+        task.leasedTo = null;
+        appendAndForce(new JSONObject().put("type", "requeue").put("id", taskId).put("worker", worker)
+                .put("reason", reason));
+        return true;
+    }
+
+    public synchronized List<Lease> leasesOf(String worker) {
+        List<Lease> leases = new ArrayList<>();
+        for (Task task : tasks) {
+            if (worker.equals(task.leasedTo)) {
+                leases.add(new Lease(task.id, task.testFile, worker, task.attempts));
+            }
+        }
+        return leases;
+    }
+
+    public synchronized List<Lease> expiredLeases(long nowMillis) {
+        List<Lease> expired = new ArrayList<>();
+        for (Task task : tasks) {
+            if (task.leasedTo != null && task.leaseExpiresAt < nowMillis) {
+                expired.add(new Lease(task.id, task.testFile, task.leasedTo, task.attempts));
+            }
+        }
+        return expired;
+    }
+
+    public synchronized int size() {
+        return tasks.size();
+    }
+
+    public synchronized int countDone() {
+        int done = 0;
+        for (Task task : tasks) {
+            if (task.result != null) {
+                done++;
+            }
+        }
+        return done;
+    }
+
+    public synchronized int countLeased() {
+        int leased = 0;
+        for (Task task : tasks) {
+            if (task.leasedTo != null) {
+                leased++;
+            }
+        }
+        return leased;
+    }
+
+    public synchronized boolean isFinished() {
+        return countDone() == tasks.size();
+    }
+
+    /**
+     * @return the results in task order, with a failed placeholder for every unfinished task
+     */
+    public synchronized List<JSONObject> results() {
+        List<JSONObject> results = new ArrayList<>();
+        for (Task task : tasks) {
+            results.add(task.result != null ? task.result : new JSONObject()
+                    .put("testFile", task.testFile)
+                    .put("passed", false)
+                    .put("error", "Not finished"));
+        }
+        return results;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    private void appendAndForce(JSONObject record) throws IOException {
+        append(record);
+        channel.force(false);
+    }
+
+    private void append(JSONObject record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((record + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private static final class Task {
+        private final int id;
+        private final String testFile;
+        private int attempts;
+        private String leasedTo;
+        private long leaseExpiresAt;
+        private JSONObject result;
+
+        Task(int id, String testFile) {
+            this.id = id;
+            this.testFile = testFile;
+        }
+    }
+
+    public static final class Lease {
+        private final int taskId;
+        private final String testFile;
+        private final String worker;
+        private final int attempt;
+
+        Lease(int taskId, String testFile, String worker, int attempt) {
+            this.taskId = taskId;
+            this.testFile = testFile;
+            this.worker = worker;
+            this.attempt = attempt;
+        }
+
+        public int getTaskId() {
+            return taskId;
+        }
+
+        public String getTestFile() {
+            return testFile;
+        }
+
+        public String getWorker() {
+            return worker;
+        }
+
+        public int getAttempt() {
+            return attempt;
+        }
+    }
+}
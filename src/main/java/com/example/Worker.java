@@ -0,0 +1,131 @@
+package com.example;
+
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A worker process of a {@link Coordinator}: leases one task at a time, runs it like a batch task in a
+ * workspace of its own and reports the result, sending heartbeats while the session runs.
+ */
+public class Worker {
+
+    private final String apiKey;
+    private final AgentConfig config;
+    private final String host;
+    private final int port;
+    private final String id;
+    private Writer out;
+
+    public Worker(String apiKey, AgentConfig config, String address, String id) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected <host>:<port>, got " + address);
+        }
+        this.apiKey = apiKey;
+        this.config = config;
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+        this.id = id != null ? id : defaultId();
+    }
+
+    public void run() throws IOException, InterruptedException {
+        BatchRunner runner = new BatchRunner(apiKey, config, config.getSandbox(), config.getBatchWorkDir());
+        ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (config.isPromptCache()) {
+            PromptCache.holdShared();
+        }
+        try (Socket socket = new Socket(host, port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                     StandardCharsets.UTF_8))) {
+            out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            send(new JSONObject().put("type", "hello").put("worker", id).put("pid", ProcessHandle.current().pid()));
+            System.out.println("WORKER: " + id + " connected to " + host + ":" + port);
+            while (true) {
+                send(new JSONObject().put("type", "lease"));
+                String line = in.readLine();
+                if (line == null) {
+                    System.err.println("WORKER: The coordinator closed the connection");
+                    return;
+                }
+                JSONObject message = new JSONObject(line);
+                String type = message.getString("type");
+                if (type.equals("stop")) {
+                    System.out.println("WORKER: No tasks left, stopping");
+                    return;
+                }
+                if (type.equals("wait")) {
+                    Thread.sleep(message.getLong("millis"));
+                    continue;
+                }
+                runTask(runner, heartbeats, message);
+            }
+        } finally {
+            heartbeats.shutdownNow();
+            if (config.isPromptCache()) {
+                PromptCache.releaseShared();
+            }
+        }
+    }
+
+    private void runTask(BatchRunner runner, ScheduledExecutorService heartbeats, JSONObject task)
+            throws IOException {
+        int taskId = task.getInt("taskId");
+        long period = Math.max(1, task.getLong("leaseSeconds") * 1000 / 3);
+        ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(() -> {
+            try {
+                send(new JSONObject().put("type", "heartbeat").put("taskId", taskId));
+            } catch (IOException e) {
+                // The task would be run again elsewhere; stop before this one writes any more results
+                System.err.println("WORKER: Lost the coordinator: " + e.getMessage());
+                System.exit(1);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        BatchRunner.TaskResult result;
+        try {
+            result = runner.runTask(taskId, task.getString("testFile"));
+        } finally {
+            heartbeat.cancel(false);
+        }
+        JSONObject message = new JSONObject()
+                .put("type", "result")
+                .put("taskId", taskId)
+                .put("result", result.toJson());
+        Metrics metrics = Metrics.forConfig(config);
+        if (metrics.isEnabled()) {
+            message.put("metrics", metrics.snapshot());
+        }
+        send(message);
+    }
+
+    private synchronized void send(JSONObject message) throws IOException {
+        out.write(message + "\n");
+        out.flush();
+    }
+
+    private static String defaultId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "localhost";
+        }
+        return ProcessHandle.current().pid() + "@" + host;
+    }
+}
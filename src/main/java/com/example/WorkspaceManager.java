@@ -0,0 +1,284 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates isolated per-session copies of the base sandbox so that sessions can run side by side
+ * without clobbering each other's sources or build output.
+ *
+ * <p>Files are hard-linked instead of copied, so creating a workspace takes milliseconds whatever the size of
+ * the sandbox; where the file system does not support links, they are copied. {@code target/} is always
+ * copied, because compilers overwrite class files in place; the copy keeps the first build of a workspace
+ * incremental. Agent state in {@code .agent/} is not cloned.
+ *
+ * <p>A linked file must never be modified in place, or every workspace sharing it would change: files are
+ * written with {@link #writeFile(Path, byte[])}, which replaces them. The same links make snapshots of a
+ * workspace cheap to take.
+ */
+public class WorkspaceManager {
+
+    static final String SNAPSHOT_DIRECTORY = ".agent/snapshots";
+    // Build logs, session journals, snapshots and scratch copies; never shown to the model
+    static final String AGENT_DIRECTORY = ".agent";
+    private static final String BUILD_DIRECTORY = "target";
+    private static final String MAIN_SOURCES = "src/main/java/";
+    private static final String TEST_SOURCES = "src/test/java/";
+
+    private final Path baseSandbox;
+    private final Path workspacesRoot;
+
+    public WorkspaceManager(Path baseSandbox, Path workspacesRoot) {
+        this.baseSandbox = baseSandbox;
+        this.workspacesRoot = workspacesRoot;
+    }
+
+    public Path createWorkspace(String name) throws IOException {
+        Path workspace = workspacesRoot.resolve(name);
+        if (Files.exists(workspace)) {
+            deleteTree(workspace);
+        }
+        cloneTree(baseSandbox, workspace, true, new Cloner());
+        return workspace;
+    }
+
+    /**
+     * Replaces a file with new content through a temporary file and an atomic rename. Other workspaces and
+     * snapshots that link to the old file keep their content.
+     */
+    public static void writeFile(Path file, byte[] content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path temp = file.resolveSibling("." + file.getFileName() + "." +
+                Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+        try {
+            Files.write(temp, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Links the current files of a workspace, except {@code target/} and {@code .agent/}, into a snapshot
+     * directory below {@code .agent/snapshots}.
+     */
+    public static Snapshot snapshot(Path workspace, String label) throws IOException {
+        long startNanos = System.nanoTime();
+        Path directory = workspace.resolve(SNAPSHOT_DIRECTORY).resolve(label);
+        if (Files.exists(directory)) {
+            deleteTree(directory);
+        }
+        Cloner cloner = new Cloner();
+        cloneTree(workspace, directory, false, cloner);
+        return new Snapshot(directory, label, cloner.linked + cloner.copied,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Brings the workspace back to the state of the snapshot: changed files are replaced by copies of the
+     * snapshot's, files created since are deleted. Unchanged files, still linked to the snapshot, are not
+     * touched.
+     *
+     * <p>The copies get a new modification time, and the class files of deleted sources are deleted, so that
+     * an incremental build does not keep classes compiled from the discarded sources.
+     *
+     * @return the workspace-relative paths of the files replaced or deleted
+     */
+    public static List<Path> restore(Path workspace, Snapshot snapshot) throws IOException {
+        Set<Path> snapshotFiles = new HashSet<>();
+        walkSources(snapshot.getDirectory(), snapshotFiles);
+        Set<Path> workspaceFiles = new HashSet<>();
+        walkSources(workspace, workspaceFiles);
+
+        List<Path> changed = new ArrayList<>();
+        for (Path relative : workspaceFiles) {
+            if (!snapshotFiles.contains(relative)) {
+                Files.delete(workspace.resolve(relative));
+                deleteClassFiles(workspace, relative);
+                changed.add(relative);
+            }
+        }
+        for (Path relative : snapshotFiles) {
+            Path saved = snapshot.getDirectory().resolve(relative);
+            Path current = workspace.resolve(relative);
+            if (workspaceFiles.contains(relative) && isSameContent(saved, current)) {
+                continue;
+            }
+            Files.createDirectories(current.getParent());
+            Path temp = current.resolveSibling("." + current.getFileName() + ".restore.tmp");
+            // A link would carry the snapshot's old modification time, older than the classes built since
+            Files.copy(saved, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, current, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            changed.add(relative);
+        }
+        return changed;
+    }
+
+    // src/main/java/a/B.java -> target/classes/a/B.class and its nested classes, likewise for tests
+    private static void deleteClassFiles(Path workspace, Path source) throws IOException {
+        String path = source.toString().replace('\\', '/');
+        String classes;
+        if (path.startsWith(MAIN_SOURCES)) {
+            classes = BUILD_DIRECTORY + "/classes/" + path.substring(MAIN_SOURCES.length());
+        } else if (path.startsWith(TEST_SOURCES)) {
+            classes = BUILD_DIRECTORY + "/test-classes/" + path.substring(TEST_SOURCES.length());
+        } else {
+            return;
+        }
+        if (!classes.endsWith(".java")) {
+            return;
+        }
+        Path classFile = workspace.resolve(classes.substring(0, classes.length() - ".java".length()) + ".class");
+        Path directory = classFile.getParent();
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        String name = classFile.getFileName().toString();
+        String nestedPrefix = name.substring(0, name.length() - ".class".length()) + "$";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (fileName.equals(name) || (fileName.startsWith(nestedPrefix) && fileName.endsWith(".class"))) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static boolean isSameContent(Path a, Path b) throws IOException {
+        if (Files.isSameFile(a, b)) {
+            return true;
+        }
+        return Files.size(a) == Files.size(b) && Arrays.equals(Files.readAllBytes(a), Files.readAllBytes(b));
+    }
+
+    private static void walkSources(Path root, Set<Path> files) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                String relative = root.relativize(dir).toString();
+                return relative.equals(BUILD_DIRECTORY) || relative.equals(AGENT_DIRECTORY)
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                files.add(root.relativize(file));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void cloneTree(Path source, Path target, boolean copyBuildOutput, Cloner cloner)
+            throws IOException {
+        Path buildDirectory = source.resolve(BUILD_DIRECTORY);
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Path relative = source.relativize(dir);
+                if (relative.toString().equals(AGENT_DIRECTORY)
+                        || (!copyBuildOutput && relative.toString().equals(BUILD_DIRECTORY))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Files.createDirectories(target.resolve(relative));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path destination = target.resolve(source.relativize(file));
+                if (file.startsWith(buildDirectory)) {
+                    Files.copy(file, destination, StandardCopyOption.COPY_ATTRIBUTES);
+                    cloner.copied++;
+                } else {
+                    cloner.place(file, destination);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Links files until the first failure, then copies the rest of the operation
+    private static final class Cloner {
+        private boolean linksSupported = true;
+        private int linked;
+        private int copied;
+
+        void place(Path source, Path destination) throws IOException {
+            if (linksSupported) {
+                try {
+                    Files.createLink(destination, source);
+                    linked++;
+                    return;
+                } catch (UnsupportedOperationException | FileSystemException e) {
+                    linksSupported = false;
+                    System.out.println("AGENT: Cannot hard-link " + source + " (" + e.getMessage() +
+                            "), copying instead");
+                }
+            }
+            Files.copy(source, destination, StandardCopyOption.COPY_ATTRIBUTES);
+            copied++;
+        }
+    }
+
+    public static final class Snapshot {
+        private final Path directory;
+        private final String label;
+        private final int files;
+        private final long elapsedMillis;
+
+        Snapshot(Path directory, String label, int files, long elapsedMillis) {
+            this.directory = directory;
+            this.label = label;
+            this.files = files;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public Path getDirectory() {
+            return directory;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ApiRateLimiterTest {
+
+    private static final long COOLDOWN_MS = 200;
+
+    @Test
+    void queuesBeyondTheConcurrencyLimitInArrivalOrder() throws Exception {
+        ApiRateLimiter limiter = limiter(new AgentConfig().setApiConcurrency(2));
+        ApiRateLimiter.Permit first = limiter.acquire(0).getNow(null);
+        ApiRateLimiter.Permit second = limiter.acquire(0).getNow(null);
+        CompletableFuture<ApiRateLimiter.Permit> third = limiter.acquire(0);
+        CompletableFuture<ApiRateLimiter.Permit> fourth = limiter.acquire(0);
+
+        assertTrue(first != null && second != null);
+        assertFalse(third.isDone());
+
+        first.onResponse(200, 0);
+        assertTrue(third.isDone());
+        assertFalse(fourth.isDone());
+    }
+
+    @Test
+    void halvesTheLimitOncePerCongestionEventAndGrowsItBackAdditively() throws Exception {
+        ApiRateLimiter limiter = limiter(new AgentConfig().setApiConcurrency(4));
+        List<ApiRateLimiter.Permit> permits = acquireAll(limiter, 4);
+
+        permits.get(0).onResponse(429, 0);
+        // Sent before the decrease, so part of the same congestion event
+        permits.get(1).onResponse(429, 0);
+        permits.get(2).onResponse(429, 0);
+        assertState(limiter, "limit " + format(2.0) + " of 4");
+
+        limiter.acquire(0).get(1, TimeUnit.SECONDS).onResponse(429, 0);
+        assertState(limiter, "limit " + format(1.0) + " of 4");
+
+        // One per limit's worth of successes: 1 -> 2 -> 2.5
+        permits.get(3).onResponse(200, 0);
+        limiter.acquire(0).get(1, TimeUnit.SECONDS).onResponse(200, 0);
+        assertState(limiter, "limit " + format(2.5) + " of 4");
+    }
+
+    @Test
+    void underestimatedPromptLeavesTokenDebtThatDelaysLaterRequests() throws Exception {
+        ApiRateLimiter limiter = limiter(new AgentConfig().setApiTokensPerMinute(1000));
+        limiter.acquire(100).get(1, TimeUnit.SECONDS).onResponse(200, 1100);
+
+        CompletableFuture<ApiRateLimiter.Permit> next = limiter.acquire(10);
+        Thread.sleep(100);
+        assertFalse(next.isDone());
+        next.cancel(false);
+    }
+
+    @Test
+    void onlyTheProbeDecidesWhetherTheBreakerCloses() throws Exception {
+        ApiRateLimiter limiter = limiter(new AgentConfig().setApiConcurrency(20));
+        List<ApiRateLimiter.Permit> permits = acquireAll(limiter, 11);
+        ApiRateLimiter.Permit late = permits.remove(10);
+        for (ApiRateLimiter.Permit permit : permits) {
+            permit.onError();
+        }
+        assertState(limiter, "breaker OPEN");
+
+        CompletableFuture<ApiRateLimiter.Permit> probe = limiter.acquire(0);
+        CompletableFuture<ApiRateLimiter.Permit> queued = limiter.acquire(0);
+        assertFalse(probe.isDone());
+        ApiRateLimiter.Permit probePermit = probe.get(5, TimeUnit.SECONDS);
+        assertState(limiter, "breaker HALF_OPEN");
+        assertFalse(queued.isDone());
+
+        // Sent before the breaker opened: its success does not close it
+        late.onResponse(200, 0);
+        assertState(limiter, "breaker HALF_OPEN");
+        assertFalse(queued.isDone());
+
+        probePermit.onResponse(503, 0);
+        assertState(limiter, "breaker OPEN");
+
+        queued.get(5, TimeUnit.SECONDS).onResponse(200, 0);
+        assertState(limiter, "breaker CLOSED");
+    }
+
+    @Test
+    void unusedProbeLetsTheNextRequestProbe() throws Exception {
+        ApiRateLimiter limiter = limiter(new AgentConfig().setApiConcurrency(20));
+        for (ApiRateLimiter.Permit permit : acquireAll(limiter, 10)) {
+            permit.onError();
+        }
+        ApiRateLimiter.Permit probe = limiter.acquire(0).get(5, TimeUnit.SECONDS);
+        CompletableFuture<ApiRateLimiter.Permit> next = limiter.acquire(0);
+        assertFalse(next.isDone());
+
+        probe.releaseUnused();
+        next.get(5, TimeUnit.SECONDS).onResponse(200, 0);
+        assertState(limiter, "breaker CLOSED");
+        assertState(limiter, "in flight 0");
+    }
+
+    @Test
+    void skipsCancelledWaiters() throws Exception {
+        ApiRateLimiter limiter = limiter(new AgentConfig().setApiConcurrency(1));
+        ApiRateLimiter.Permit permit = limiter.acquire(0).get(1, TimeUnit.SECONDS);
+        CompletableFuture<ApiRateLimiter.Permit> cancelled = limiter.acquire(0);
+        CompletableFuture<ApiRateLimiter.Permit> waiting = limiter.acquire(0);
+        cancelled.cancel(false);
+
+        permit.onResponse(200, 0);
+        assertTrue(waiting.isDone());
+        assertState(limiter, "in flight 1, queued 0");
+    }
+
+    private static ApiRateLimiter limiter(AgentConfig config) {
+        return new ApiRateLimiter("test", config.setBreakerCooldownMs(COOLDOWN_MS));
+    }
+
+    private static List<ApiRateLimiter.Permit> acquireAll(ApiRateLimiter limiter, int count) throws Exception {
+        List<ApiRateLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            permits.add(limiter.acquire(0).get(1, TimeUnit.SECONDS));
+        }
+        return permits;
+    }
+
+    // formatState uses the default locale
+    private static String format(double limit) {
+        return String.format("%.1f", limit);
+    }
+
+    private static void assertState(ApiRateLimiter limiter, String expected) {
+        String state = limiter.formatState();
+        assertTrue(state.contains(expected), state);
+    }
+}
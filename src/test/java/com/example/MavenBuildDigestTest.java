@@ -0,0 +1,95 @@
+package com.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MavenBuildDigestTest {
+
+    private static final String REPORT = "TEST-com.example.MathServiceTest.xml";
+
+    @TempDir
+    Path sandbox;
+
+    @Test
+    void reportsEachCompileErrorOnceWithItsSymbolAndLocation() throws IOException {
+        String log = resource("compile-error.log").replace("${sandbox}", sandbox.toString());
+
+        TestRunResult result = MavenBuildDigest.create(sandbox, log, 1, System.currentTimeMillis(), null);
+
+        assertFalse(result.isSuccess());
+        assertEquals("BUILD FAILED with 1 compile error(s):\n" +
+                "src/main/java/com/example/MathService.java:2: cannot find symbol\n" +
+                "  symbol: variable undefinedThing\n" +
+                "  location: class com.example.MathService\n", result.getOutput());
+    }
+
+    @Test
+    void summarizesFailingTestsWithTheirUserFrames() throws IOException {
+        long runStart = System.currentTimeMillis();
+        writeReport(REPORT);
+
+        TestRunResult result = MavenBuildDigest.create(sandbox, "", 1, runStart,
+                sandbox.resolve(".agent/logs/build-1.log"));
+
+        assertFalse(result.isSuccess());
+        assertEquals(2, result.getTestsRun());
+        assertEquals(1, result.getTestsFailed());
+        assertEquals("TESTS FAILED\n" +
+                "Tests run: 2, failures: 1, errors: 0, skipped: 0\n" +
+                "\n" +
+                "FAILED: com.example.MathServiceTest.testMultiply\n" +
+                "  org.opentest4j.AssertionFailedError: Multiplication failed ==> expected: <6> but was: <0>\n" +
+                "    at com.example.MathServiceTest.testMultiply(MathServiceTest.java:12)\n" +
+                "\n" +
+                "Full Maven log (not readable with read_file): .agent/logs/build-1.log\n", result.getOutput());
+    }
+
+    @Test
+    void ignoresReportsOfEarlierRuns() throws IOException {
+        long runStart = System.currentTimeMillis();
+        Path report = writeReport(REPORT);
+        Files.setLastModifiedTime(report, FileTime.fromMillis(runStart - 60_000));
+
+        TestRunResult result = MavenBuildDigest.create(sandbox, "[INFO] BUILD FAILURE\n", 1, runStart, null);
+
+        assertFalse(result.isSuccess());
+        assertTrue(result.getOutput().startsWith("BUILD FAILED (exit code 1) without test results."),
+                result.getOutput());
+        assertTrue(result.getOutput().endsWith("[INFO] BUILD FAILURE\n"), result.getOutput());
+    }
+
+    @Test
+    void passesOnlyWithCleanExitAndNoFailures() throws IOException {
+        long runStart = System.currentTimeMillis();
+        Path report = writeReport(REPORT);
+        Files.writeString(report, Files.readString(report)
+                .replaceAll("(?s)<failure.*</failure>", "")
+                .replace("failures=\"1\"", "failures=\"0\""));
+
+        assertTrue(MavenBuildDigest.create(sandbox, "", 0, runStart, null).isSuccess());
+        assertFalse(MavenBuildDigest.create(sandbox, "", 1, runStart, null).isSuccess());
+    }
+
+    private Path writeReport(String name) throws IOException {
+        Path report = sandbox.resolve("target/surefire-reports").resolve(name);
+        Files.createDirectories(report.getParent());
+        return Files.writeString(report, resource(name));
+    }
+
+    private static String resource(String name) throws IOException {
+        try (InputStream in = MavenBuildDigestTest.class.getResourceAsStream("/maven/" + name)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.example;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PatchApplierTest {
+
+    private static final String FILE = "package com.example;\n" +
+            "\n" +
+            "public class MathService {\n" +
+            "    public static int add(int a, int b) {\n" +
+            "        return 0;\n" +
+            "    }\n" +
+            "}\n";
+
+    @Test
+    void appliesUnifiedDiffHunk() {
+        String patch = "--- a/MathService.java\n" +
+                "+++ b/MathService.java\n" +
+                "@@ -4,3 +4,3 @@\n" +
+                "     public static int add(int a, int b) {\n" +
+                "-        return 0;\n" +
+                "+        return a + b;\n" +
+                "     }\n";
+
+        assertEquals(FILE.replace("return 0;", "return a + b;"), PatchApplier.apply(FILE, patch));
+    }
+
+    @Test
+    void tracksOffsetOfLinesAddedByEarlierHunks() {
+        String patch = "@@ -1,2 +1,4 @@\n" +
+                " package com.example;\n" +
+                "+\n" +
+                "+import java.util.List;\n" +
+                " \n" +
+                "@@ -5,1 +7,1 @@\n" +
+                "-        return 0;\n" +
+                "+        return a + b;\n";
+
+        String expected = FILE.replace("package com.example;\n", "package com.example;\n\nimport java.util.List;\n")
+                .replace("return 0;", "return a + b;");
+        assertEquals(expected, PatchApplier.apply(FILE, patch));
+    }
+
+    @Test
+    void appliesHunkWithWrongLineNumbersWhenItsLinesAreUnique() {
+        String patch = "@@ -40,1 +40,1 @@\n" +
+                "-        return 0;\n" +
+                "+        return a + b;\n";
+
+        assertEquals(FILE.replace("return 0;", "return a + b;"), PatchApplier.apply(FILE, patch));
+    }
+
+    @Test
+    void acceptsEmptyContextLinesWithoutLeadingSpace() {
+        String patch = "@@ -1,3 +1,3 @@\n" +
+                " package com.example;\n" +
+                "\n" +
+                "-public class MathService {\n" +
+                "+public final class MathService {\n";
+
+        assertEquals(FILE.replace("public class", "public final class"), PatchApplier.apply(FILE, patch));
+    }
+
+    @Test
+    void acceptsCrlfPatchAndFile() {
+        String patch = "@@ -5,1 +5,1 @@\r\n" +
+                "-        return 0;\r\n" +
+                "+        return a + b;\r\n";
+
+        assertEquals(FILE.replace("return 0;", "return a + b;"),
+                PatchApplier.apply(FILE.replace("\n", "\r\n"), patch));
+    }
+
+    @Test
+    void keepsMissingTrailingNewline() {
+        String original = "a\nb\nc";
+        String patch = "@@ -3,1 +3,1 @@\n" +
+                "-c\n" +
+                "\\ No newline at end of file\n" +
+                "+d\n" +
+                "\\ No newline at end of file\n";
+
+        assertEquals("a\nb\nd", PatchApplier.apply(original, patch));
+    }
+
+    @Test
+    void rejectsHunkThatDoesNotMatchAndShowsTheFile() {
+        String patch = "@@ -5,1 +5,1 @@\n" +
+                "-        return 1;\n" +
+                "+        return a + b;\n";
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> PatchApplier.apply(FILE, patch));
+        assertTrue(e.getMessage().startsWith("Hunk 1 does not match the file."), e.getMessage());
+        assertTrue(e.getMessage().contains("   5|         return 0;"), e.getMessage());
+    }
+
+    @Test
+    void rejectsAmbiguousHunk() {
+        String original = "x\ny\nx\n";
+        String patch = "@@ -9,1 +9,1 @@\n" +
+                "-x\n" +
+                "+z\n";
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> PatchApplier.apply(original, patch));
+        assertTrue(e.getMessage().contains("occur 2 times"), e.getMessage());
+    }
+
+    @Test
+    void isAllOrNothingAcrossHunks() {
+        String patch = "@@ -5,1 +5,1 @@\n" +
+                "-        return 0;\n" +
+                "+        return a + b;\n" +
+                "@@ -7,1 +7,1 @@\n" +
+                "-missing\n" +
+                "+}\n";
+
+        assertThrows(IllegalArgumentException.class, () -> PatchApplier.apply(FILE, patch));
+    }
+
+    @Test
+    void appliesSearchReplaceBlocks() {
+        String patch = "<<<<<<< SEARCH\n" +
+                "        return 0;\n" +
+                "=======\n" +
+                "        return a + b;\n" +
+                ">>>>>>> REPLACE\n" +
+                "<<<<<<< SEARCH\n" +
+                "public class MathService {\n" +
+                "=======\n" +
+                "public final class MathService {\n" +
+                ">>>>>>> REPLACE\n";
+
+        String expected = FILE.replace("return 0;", "return a + b;").replace("public class", "public final class");
+        assertEquals(expected, PatchApplier.apply(FILE, patch));
+    }
+
+    @Test
+    void searchReplaceMatchesWholeLinesAndKeepsMissingTrailingNewline() {
+        String patch = "<<<<<<< SEARCH\n" +
+                "b\n" +
+                "=======\n" +
+                "c\n" +
+                ">>>>>>> REPLACE\n";
+
+        assertEquals("ab\nc", PatchApplier.apply("ab\nb", patch));
+    }
+
+    @Test
+    void rejectsSearchTextThatOccursTwice() {
+        String patch = "<<<<<<< SEARCH\n" +
+                "x\n" +
+                "=======\n" +
+                "z\n" +
+                ">>>>>>> REPLACE\n";
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> PatchApplier.apply("x\ny\nx\n", patch));
+        assertTrue(e.getMessage().contains("more than once"), e.getMessage());
+    }
+
+    @Test
+    void rejectsSearchTextThatIsMissing() {
+        String patch = "<<<<<<< SEARCH\n" +
+                "    return 0;\n" +
+                "=======\n" +
+                "    return 1;\n" +
+                ">>>>>>> REPLACE\n";
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> PatchApplier.apply(FILE, patch));
+        assertTrue(e.getMessage().startsWith("Block 1: the SEARCH text was not found"), e.getMessage());
+    }
+
+    @Test
+    void rejectsUnknownFormat() {
+        assertThrows(IllegalArgumentException.class, () -> PatchApplier.apply(FILE, "return a + b;"));
+    }
+}
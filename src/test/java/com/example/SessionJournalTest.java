@@ -0,0 +1,139 @@
+package com.example;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SessionJournalTest {
+
+    private static final String TEST_FILE = "src/test/java/com/example/MathServiceTest.java";
+    private static final String SOURCE = "src/main/java/com/example/MathService.java";
+    private static final String HELPER = "src/main/java/com/example/Helper.java";
+
+    @TempDir
+    Path sandbox;
+
+    private final AgentConfig config = new AgentConfig().setJournalFsync(SessionJournal.FSYNC_NEVER);
+
+    @Test
+    void replaysCompletedTurns() throws IOException {
+        Path file;
+        try (SessionJournal journal = SessionJournal.create(sandbox, TEST_FILE, config)) {
+            file = journal.getFile();
+            journal.appendUserText("task prompt");
+            journal.endTurn(0, 0, false);
+            journal.appendModelParts(new JSONArray().put(new JSONObject().put("text", "writing")));
+            journal.appendFileWrite(SOURCE, null, utf8("class MathService {}"));
+            journal.endTurn(1, 1, true);
+        }
+
+        SessionJournal.Replay replay = SessionJournal.replay(file);
+
+        assertEquals(TEST_FILE, replay.getTestFile());
+        assertTrue(replay.getSessionId().startsWith("MathServiceTest-"));
+        assertEquals(2, replay.getTurns());
+        assertEquals(1, replay.getRequestCount());
+        assertEquals(1, replay.getToolCallCount());
+        assertTrue(replay.isTestsPassed());
+        assertArrayEquals(utf8("class MathService {}"), replay.getFileStates().get(SOURCE));
+        ConversationHistory history = new ConversationHistory(100_000, TEST_FILE);
+        replay.replayHistory(history);
+        assertEquals(2, history.size());
+    }
+
+    @Test
+    void revertsWritesOfTheUnfinishedTurn() throws IOException {
+        Path file;
+        try (SessionJournal journal = SessionJournal.create(sandbox, TEST_FILE, config)) {
+            file = journal.getFile();
+            journal.appendUserText("task prompt");
+            journal.appendFileWrite(SOURCE, utf8("original"), utf8("first"));
+            journal.endTurn(1, 1, false);
+            // Crash during the next turn: neither write is committed
+            journal.appendModelParts(new JSONArray().put(new JSONObject().put("text", "rewriting")));
+            journal.appendFileWrite(SOURCE, null, utf8("second"));
+            journal.appendFileWrite(HELPER, null, utf8("class Helper {}"));
+        }
+
+        SessionJournal.Replay replay = SessionJournal.replay(file);
+
+        assertEquals(1, replay.getTurns());
+        Map<String, byte[]> states = replay.getFileStates();
+        assertArrayEquals(utf8("first"), states.get(SOURCE));
+        // Did not exist before the session, so it is deleted again
+        assertTrue(states.containsKey(HELPER));
+        assertNull(states.get(HELPER));
+        ConversationHistory history = new ConversationHistory(100_000, TEST_FILE);
+        replay.replayHistory(history);
+        assertEquals(1, history.size());
+    }
+
+    @Test
+    void stopsAtTornTailAndReopenCutsItOff() throws IOException {
+        Path file;
+        try (SessionJournal journal = SessionJournal.create(sandbox, TEST_FILE, config)) {
+            file = journal.getFile();
+            journal.appendUserText("task prompt");
+            journal.endTurn(0, 0, false);
+        }
+        long committedLength = Files.size(file);
+        try (SessionJournal journal = SessionJournal.reopen(SessionJournal.replay(file), config)) {
+            journal.appendUserText("a message cut short by the crash");
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(file) - 5);
+        }
+
+        SessionJournal.Replay replay = SessionJournal.replay(file);
+        assertEquals(1, replay.getTurns());
+        assertFalse(replay.isTestsPassed());
+
+        SessionJournal.reopen(replay, config).close();
+        assertEquals(committedLength, Files.size(file));
+    }
+
+    @Test
+    void stopsAtCorruptRecord() throws IOException {
+        Path file;
+        try (SessionJournal journal = SessionJournal.create(sandbox, TEST_FILE, config)) {
+            file = journal.getFile();
+            journal.appendUserText("task prompt");
+            journal.endTurn(0, 0, false);
+            journal.appendUserText("second message");
+            journal.endTurn(1, 0, false);
+        }
+        byte[] content = Files.readAllBytes(file);
+        // Last byte of the final turn's payload
+        content[content.length - 2] ^= 1;
+        Files.write(file, content);
+
+        assertEquals(1, SessionJournal.replay(file).getTurns());
+    }
+
+    @Test
+    void rejectsFileWithoutHeader() throws IOException {
+        Path file = Files.write(sandbox.resolve("empty.journal"), new byte[0]);
+
+        assertThrows(IOException.class, () -> SessionJournal.replay(file));
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
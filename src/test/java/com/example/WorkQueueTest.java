@@ -0,0 +1,134 @@
+package com.example;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WorkQueueTest {
+
+    private static final List<String> TASKS = List.of("src/test/java/com/example/ATest.java",
+            "src/test/java/com/example/BTest.java");
+    private static final long LEASE_MILLIS = 60_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void resumeKeepsResultsAndQueuesLeasedTasksAgain() throws IOException {
+        Path file = directory.resolve("queue.jsonl");
+        try (WorkQueue queue = WorkQueue.open(file, TASKS, 3, false)) {
+            WorkQueue.Lease a = queue.lease("w1", LEASE_MILLIS);
+            queue.lease("w2", LEASE_MILLIS);
+            assertTrue(queue.complete(a.getTaskId(), "w1", passed(a)));
+        }
+
+        try (WorkQueue queue = WorkQueue.open(file, TASKS, 3, true)) {
+            assertEquals(1, queue.countDone());
+            assertEquals(0, queue.countLeased());
+            WorkQueue.Lease b = queue.lease("w3", LEASE_MILLIS);
+            assertEquals(TASKS.get(1), b.getTestFile());
+            assertEquals(2, b.getAttempt());
+            // The crashed coordinator's worker no longer holds it
+            assertFalse(queue.complete(b.getTaskId(), "w2", passed(b)));
+            assertNull(queue.lease("w4", LEASE_MILLIS));
+        }
+    }
+
+    @Test
+    void cutsOffTornTailAndKeepsAppending() throws IOException {
+        Path file = directory.resolve("queue.jsonl");
+        try (WorkQueue queue = WorkQueue.open(file, TASKS, 3, false)) {
+            queue.lease("w1", LEASE_MILLIS);
+        }
+        long committedLength = Files.size(file);
+        Files.write(file, "{\"type\":\"done\",\"id\":0,\"wor".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        try (WorkQueue queue = WorkQueue.open(file, TASKS, 3, true)) {
+            assertEquals(committedLength, Files.size(file));
+            assertEquals(0, queue.countDone());
+            WorkQueue.Lease a = queue.lease("w2", LEASE_MILLIS);
+            assertEquals(0, a.getTaskId());
+            queue.complete(a.getTaskId(), "w2", passed(a));
+        }
+
+        try (WorkQueue queue = WorkQueue.open(file, TASKS, 3, true)) {
+            assertEquals(1, queue.countDone());
+            assertTrue(queue.results().get(0).getBoolean("passed"));
+        }
+    }
+
+    @Test
+    void failsTaskAfterMaxAttempts() throws IOException {
+        Path file = directory.resolve("queue.jsonl");
+        try (WorkQueue queue = WorkQueue.open(file, TASKS.subList(0, 1), 2, false)) {
+            assertTrue(queue.requeue(queue.lease("w1", LEASE_MILLIS).getTaskId(), "w1", "worker died"));
+            WorkQueue.Lease second = queue.lease("w2", LEASE_MILLIS);
+            assertEquals(2, second.getAttempt());
+            assertFalse(queue.requeue(second.getTaskId(), "w2", "lease expired"));
+
+            assertTrue(queue.isFinished());
+            JSONObject result = queue.results().get(0);
+            assertFalse(result.getBoolean("passed"));
+            assertEquals("Gave up after 2 attempt(s), the last one: lease expired", result.getString("error"));
+        }
+    }
+
+    @Test
+    void attemptsSurviveResume() throws IOException {
+        Path file = directory.resolve("queue.jsonl");
+        try (WorkQueue queue = WorkQueue.open(file, TASKS.subList(0, 1), 2, false)) {
+            queue.lease("w1", LEASE_MILLIS);
+        }
+        try (WorkQueue queue = WorkQueue.open(file, TASKS.subList(0, 1), 2, true)) {
+            WorkQueue.Lease lease = queue.lease("w2", LEASE_MILLIS);
+            assertEquals(2, lease.getAttempt());
+            assertFalse(queue.requeue(lease.getTaskId(), "w2", "worker died"));
+        }
+    }
+
+    @Test
+    void refusesToResumeQueueOfDifferentTaskList() throws IOException {
+        Path file = directory.resolve("queue.jsonl");
+        WorkQueue.open(file, TASKS, 3, false).close();
+
+        IOException e = assertThrows(IOException.class,
+                () -> WorkQueue.open(file, TASKS.subList(0, 1), 3, true));
+        assertTrue(e.getMessage().contains("different task list"), e.getMessage());
+    }
+
+    @Test
+    void startsOverUnlessAnUnfinishedQueueIsResumed() throws IOException {
+        Path file = directory.resolve("queue.jsonl");
+        try (WorkQueue queue = WorkQueue.open(file, TASKS.subList(0, 1), 3, false)) {
+            WorkQueue.Lease lease = queue.lease("w1", LEASE_MILLIS);
+            queue.complete(lease.getTaskId(), "w1", passed(lease));
+        }
+        // Everything is done already
+        try (WorkQueue queue = WorkQueue.open(file, TASKS.subList(0, 1), 3, true)) {
+            assertEquals(0, queue.countDone());
+            queue.lease("w1", LEASE_MILLIS);
+        }
+        // Not asked to resume
+        try (WorkQueue queue = WorkQueue.open(file, TASKS.subList(0, 1), 3, false)) {
+            assertEquals(1, queue.lease("w1", LEASE_MILLIS).getAttempt());
+        }
+    }
+
+    private static JSONObject passed(WorkQueue.Lease lease) {
+        return new JSONObject().put("testFile", lease.getTestFile()).put("passed", true);
+    }
+}